@@ -0,0 +1,140 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the {@code groups.yml} and {@code users.yml} files of a bPermissions world directly
+ * from disk.
+ *
+ * <p>The files are streamed using {@link YamlSectionReader}, so only one group or user is
+ * held in memory at a time, and bPermissions never has to calculate them.</p>
+ */
+public final class BPermissionsYamlReader {
+    private final File directory;
+
+    public BPermissionsYamlReader(File directory) {
+        this.directory = directory;
+    }
+
+    public boolean readGroups(String world, Throwing.Consumer<CalculableData> consumer) throws IOException {
+        return read(world, "groups", consumer);
+    }
+
+    public boolean readUsers(String world, Throwing.Consumer<CalculableData> consumer) throws IOException {
+        return read(world, "users", consumer);
+    }
+
+    private boolean read(String world, String type, Throwing.Consumer<CalculableData> consumer) throws IOException {
+        File file = new File(new File(this.directory, world), type + ".yml");
+        if (!file.exists()) {
+            return true;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return YamlSectionReader.read(reader, Collections.singleton(type), (section, key, value) -> {
+                Map<String, Object> calculable = YamlSectionReader.asMap(value);
+
+                Map<String, String> meta = new LinkedHashMap<>();
+                for (Map.Entry<String, Object> entry : YamlSectionReader.asMap(calculable.get("meta")).entrySet()) {
+                    // numbers such as the priority are composed as plain scalars too
+                    String metaValue = YamlSectionReader.asString(entry.getValue());
+                    if (metaValue != null) {
+                        meta.put(entry.getKey(), metaValue);
+                    }
+                }
+
+                consumer.accept(new CalculableData(
+                        key,
+                        YamlSectionReader.asStringList(calculable.get("permissions")),
+                        YamlSectionReader.asStringList(calculable.get("groups")),
+                        meta
+                ));
+            });
+        }
+    }
+
+    /**
+     * The raw data stored for a single group or user in one world.
+     */
+    public static final class CalculableData {
+        private final String name;
+        private final List<String> permissions;
+        private final List<String> groups;
+        private final Map<String, String> meta;
+
+        CalculableData(String name, List<String> permissions, List<String> groups, Map<String, String> meta) {
+            this.name = name;
+            this.permissions = permissions;
+            this.groups = groups;
+            this.meta = meta;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Gets the raw permission strings. Negated permissions are prefixed with {@code ^}.
+         *
+         * @return the permissions
+         */
+        public List<String> getPermissions() {
+            return this.permissions;
+        }
+
+        public List<String> getGroups() {
+            return this.groups;
+        }
+
+        public Map<String, String> getMeta() {
+            return this.meta;
+        }
+
+        public int getPriority() {
+            String priority = this.meta.get("priority");
+            if (priority == null) {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(priority.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+}
@@ -25,32 +25,31 @@
 
 package me.lucko.luckperms.migration;
 
-import de.bananaco.bpermissions.api.Calculable;
-import de.bananaco.bpermissions.api.CalculableType;
-import de.bananaco.bpermissions.api.Permission;
 import de.bananaco.bpermissions.api.World;
 import de.bananaco.bpermissions.api.WorldManager;
 
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.context.DefaultContextKeys;
-import net.luckperms.api.model.PermissionHolder;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
-import net.luckperms.api.node.types.InheritanceNode;
-import net.luckperms.api.node.types.MetaNode;
-import net.luckperms.api.node.types.PrefixNode;
-import net.luckperms.api.node.types.SuffixNode;
 
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
-
-import java.lang.reflect.Field;
+import org.bukkit.permissions.Permission;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public final class MigrationBPermissions extends MigrationJavaPlugin {
     private LuckPerms luckPerms;
@@ -70,157 +69,143 @@ public final class MigrationBPermissions extends MigrationJavaPlugin {
             return;
         }
 
-        log(sender, "Forcing the plugin to load all data. This could take a while.");
-        for (World world : worldManager.getAllWorlds()) {
-            log(sender, "Loading users in world " + world.getName());
-
-            YamlConfiguration yamlWorldUsers = null;
-            try {
-                yamlWorldUsers = (YamlConfiguration) UCONFIG_FIELD.get(world);
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
-
-            if (yamlWorldUsers == null) {
-                continue;
-            }
-
-            ConfigurationSection configSection = yamlWorldUsers.getConfigurationSection("users");
-            if (configSection == null) {
-                continue;
-            }
+        // Read each world's files directly, rather than forcing bPermissions to load and calculate every user.
+        BPermissionsYamlReader reader = new BPermissionsYamlReader(new File(getDataFolder().getParentFile(), "bPermissions"));
 
-            Set<String> users = configSection.getKeys(false);
-            if (users == null) {
-                log(sender, "Couldn't get a list of users.");
-                return;
-            }
+        Map<String, UUID> uuids = new HashMap<>();
+        Map<UUID, Set<Node>> users = new HashMap<>();
+        Map<String, Set<Node>> groups = new LinkedHashMap<>();
+        Map<String, Integer> groupWeights = new HashMap<>();
 
-            AtomicInteger userLoadCount = new AtomicInteger(0);
-            for (String user : users) {
-                world.loadOne(user, CalculableType.USER);
-                if (userLoadCount.incrementAndGet() % 500 == 0) {
-                    log(sender, "Forcefully loaded " + userLoadCount.get() + " users so far.");
-                }
-            }
+        List<String> worlds = new ArrayList<>();
+        for (World world : worldManager.getAllWorlds()) {
+            worlds.add(world.getName());
         }
-        log(sender, "Forcefully loaded all users.");
 
-        // Migrate one world at a time.
-        log(sender, "Starting world migration.");
-        Iterators.tryIterate(worldManager.getAllWorlds(), world -> {
-            log(sender, "Migrating world: " + world.getName());
+        MigrationReport report = new MigrationReport();
+        AtomicInteger migratedUsers = new AtomicInteger(0);
+        AtomicInteger removedNodes = new AtomicInteger(0);
+
+        // Pause, writing out the users collected so far, if the server is running low on memory
+        try (HeapWatchdog watchdog = new HeapWatchdog(0.85, 0.7, report, msg -> log(sender, msg))) {
+            // Migrate one world at a time.
+            log(sender, "Starting world migration.");
+            Iterators.tryIterate(worldManager.getAllWorlds(), world -> {
+                log(sender, "Migrating world: " + world.getName());
+
+                // Collect all groups. As with users, a group is only written once every world has been read.
+                log(sender, "Collecting groups in world " + world.getName() + ".");
+                AtomicInteger groupCount = new AtomicInteger(0);
+
+                reader.readGroups(world.getName(), group -> {
+                    String groupName = groupName(world, group.getName());
+                    groupWeights.put(groupName, group.getPriority());
+                    migrateHolder(world, group, groups.computeIfAbsent(groupName, g -> new LinkedHashSet<>())::add);
+
+                    log(sender, "Collected " + groupCount.incrementAndGet() + " groups so far.");
+                });
+                log(sender, "Collected " + groupCount.get() + " groups in world " + world.getName() + ".");
+
+
+                // Collect all users. A user's data is gathered from every world before it is written,
+                // so each user is only loaded and saved once.
+                log(sender, "Collecting users in world " + world.getName() + ".");
+                AtomicInteger userCount = new AtomicInteger(0);
+                reader.readUsers(world.getName(), user -> {
+                    // There is no mention of UUIDs in the API. I assume that name = uuid. idk?
+                    UUID uuid = uuids.computeIfAbsent(user.getName(), this::lookupUuid);
+                    if (uuid == null) {
+                        return;
+                    }
+
+                    migrateHolder(world, user, users.computeIfAbsent(uuid, u -> new HashSet<>())::add);
+
+                    if (userCount.incrementAndGet() % 500 == 0) {
+                        log(sender, "Collected " + userCount.get() + " users so far.");
+                    }
+
+                    // nodes are only ever added, so a user written early gets the rest of their data later
+                    watchdog.checkpoint(() -> {
+                        log(sender, "Writing " + users.size() + " collected users early.");
+                        writeUsers(sender, users, worlds, migratedUsers, removedNodes);
+                    });
+                });
+
+                log(sender, "Collected " + userCount.get() + " users in world " + world.getName() + ".");
+            });
 
-            // Migrate all groups
-            log(sender, "Starting group migration in world " + world.getName() + ".");
+            // Migrate all groups. bPermissions repeats nodes in every world, so those are replaced
+            // with a single node before the group is written.
+            log(sender, "Starting group migration.");
             AtomicInteger groupCount = new AtomicInteger(0);
+            List<CompletableFuture<Void>> groupSaves = new ArrayList<>();
+            Iterators.tryIterate(groups.entrySet(), e -> {
+                Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(e.getKey()).join();
+                MigrationUtils.setGroupWeight(lpGroup, groupWeights.get(e.getKey()));
 
-            Iterators.tryIterate(world.getAll(CalculableType.GROUP), group -> {
-                String groupName = MigrationUtils.standardizeName(group.getName());
-                if (group.getName().equalsIgnoreCase(world.getDefaultGroup())) {
-                    groupName = "default";
-                }
-
-                // Make a LuckPerms group for the one being migrated.
-                Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
-
-                MigrationUtils.setGroupWeight(lpGroup, group.getPriority());
-                migrateHolder(world, group, lpGroup);
-
-                this.luckPerms.getGroupManager().saveGroup(lpGroup);
+                Set<Node> nodes = NodeCompactor.compact(e.getValue(), worlds);
+                removedNodes.addAndGet(e.getValue().size() - nodes.size());
+                MigrationUtils.addNodes(lpGroup, nodes);
 
+                groupSaves.add(this.luckPerms.getGroupManager().saveGroup(lpGroup));
                 log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
             });
-            log(sender, "Migrated " + groupCount.get() + " groups in world " + world.getName() + ".");
-
+            CompletableFuture.allOf(groupSaves.toArray(new CompletableFuture[0])).join();
+            log(sender, "Migrated " + groupCount.get() + " groups.");
 
             // Migrate all users
-            log(sender, "Starting user migration in world " + world.getName() + ".");
-            AtomicInteger userCount = new AtomicInteger(0);
-            Iterators.tryIterate(world.getAll(CalculableType.USER), user -> {
-                // There is no mention of UUIDs in the API. I assume that name = uuid. idk?
-                UUID uuid = lookupUuid(user.getName());
-                if (uuid == null) {
-                    return;
-                }
-
-                // Make a LuckPerms user for the one being migrated.
-                User lpUser = this.luckPerms.getUserManager().loadUser(uuid).join();
-
-                migrateHolder(world, user, lpUser);
-
-                this.luckPerms.getUserManager().saveUser(lpUser);
-                this.luckPerms.getUserManager().cleanupUser(lpUser);
-
-                if (userCount.incrementAndGet() % 500 == 0) {
-                    log(sender, "Migrated " + userCount.get() + " users so far.");
-                }
-            });
+            log(sender, "Starting user migration.");
+            writeUsers(sender, users, worlds, migratedUsers, removedNodes);
+        }
 
-            log(sender, "Migrated " + userCount.get() + " users in world " + world.getName() + ".");
-        });
+        log(sender, "Migrated " + migratedUsers.get() + " users.");
+        log(sender, "Removed " + removedNodes.get() + " redundant nodes.");
+        log(sender, report);
 
         log(sender, "Success! Migration complete.");
         log(sender, "Don't forget to remove the bPermissions jar from your plugins folder & restart the server. " +
                 "LuckPerms may not take over as the server permission handler until this is done.");
     }
 
-    private static final Field UCONFIG_FIELD;
-    static {
-        try {
-            UCONFIG_FIELD = Class.forName("de.bananaco.bpermissions.imp.YamlWorld").getDeclaredField("uconfig");
-            UCONFIG_FIELD.setAccessible(true);
-        } catch (ClassNotFoundException | NoSuchFieldException e) {
-            throw new ExceptionInInitializerError(e);
-        }
-    }
+    // writes the collected users, then forgets them
+    private void writeUsers(CommandSender sender, Map<UUID, Set<Node>> users, List<String> worlds, AtomicInteger userCount, AtomicInteger removedNodes) {
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        Iterators.tryIterate(users.entrySet(), e -> {
+            // Make a LuckPerms user for the one being migrated.
+            User lpUser = this.luckPerms.getUserManager().loadUser(e.getKey()).join();
 
-    private static void migrateHolder(World world, Calculable c, PermissionHolder holder) {
-        // Migrate the groups permissions in this world
-        for (Permission p : c.getPermissions()) {
-            if (p.name().isEmpty()) {
-                continue;
-            }
-            holder.data().add(Node.builder(p.name()).value(p.isTrue()).withContext(DefaultContextKeys.SERVER_KEY, "global").withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
+            Set<Node> nodes = NodeCompactor.compact(e.getValue(), worlds);
+            removedNodes.addAndGet(e.getValue().size() - nodes.size());
+            MigrationUtils.addNodes(lpUser, nodes);
 
-            // Include any child permissions
-            for (Map.Entry<String, Boolean> child : p.getChildren().entrySet()) {
-                if (child.getKey().isEmpty()) {
-                    continue;
-                }
+            saves.add(this.luckPerms.getUserManager().saveUser(lpUser));
+            this.luckPerms.getUserManager().cleanupUser(lpUser);
 
-                holder.data().add(Node.builder(child.getKey()).value(child.getValue()).withContext(DefaultContextKeys.SERVER_KEY, "global").withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
+            if (userCount.incrementAndGet() % 500 == 0) {
+                log(sender, "Migrated " + userCount.get() + " users so far.");
             }
-        }
-
-        // Migrate any inherited groups
-        c.getGroups().forEach(parent -> {
-            String parentName = MigrationUtils.standardizeName(parent.getName());
-            if (parent.getName().equalsIgnoreCase(world.getDefaultGroup())) {
-                parentName = "default";
-            }
-
-            holder.data().add(InheritanceNode.builder(parentName).value(true).withContext(DefaultContextKeys.SERVER_KEY, "global").withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
         });
+        users.clear();
 
-        // Migrate existing meta
-        for (Map.Entry<String, String> meta : c.getMeta().entrySet()) {
-            if (meta.getKey().isEmpty() || meta.getValue().isEmpty()) {
-                continue;
-            }
+        // a user written early may be loaded again for a later world
+        CompletableFuture.allOf(saves.toArray(new CompletableFuture[0])).join();
+    }
 
-            if (meta.getKey().equalsIgnoreCase("prefix")) {
-                holder.data().add(PrefixNode.builder(meta.getValue(), c.getPriority()).withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
-                continue;
-            }
+    private static String groupName(World world, String name) {
+        if (name.equalsIgnoreCase(world.getDefaultGroup())) {
+            return "default";
+        }
+        return MigrationUtils.standardizeName(name);
+    }
 
-            if (meta.getKey().equalsIgnoreCase("suffix")) {
-                holder.data().add(SuffixNode.builder(meta.getValue(), c.getPriority()).withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
-                continue;
-            }
+    private void migrateHolder(World world, BPermissionsYamlReader.CalculableData c, Consumer<Node> holder) {
+        NodeConversions.bPermissionsHolder(c.getPermissions(), c.getGroups(), c.getMeta(), c.getPriority(), name -> groupName(world, name),
+                this::childPermissions, new LuckPermsNodeFactory(ContextCache.world(world.getName())), holder);
+    }
 
-            holder.data().add(MetaNode.builder(meta.getKey(), meta.getValue()).withContext(DefaultContextKeys.WORLD_KEY, world.getName()).build());
-        }
+    private Map<String, Boolean> childPermissions(String name) {
+        Permission permission = getServer().getPluginManager().getPermission(name);
+        return permission == null ? Collections.emptyMap() : permission.getChildren();
     }
 
     public UUID lookupUuid(String s) {
@@ -0,0 +1,234 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads user data directly from the table used by the BungeePerms MySQL backend.
+ *
+ * <p>The backend stores one row per value, keyed by entity name, type and key, with optional
+ * server and world columns. All user rows are read by one forward-only query ordered by name,
+ * and each user's data is rebuilt as the cursor passes over their rows, rather than every
+ * user being loaded by the backend up front.</p>
+ *
+ * <p>The rows are only streamed if the driver honours the fetch size. MySQL needs cursor fetch
+ * enabled for that, as done by {@link MigrationUtils#openStreamingConnection}; otherwise the
+ * whole result is buffered by the driver.</p>
+ *
+ * <p>The reader only depends on JDBC, so it can be pointed at any copy of the schema.</p>
+ */
+public final class BungeePermsSqlReader implements AutoCloseable {
+    private static final int FETCH_SIZE = 1000;
+
+    // ordinal of EntityType.User
+    private static final int USER_TYPE = 0;
+
+    private final Connection connection;
+    private final String table;
+    private PreparedStatement statement;
+
+    public BungeePermsSqlReader(Connection connection, String table) {
+        this.connection = connection;
+        this.table = table;
+    }
+
+    /**
+     * Returns an iterable which streams through the stored users.
+     *
+     * <p>The query is executed once, when iteration begins.</p>
+     *
+     * @return the users
+     */
+    public Iterable<UserData> users() {
+        return () -> {
+            try {
+                this.statement = this.connection.prepareStatement("SELECT `name`, `key`, `value`, `server`, `world` FROM `" + this.table + "` WHERE `type` = " + USER_TYPE + " ORDER BY `name`, `id`",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                this.statement.setFetchSize(FETCH_SIZE);
+                return new UserIterator(this.statement.executeQuery());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.statement != null) {
+            this.statement.close();
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static final class UserIterator implements Iterator<UserData> {
+        private final ResultSet rs;
+        private boolean hasRow;
+
+        UserIterator(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.hasRow = rs.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.hasRow;
+        }
+
+        @Override
+        public UserData next() {
+            if (!this.hasRow) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                UserData data = new UserData(this.rs.getString(1));
+                do {
+                    String key = this.rs.getString(2);
+                    String value = this.rs.getString(3);
+                    String server = nullToEmpty(this.rs.getString(4));
+                    String world = nullToEmpty(this.rs.getString(5));
+
+                    if (value != null && !value.isEmpty()) {
+                        switch (key) {
+                            case "perms":
+                                data.permissions.add(new PermissionData(value, server, world));
+                                break;
+                            case "groups":
+                                if (server.isEmpty() && world.isEmpty()) {
+                                    data.groups.add(value);
+                                }
+                                break;
+                            case "prefix":
+                                if (server.isEmpty() && world.isEmpty()) {
+                                    data.prefix = value;
+                                }
+                                break;
+                            case "suffix":
+                                if (server.isEmpty() && world.isEmpty()) {
+                                    data.suffix = value;
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+
+                    this.hasRow = this.rs.next();
+                } while (this.hasRow && data.name.equals(this.rs.getString(1)));
+                return data;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The raw data stored for a single user.
+     */
+    public static final class UserData {
+        private final String name;
+        private final List<PermissionData> permissions = new ArrayList<>();
+        private final List<String> groups = new ArrayList<>();
+        private String prefix;
+        private String suffix;
+
+        UserData(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the name the user is stored under. This is their uuid if BungeePerms is using uuids.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        public List<PermissionData> getPermissions() {
+            return this.permissions;
+        }
+
+        public List<String> getGroups() {
+            return this.groups;
+        }
+
+        public String getPrefix() {
+            return this.prefix;
+        }
+
+        public String getSuffix() {
+            return this.suffix;
+        }
+    }
+
+    public static final class PermissionData {
+        private final String permission;
+        private final String server;
+        private final String world;
+
+        PermissionData(String permission, String server, String world) {
+            this.permission = permission;
+            this.server = server;
+            this.world = world;
+        }
+
+        public String getPermission() {
+            return this.permission;
+        }
+
+        /**
+         * Gets the server the permission applies on, or an empty string if it is global.
+         *
+         * @return the server
+         */
+        public String getServer() {
+            return this.server;
+        }
+
+        /**
+         * Gets the world the permission applies in, or an empty string if it applies in every world.
+         *
+         * @return the world
+         */
+        public String getWorld() {
+            return this.world;
+        }
+    }
+
+}
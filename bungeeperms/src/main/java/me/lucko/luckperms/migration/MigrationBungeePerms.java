@@ -29,11 +29,15 @@ import net.alpenblock.bungeeperms.BungeePerms;
 import net.alpenblock.bungeeperms.Group;
 import net.alpenblock.bungeeperms.PermEntity;
 import net.alpenblock.bungeeperms.Server;
+import net.alpenblock.bungeeperms.User;
 import net.alpenblock.bungeeperms.World;
+import net.alpenblock.bungeeperms.io.BackEnd;
+import net.alpenblock.bungeeperms.uuid.UUIDPlayerDB;
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.LuckPermsProvider;
-import net.luckperms.api.context.DefaultContextKeys;
 import net.luckperms.api.model.PermissionHolder;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeBuilder;
 import net.luckperms.api.node.types.InheritanceNode;
 import net.luckperms.api.node.types.PrefixNode;
 import net.luckperms.api.node.types.SuffixNode;
@@ -43,11 +47,29 @@ import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.Plugin;
 
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public final class MigrationBungeePerms extends Plugin {
+    private static final int USER_PAGE_SIZE = 500;
+    private static final int MAX_WRITES_IN_FLIGHT = 64;
+
     private LuckPerms luckPerms;
 
     @Override
@@ -71,93 +93,239 @@ public final class MigrationBungeePerms extends Plugin {
 
         @Override
         public void execute(CommandSender sender, String[] args) {
-            log(sender, "Starting.");
+            // run off the command thread, so the proxy doesn't stall while the data is migrated
+            getProxy().getScheduler().runAsync(MigrationBungeePerms.this, () -> runMigration(sender));
+        }
+    }
+
+    private void runMigration(CommandSender sender) {
+        log(sender, "Starting.");
+
+        // Get BungeePerms instance
+        BungeePerms bp = BungeePerms.getInstance();
+        if (bp == null) {
+            log(sender, "Plugin not loaded.");
+            return;
+        }
+
+        BackEnd backEnd = bp.getPermissionsManager().getBackEnd();
+        List<Group> groups = backEnd.loadGroups();
+
+        log(sender, "Calculating group weightings.");
+        int i = 0;
+        for (Group group : groups) {
+            i = Math.max(i, group.getRank());
+        }
+        int maxWeight = i + 5;
+
+        // Migrate all groups.
+        log(sender, "Starting group migration.");
+        AtomicInteger groupCount = new AtomicInteger(0);
+        Iterators.tryIterate(groups, g -> {
+            int groupWeight = maxWeight - g.getRank();
+
+            // Make a LuckPerms group for the one being migrated
+            String groupName = MigrationUtils.standardizeName(g.getName());
+            net.luckperms.api.model.group.Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
 
-            // Get BungeePerms instance
-            BungeePerms bp = BungeePerms.getInstance();
-            if (bp == null) {
-                log(sender, "Plugin not loaded.");
-                return;
+            MigrationUtils.setGroupWeight(group, groupWeight);
+            migrateHolder(g, g.getInheritances(), groupWeight, group);
+
+            this.luckPerms.getGroupManager().saveGroup(group);
+            log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+        });
+        log(sender, "Migrated " + groupCount.get() + " groups");
+
+        // Migrate all users.
+        log(sender, "Starting user migration.");
+        AtomicInteger userCount = new AtomicInteger(0);
+
+        // Increment the max weight from the group migrations. All user meta should override.
+        int userWeight = maxWeight + 5;
+
+        // Users are read a page at a time, and written with a bounded number of saves in flight.
+        WritePipeline pipeline = new WritePipeline(MAX_WRITES_IN_FLIGHT);
+        try {
+            boolean migrated = false;
+            if (backEnd.getType().name().toLowerCase().startsWith("mysql")) {
+                migrated = migrateSqlUsers(sender, pipeline, userWeight, userCount);
             }
 
-            List<Group> groups = bp.getPermissionsManager().getBackEnd().loadGroups();
+            if (!migrated) {
+                List<String> userIds = backEnd.getRegisteredUsers();
+                for (int start = 0; start < userIds.size(); start += USER_PAGE_SIZE) {
+                    List<User> page = new ArrayList<>();
+                    Iterators.tryIterate(userIds.subList(start, Math.min(start + USER_PAGE_SIZE, userIds.size())), id -> {
+                        UUID uuid = Uuids.parse(id);
+                        User u = uuid != null ? backEnd.loadUser(uuid) : backEnd.loadUser(id);
+                        if (u != null) {
+                            page.add(u);
+                        }
+                    });
+
+                    for (User u : page) {
+                        if (u.getUUID() == null) {
+                            log(sender, "Could not parse UUID for user: " + u.getName());
+                            continue;
+                        }
 
-            log(sender, "Calculating group weightings.");
-            int i = 0;
-            for (Group group : groups) {
-                i = Math.max(i, group.getRank());
+                        submitUser(sender, pipeline, u.getUUID(), u.getName(), user -> migrateHolder(u, u.getGroupsString(), userWeight, user), userCount);
+                    }
+                }
             }
-            int maxWeight = i + 5;
 
-            // Migrate all groups.
-            log(sender, "Starting group migration.");
-            AtomicInteger groupCount = new AtomicInteger(0);
-            Iterators.tryIterate(groups, g -> {
-                int groupWeight = maxWeight - g.getRank();
+            pipeline.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(sender, "Interrupted while migrating users.");
+            return;
+        }
+
+        log(sender, "Migrated " + userCount.get() + " users.");
+        log(sender, "Success! Migration complete.");
+        log(sender, "Don't forget to remove the BungeePerms jar from your plugins folder & restart the server. " +
+                "LuckPerms may not take over as the server permission handler until this is done.");
+    }
 
-                // Make a LuckPerms group for the one being migrated
-                String groupName = MigrationUtils.standardizeName(g.getName());
-                net.luckperms.api.model.group.Group group = luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+    private boolean migrateSqlUsers(CommandSender sender, WritePipeline pipeline, int userWeight, AtomicInteger userCount) throws InterruptedException {
+        Plugin plugin = getProxy().getPluginManager().getPlugin("BungeePerms");
+        Map<String, Object> config;
+        try (Reader reader = Files.newBufferedReader(new File(plugin.getDataFolder(), "config.yml").toPath(), StandardCharsets.UTF_8)) {
+            config = YamlSectionReader.asMap(new Yaml().load(reader));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
 
-                MigrationUtils.setGroupWeight(group, groupWeight);
-                migrateHolder(g, g.getInheritances(), groupWeight, group);
+        Map<String, Object> mysql = findSection(config, "mysqlhost");
+        if (mysql == null) {
+            return false;
+        }
 
-                luckPerms.getGroupManager().saveGroup(group);
-                log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
-            });
-            log(sender, "Migrated " + groupCount.get() + " groups");
+        // read users in bulk, instead of having the backend load each one
+        log(sender, "Reading users directly from the BungeePerms database.");
+        String url = "jdbc:mysql://" + mysql.get("mysqlhost") + ":" + mysql.getOrDefault("mysqlport", 3306) + "/" + mysql.get("mysqldb");
+        Map<String, Object> tablePrefixSection = findSection(config, "tablePrefix");
+        String tablePrefix = tablePrefixSection == null ? "bungeeperms_" : String.valueOf(tablePrefixSection.get("tablePrefix"));
 
-            // Migrate all users.
-            log(sender, "Starting user migration.");
-            AtomicInteger userCount = new AtomicInteger(0);
+        UUIDPlayerDB playerDb = BungeePerms.getInstance().getPermissionsManager().getUUIDPlayerDB();
+        boolean started = false;
+        try (Connection connection = MigrationUtils.openStreamingConnection(url, String.valueOf(mysql.get("mysqluser")), String.valueOf(mysql.get("mysqlpw")));
+             BungeePermsSqlReader reader = new BungeePermsSqlReader(connection, tablePrefix + "permissions2")) {
+            // the query runs here, so the backend is only used instead if it fails
+            Iterator<BungeePermsSqlReader.UserData> users = reader.users().iterator();
+            started = true;
 
-            // Increment the max weight from the group migrations. All user meta should override.
-            int userWeight = maxWeight + 5;
+            while (users.hasNext()) {
+                BungeePermsSqlReader.UserData data = users.next();
+                // users are stored by name, unless BungeePerms is using uuids
+                UUID uuid = Uuids.parse(data.getName());
+                String name;
+                if (uuid != null) {
+                    name = playerDb.getPlayerName(uuid);
+                } else {
+                    name = data.getName();
+                    uuid = playerDb.getUUID(name);
+                }
 
-            Iterators.tryIterate(bp.getPermissionsManager().getBackEnd().loadUsers(), u -> {
-                if (u.getUUID() == null) {
-                    log(sender, "Could not parse UUID for user: " + u.getName());
-                    return;
+                if (uuid == null) {
+                    log(sender, "Could not find UUID for user: " + data.getName());
+                    continue;
                 }
 
-                // Make a LuckPerms user for the one being migrated.
-                net.luckperms.api.model.user.User user = luckPerms.getUserManager().loadUser(u.getUUID(), u.getName()).join();
+                submitUser(sender, pipeline, uuid, name, user -> migrateUser(data, userWeight, user), userCount);
+            }
+        } catch (SQLException | RuntimeException e) {
+            // the reader rethrows query errors unchecked
+            e.printStackTrace();
+            if (started) {
+                // the users already submitted aren't migrated a second time
+                log(sender, "Reading the BungeePerms database failed part way through, so the remaining users were not migrated.");
+                return true;
+            }
+            log(sender, "Unable to read the BungeePerms database, loading users through the backend instead.");
+            return false;
+        }
+
+        return true;
+    }
 
-                migrateHolder(u, u.getGroupsString(), userWeight, user);
+    private void submitUser(CommandSender sender, WritePipeline pipeline, UUID uuid, String name, Consumer<net.luckperms.api.model.user.User> migrate, AtomicInteger userCount) throws InterruptedException {
+        pipeline.submit(() -> this.luckPerms.getUserManager().loadUser(uuid, name).thenCompose(user -> {
+            // Make a LuckPerms user for the one being migrated.
+            migrate.accept(user);
 
-                luckPerms.getUserManager().saveUser(user);
-                luckPerms.getUserManager().cleanupUser(user);
+            return this.luckPerms.getUserManager().saveUser(user).thenRun(() -> {
+                this.luckPerms.getUserManager().cleanupUser(user);
                 if (userCount.incrementAndGet() % 500 == 0) {
                     log(sender, "Migrated " + userCount.get() + " users so far.");
                 }
             });
+        }));
+    }
+
+    private static Map<String, Object> findSection(Map<String, Object> section, String key) {
+        if (section.containsKey(key)) {
+            return section;
+        }
+        for (Object value : section.values()) {
+            Map<String, Object> found = findSection(YamlSectionReader.asMap(value), key);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
 
-            log(sender, "Migrated " + userCount.get() + " users.");
-            log(sender, "Success! Migration complete.");
-            log(sender, "Don't forget to remove the BungeePerms jar from your plugins folder & restart the server. " +
-                    "LuckPerms may not take over as the server permission handler until this is done.");
+    private static void migrateUser(BungeePermsSqlReader.UserData data, int weight, PermissionHolder holder) {
+        Set<Node> nodes = new LinkedHashSet<>();
+
+        // Migrate global, per-server and per-world perms
+        for (BungeePermsSqlReader.PermissionData perm : data.getPermissions()) {
+            NodeBuilder<?, ?> builder = MigrationUtils.parseNode(perm.getPermission(), true);
+            if (!perm.getServer().isEmpty()) {
+                builder.withContext(ContextCache.of(perm.getServer(), perm.getWorld()));
+            }
+            nodes.add(builder.build());
+        }
+
+        // Migrate any parent groups
+        for (String inherit : data.getGroups()) {
+            nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(inherit)).build());
+        }
+
+        // Migrate prefix and suffix
+        if (data.getPrefix() != null) {
+            nodes.add(PrefixNode.builder(data.getPrefix(), weight).build());
+        }
+        if (data.getSuffix() != null) {
+            nodes.add(SuffixNode.builder(data.getSuffix(), weight).build());
         }
+
+        MigrationUtils.addNodes(holder, nodes);
     }
 
     private static void migrateHolder(PermEntity entity, List<String> parents, int weight, PermissionHolder holder) {
+        Set<Node> nodes = new LinkedHashSet<>();
+
         // Migrate global perms
         for (String perm : entity.getPerms()) {
             if (perm.isEmpty()) continue;
-            holder.data().add(MigrationUtils.parseNode(perm, true).build());
+            nodes.add(MigrationUtils.parseNode(perm, true).build());
         }
 
         // Migrate per-server perms
         for (Map.Entry<String, Server> e : entity.getServers().entrySet()) {
             for (String perm : e.getValue().getPerms()) {
                 if (perm.isEmpty()) continue;
-                holder.data().add(MigrationUtils.parseNode(perm, true).withContext(DefaultContextKeys.SERVER_KEY, e.getKey()).build());
+                nodes.add(MigrationUtils.parseNode(perm, true).withContext(ContextCache.server(e.getKey())).build());
             }
 
             // Migrate per-world perms
             for (Map.Entry<String, World> we : e.getValue().getWorlds().entrySet()) {
                 for (String perm : we.getValue().getPerms()) {
                     if (perm.isEmpty()) continue;
-                    holder.data().add(MigrationUtils.parseNode(perm, true).withContext(DefaultContextKeys.SERVER_KEY, e.getKey()).withContext(DefaultContextKeys.WORLD_KEY, we.getKey()).build());
+                    nodes.add(MigrationUtils.parseNode(perm, true).withContext(ContextCache.of(e.getKey(), we.getKey())).build());
                 }
             }
         }
@@ -165,7 +333,7 @@ public final class MigrationBungeePerms extends Plugin {
         // Migrate any parent groups
         for (String inherit : parents) {
             if (inherit.isEmpty()) continue;
-            holder.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(inherit)).build());
+            nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(inherit)).build());
         }
 
         // Migrate prefix and suffix
@@ -173,10 +341,12 @@ public final class MigrationBungeePerms extends Plugin {
         String suffix = entity.getSuffix();
 
         if (prefix != null && !prefix.isEmpty()) {
-            holder.data().add(PrefixNode.builder(prefix, weight).build());
+            nodes.add(PrefixNode.builder(prefix, weight).build());
         }
         if (suffix != null && !suffix.isEmpty()) {
-            holder.data().add(SuffixNode.builder(suffix, weight).build());
+            nodes.add(SuffixNode.builder(suffix, weight).build());
         }
+
+        MigrationUtils.addNodes(holder, nodes);
     }
 }
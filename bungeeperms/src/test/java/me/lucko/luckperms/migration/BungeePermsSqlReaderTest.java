@@ -0,0 +1,140 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BungeePermsSqlReaderTest {
+    private static final String TABLE = "bungeeperms_permissions2";
+    private static final int USER = 0;
+    private static final int GROUP = 1;
+
+    private Connection connection;
+
+    @Before
+    public void setup() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:bungeeperms;MODE=MySQL");
+        try (Statement s = this.connection.createStatement()) {
+            s.execute("CREATE TABLE `" + TABLE + "` (`id` INT AUTO_INCREMENT PRIMARY KEY, `name` VARCHAR(64), `type` TINYINT, `key` VARCHAR(256), `value` VARCHAR(256), `server` VARCHAR(64), `world` VARCHAR(64))");
+        }
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.connection.close();
+    }
+
+    private void insert(String name, int type, String key, String value, String server, String world) throws SQLException {
+        try (PreparedStatement s = this.connection.prepareStatement("INSERT INTO `" + TABLE + "` (`name`, `type`, `key`, `value`, `server`, `world`) VALUES (?, ?, ?, ?, ?, ?)")) {
+            s.setString(1, name);
+            s.setInt(2, type);
+            s.setString(3, key);
+            s.setString(4, value);
+            s.setString(5, server);
+            s.setString(6, world);
+            s.executeUpdate();
+        }
+    }
+
+    private List<BungeePermsSqlReader.UserData> readUsers() throws SQLException {
+        List<BungeePermsSqlReader.UserData> users = new ArrayList<>();
+        try (BungeePermsSqlReader reader = new BungeePermsSqlReader(this.connection, TABLE)) {
+            reader.users().forEach(users::add);
+        }
+        return users;
+    }
+
+    private static List<String> permissions(BungeePermsSqlReader.UserData user) {
+        List<String> permissions = new ArrayList<>();
+        for (BungeePermsSqlReader.PermissionData perm : user.getPermissions()) {
+            permissions.add(perm.getPermission() + "@" + perm.getServer() + "/" + perm.getWorld());
+        }
+        return permissions;
+    }
+
+    @Test
+    public void readsEachUsersRows() throws SQLException {
+        // rows for different users are interleaved
+        insert("bob", USER, "perms", "a.b", null, null);
+        insert("alice", USER, "groups", "admin", null, null);
+        insert("alice", USER, "perms", "-c.d", "lobby", "world");
+        insert("bob", USER, "prefix", "[B]", null, null);
+        insert("alice", USER, "perms", "e.f", "lobby", null);
+        insert("bob", USER, "suffix", "[S]", "", "");
+        insert("staff", GROUP, "perms", "g", null, null);
+
+        List<BungeePermsSqlReader.UserData> users = readUsers();
+        assertEquals(2, users.size());
+
+        BungeePermsSqlReader.UserData alice = users.get(0);
+        assertEquals("alice", alice.getName());
+        assertEquals(Collections.singletonList("admin"), alice.getGroups());
+        assertEquals(Arrays.asList("-c.d@lobby/world", "e.f@lobby/"), permissions(alice));
+        assertNull(alice.getPrefix());
+
+        BungeePermsSqlReader.UserData bob = users.get(1);
+        assertEquals("bob", bob.getName());
+        assertEquals(Collections.singletonList("a.b@/"), permissions(bob));
+        assertTrue(bob.getGroups().isEmpty());
+        assertEquals("[B]", bob.getPrefix());
+        assertEquals("[S]", bob.getSuffix());
+    }
+
+    @Test
+    public void skipsEmptyAndScopedValues() throws SQLException {
+        insert("bob", USER, "perms", "", null, null);
+        insert("bob", USER, "groups", "vip", "lobby", null);
+        insert("bob", USER, "prefix", "[L]", "lobby", null);
+        insert("bob", USER, "display", "Bob", null, null);
+
+        List<BungeePermsSqlReader.UserData> users = readUsers();
+        assertEquals(1, users.size());
+        assertTrue(users.get(0).getPermissions().isEmpty());
+        assertTrue(users.get(0).getGroups().isEmpty());
+        assertNull(users.get(0).getPrefix());
+    }
+
+    @Test
+    public void readsNothingFromAnEmptyTable() throws SQLException {
+        assertTrue(readUsers().isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads bPermissions' data folder, in the same way as the bPermissions migration plugin.
+ *
+ * <p>Child permissions are registered by other plugins at runtime, so they can't be expanded
+ * here; only the permissions written in the files are exported.</p>
+ */
+public final class BPermissionsSource implements ExportSource {
+    private final File directory;
+
+    public BPermissionsSource(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void read(ExportData data, ExecutorService executor, MigrationReport report) throws Exception {
+        BPermissionsYamlReader reader = new BPermissionsYamlReader(this.directory);
+
+        List<String> worlds = new ArrayList<>();
+        File[] folders = this.directory.listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                if (new File(folder, "groups.yml").exists() || new File(folder, "users.yml").exists()) {
+                    worlds.add(folder.getName());
+                }
+            }
+        }
+        if (worlds.isEmpty()) {
+            throw new IllegalArgumentException("No bPermissions worlds found in " + this.directory);
+        }
+        worlds.sort(null);
+
+        // each world folder is independent, so they are read in parallel
+        List<CompletableFuture<Map<String, Integer>>> weights = new ArrayList<>();
+        for (String world : worlds) {
+            weights.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readWorld(reader, world, data, report);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, executor));
+        }
+
+        // apply the group weights in world order, so later worlds win as in the plugin
+        for (CompletableFuture<Map<String, Integer>> world : weights) {
+            for (Map.Entry<String, Integer> weight : world.join().entrySet()) {
+                data.setGroupWeight(weight.getKey(), weight.getValue());
+            }
+        }
+    }
+
+    private Map<String, Integer> readWorld(BPermissionsYamlReader reader, String world, ExportData data, MigrationReport report) throws IOException {
+        String defaultGroup = readDefaultGroup(world);
+
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        reader.readGroups(world, group -> {
+            String groupName = groupName(defaultGroup, group.getName());
+            weights.put(groupName, group.getPriority());
+            addNodes(data.group(groupName), world, defaultGroup, group);
+            report.increment("Groups read");
+        });
+
+        reader.readUsers(world, user -> {
+            // names can't be resolved to uuids without a server
+            UUID uuid = Uuids.parse(user.getName());
+            if (uuid == null) {
+                report.increment("Users without a uuid skipped");
+                return;
+            }
+
+            addNodes(data.user(uuid).getNodes(), world, defaultGroup, user);
+            report.increment("Users read");
+        });
+        return weights;
+    }
+
+    private String readDefaultGroup(String world) throws IOException {
+        File file = new File(new File(this.directory, world), "groups.yml");
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Object defaultGroup = YamlSectionReader.asMap(new Yaml().load(reader)).get("default");
+            return defaultGroup == null ? null : defaultGroup.toString();
+        }
+    }
+
+    private static String groupName(String defaultGroup, String name) {
+        if (name.equalsIgnoreCase(defaultGroup)) {
+            return "default";
+        }
+        return MigrationUtils.standardizeName(name);
+    }
+
+    private static void addNodes(Collection<ExportNode> nodes, String world, String defaultGroup, BPermissionsYamlReader.CalculableData c) {
+        NodeConversions.bPermissionsHolder(c.getPermissions(), c.getGroups(), c.getMeta(), c.getPriority(), name -> groupName(defaultGroup, name),
+                NodeConversions::noChildren, new ExportNodeFactory(world), nodes::add);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The groups, tracks and users to be exported.
+ *
+ * <p>Sources may add to the data from several threads at once.</p>
+ */
+public final class ExportData {
+    private final Map<String, Set<ExportNode>> groups = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> tracks = new ConcurrentHashMap<>();
+    private final Map<UUID, ExportUser> users = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the nodes of a group, creating the group if it doesn't exist yet.
+     *
+     * @param name the standardized name of the group
+     * @return the group's nodes
+     */
+    public Set<ExportNode> group(String name) {
+        return this.groups.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Replaces the weight of a group.
+     *
+     * @param name the standardized name of the group
+     * @param weight the weight
+     */
+    public void setGroupWeight(String name, int weight) {
+        Set<ExportNode> nodes = group(name);
+        nodes.removeIf(n -> n.getType().equals("weight"));
+        nodes.add(ExportNode.weight(weight).build());
+    }
+
+    public void track(String name, List<String> groups) {
+        this.tracks.put(name, new ArrayList<>(groups));
+    }
+
+    /**
+     * Gets a user, creating it if it doesn't exist yet.
+     *
+     * @param uuid the uuid of the user
+     * @return the user
+     */
+    public ExportUser user(UUID uuid) {
+        return this.users.computeIfAbsent(uuid, u -> new ExportUser());
+    }
+
+    public Map<String, Set<ExportNode>> getGroups() {
+        return this.groups;
+    }
+
+    public Map<String, List<String>> getTracks() {
+        return this.tracks;
+    }
+
+    public Map<UUID, ExportUser> getUsers() {
+        return this.users;
+    }
+
+    public static final class ExportUser {
+        private final Set<ExportNode> nodes = ConcurrentHashMap.newKeySet();
+        private volatile String username;
+        private volatile String primaryGroup;
+
+        public Set<ExportNode> getNodes() {
+            return this.nodes;
+        }
+
+        public String getUsername() {
+            return this.username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public String getPrimaryGroup() {
+            return this.primaryGroup;
+        }
+
+        public void setPrimaryGroup(String primaryGroup) {
+            this.primaryGroup = primaryGroup;
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A node in the LuckPerms export format.
+ *
+ * <p>The LuckPerms API node builders need a running LuckPerms instance, so the standalone
+ * runner uses this plain model instead. Keys are built in the same format as LuckPerms.</p>
+ */
+public final class ExportNode implements Comparable<ExportNode> {
+    private final String type;
+    private final String key;
+    private final boolean value;
+    private final long expiry;
+    private final SortedMap<String, SortedSet<String>> context;
+    private final int hashCode;
+
+    private ExportNode(String type, String key, boolean value, long expiry, SortedMap<String, SortedSet<String>> context) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+        this.expiry = expiry;
+        this.context = context;
+        this.hashCode = Objects.hash(key, value, expiry, context);
+    }
+
+    static Builder builder(String type, String key) {
+        return new Builder(type, key);
+    }
+
+    public static Builder builder(String permission) {
+        return new Builder("permission", permission);
+    }
+
+    /**
+     * Creates a permission node, parsing a leading '-', '!' or '+' in the same way as
+     * {@link MigrationUtils#parseNode(String, boolean)}.
+     *
+     * @param permission the permission
+     * @param value the value, if the permission doesn't specify one
+     * @return the builder
+     */
+    public static Builder permission(String permission, boolean value) {
+        return MigrationUtils.parsePermission(permission, value, (p, v) -> builder(p).value(v));
+    }
+
+    public static Builder inheritance(String group) {
+        return new Builder("inheritance", "group." + group);
+    }
+
+    public static Builder prefix(int priority, String prefix) {
+        return new Builder("prefix", "prefix." + priority + "." + escape(prefix));
+    }
+
+    public static Builder suffix(int priority, String suffix) {
+        return new Builder("suffix", "suffix." + priority + "." + escape(suffix));
+    }
+
+    public static Builder meta(String key, String value) {
+        return new Builder("meta", "meta." + escape(key) + "." + escape(value));
+    }
+
+    public static Builder weight(int weight) {
+        return new Builder("weight", "weight." + weight);
+    }
+
+    // the same characters LuckPerms escapes in meta, prefix and suffix keys
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.' || c == '/' || c == '-' || c == '$') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public String getType() {
+        return this.type;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public boolean getValue() {
+        return this.value;
+    }
+
+    /**
+     * Gets the time the node expires, in epoch seconds, or 0 if it is permanent.
+     *
+     * @return the expiry
+     */
+    public long getExpiry() {
+        return this.expiry;
+    }
+
+    public Map<String, SortedSet<String>> getContext() {
+        return Collections.unmodifiableSortedMap(this.context);
+    }
+
+    @Override
+    public int compareTo(ExportNode other) {
+        int i = this.key.compareTo(other.key);
+        if (i != 0) return i;
+        i = Boolean.compare(this.value, other.value);
+        if (i != 0) return i;
+        i = Long.compare(this.expiry, other.expiry);
+        if (i != 0) return i;
+        return this.context.toString().compareTo(other.context.toString());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ExportNode)) return false;
+        ExportNode other = (ExportNode) o;
+        return this.key.equals(other.key) && this.value == other.value && this.expiry == other.expiry && this.context.equals(other.context);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return this.key + "=" + this.value + (this.expiry == 0 ? "" : " expiry=" + this.expiry) + (this.context.isEmpty() ? "" : " " + this.context);
+    }
+
+    public static final class Builder {
+        private final String type;
+        private final String key;
+        private boolean value = true;
+        private long expiry = 0L;
+        private final SortedMap<String, SortedSet<String>> context = new TreeMap<>();
+
+        private Builder(String type, String key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        public Builder value(boolean value) {
+            this.value = value;
+            return this;
+        }
+
+        public Builder expiry(long expiry) {
+            this.expiry = expiry;
+            return this;
+        }
+
+        /**
+         * Adds a context. As with LuckPerms' own node builders, a "global" server or world
+         * is left out, since the node applies everywhere.
+         *
+         * @param key the context key
+         * @param value the context value
+         * @return this builder
+         */
+        public Builder withContext(String key, String value) {
+            if ((key.equals("server") || key.equals("world")) && ContextCache.isGlobal(value)) {
+                return this;
+            }
+            this.context.computeIfAbsent(key, k -> new TreeSet<>()).add(value);
+            return this;
+        }
+
+        public Builder withContext(String key, Set<String> values) {
+            for (String value : values) {
+                withContext(key, value);
+            }
+            return this;
+        }
+
+        public ExportNode build() {
+            SortedMap<String, SortedSet<String>> context = new TreeMap<>();
+            for (Map.Entry<String, SortedSet<String>> entry : this.context.entrySet()) {
+                context.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+            }
+            return new ExportNode(this.type, this.key, this.value, this.expiry, context);
+        }
+    }
+
+}
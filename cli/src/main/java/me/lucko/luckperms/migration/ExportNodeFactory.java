@@ -0,0 +1,75 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Creates export nodes in a fixed set of worlds.
+ */
+public final class ExportNodeFactory implements NodeFactory<ExportNode> {
+    private final Set<String> worlds;
+
+    /**
+     * Creates a factory for nodes which apply in any of the given worlds.
+     *
+     * @param worlds the worlds, or an empty set for nodes which apply everywhere
+     */
+    public ExportNodeFactory(Set<String> worlds) {
+        this.worlds = worlds;
+    }
+
+    public ExportNodeFactory(String world) {
+        this(Collections.singleton(world));
+    }
+
+    @Override
+    public ExportNode permission(String permission, boolean value) {
+        return ExportNode.builder(permission).value(value).withContext("world", this.worlds).build();
+    }
+
+    @Override
+    public ExportNode inheritance(String group) {
+        return ExportNode.inheritance(group).withContext("world", this.worlds).build();
+    }
+
+    @Override
+    public ExportNode prefix(int priority, String prefix) {
+        return ExportNode.prefix(priority, prefix).withContext("world", this.worlds).build();
+    }
+
+    @Override
+    public ExportNode suffix(int priority, String suffix) {
+        return ExportNode.suffix(priority, suffix).withContext("world", this.worlds).build();
+    }
+
+    @Override
+    public ExportNode meta(String key, String value) {
+        return ExportNode.meta(key, value).withContext("world", this.worlds).build();
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Saves {@link ExportData} to a compact binary snapshot, so a source can be read once and
+ * migrated again without the source plugin.
+ *
+ * <p>The file is laid out as:</p>
+ * <ul>
+ *     <li>a header, with a magic number and the format version</li>
+ *     <li>a string table, which every other section refers to by index</li>
+ *     <li>a node table, as nodes are shared by many users and groups</li>
+ *     <li>the groups and tracks</li>
+ *     <li>the users, sorted by uuid and split into blocks</li>
+ *     <li>a footer, indexing the sections and the first uuid of each user block</li>
+ * </ul>
+ *
+ * <p>Counts and indexes are written as varints. Snapshots are memory mapped when read, and
+ * the user blocks are decoded in parallel straight from the mapping.</p>
+ */
+public final class ExportSnapshot {
+    private static final int MAGIC = 0x4C504D53; // LPMS
+    private static final int VERSION = 1;
+
+    private static final int USERS_PER_BLOCK = 8192;
+
+    // 5 section offsets, the footer's magic and the number of user blocks
+    private static final int TRAILER_SIZE = 5 * Long.BYTES + 2 * Integer.BYTES;
+    // first uuid, offset and user count
+    private static final int BLOCK_INDEX_SIZE = 3 * Long.BYTES + Integer.BYTES;
+
+    private static final int FLAG_VALUE = 1;
+    private static final int FLAG_EXPIRY = 2;
+
+    private ExportSnapshot() {}
+
+    public static void write(ExportData data, Path path) throws IOException {
+        List<Map.Entry<UUID, ExportData.ExportUser>> users = new ArrayList<>(data.getUsers().entrySet());
+        users.sort(Map.Entry.comparingByKey());
+
+        // build the string and node tables first, so the sections can refer to them
+        Table<String> strings = new Table<>();
+        Table<ExportNode> nodes = new Table<>();
+        for (Map.Entry<String, Set<ExportNode>> group : data.getGroups().entrySet()) {
+            strings.add(group.getKey());
+            addNodes(group.getValue(), strings, nodes);
+        }
+        for (Map.Entry<String, List<String>> track : data.getTracks().entrySet()) {
+            strings.add(track.getKey());
+            track.getValue().forEach(strings::add);
+        }
+        for (Map.Entry<UUID, ExportData.ExportUser> user : users) {
+            if (user.getValue().getUsername() != null) strings.add(user.getValue().getUsername());
+            if (user.getValue().getPrimaryGroup() != null) strings.add(user.getValue().getPrimaryGroup());
+            addNodes(user.getValue().getNodes(), strings, nodes);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            long stringsOffset = out.size();
+            writeVarInt(out, strings.values.size());
+            for (String s : strings.values) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+
+            long nodesOffset = out.size();
+            writeVarInt(out, nodes.values.size());
+            for (ExportNode node : nodes.values) {
+                writeVarInt(out, strings.indexOf(node.getType()));
+                writeVarInt(out, strings.indexOf(node.getKey()));
+                out.writeByte((node.getValue() ? FLAG_VALUE : 0) | (node.getExpiry() != 0L ? FLAG_EXPIRY : 0));
+                if (node.getExpiry() != 0L) {
+                    writeVarLong(out, node.getExpiry());
+                }
+                writeVarInt(out, node.getContext().size());
+                for (Map.Entry<String, SortedSet<String>> context : node.getContext().entrySet()) {
+                    writeVarInt(out, strings.indexOf(context.getKey()));
+                    writeVarInt(out, context.getValue().size());
+                    for (String value : context.getValue()) {
+                        writeVarInt(out, strings.indexOf(value));
+                    }
+                }
+            }
+
+            long groupsOffset = out.size();
+            writeVarInt(out, data.getGroups().size());
+            for (Map.Entry<String, Set<ExportNode>> group : new TreeMap<>(data.getGroups()).entrySet()) {
+                writeVarInt(out, strings.indexOf(group.getKey()));
+                writeNodes(out, group.getValue(), nodes);
+            }
+
+            writeVarInt(out, data.getTracks().size());
+            for (Map.Entry<String, List<String>> track : new TreeMap<>(data.getTracks()).entrySet()) {
+                writeVarInt(out, strings.indexOf(track.getKey()));
+                writeVarInt(out, track.getValue().size());
+                for (String group : track.getValue()) {
+                    writeVarInt(out, strings.indexOf(group));
+                }
+            }
+
+            long usersOffset = out.size();
+            List<long[]> blocks = new ArrayList<>();
+            for (int i = 0; i < users.size(); i++) {
+                UUID uuid = users.get(i).getKey();
+                ExportData.ExportUser user = users.get(i).getValue();
+                if (i % USERS_PER_BLOCK == 0) {
+                    blocks.add(new long[]{uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), out.size(), Math.min(USERS_PER_BLOCK, users.size() - i)});
+                }
+
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                // 0 is used for a missing username or primary group
+                writeVarInt(out, user.getUsername() == null ? 0 : strings.indexOf(user.getUsername()) + 1);
+                writeVarInt(out, user.getPrimaryGroup() == null ? 0 : strings.indexOf(user.getPrimaryGroup()) + 1);
+                writeNodes(out, user.getNodes(), nodes);
+            }
+
+            // the size saturates rather than overflowing, so check the footer's offsets will still fit
+            long footerOffset = out.size();
+            if (footerOffset > Integer.MAX_VALUE - ((long) blocks.size() * BLOCK_INDEX_SIZE + TRAILER_SIZE)) {
+                throw new IOException("Snapshot is too large: " + path);
+            }
+            for (long[] block : blocks) {
+                out.writeLong(block[0]);
+                out.writeLong(block[1]);
+                out.writeLong(block[2]);
+                out.writeInt((int) block[3]);
+            }
+            out.writeLong(stringsOffset);
+            out.writeLong(nodesOffset);
+            out.writeLong(groupsOffset);
+            out.writeLong(usersOffset);
+            out.writeLong(footerOffset);
+            out.writeInt(blocks.size());
+            out.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Reads a snapshot into the given data.
+     *
+     * @param path the snapshot file
+     * @param data the data to read into
+     * @param executor the executor to decode user blocks on
+     * @return the number of users read
+     * @throws IOException if the snapshot can't be read
+     */
+    public static int read(Path path, ExportData data, ExecutorService executor) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.limit() < 2 * Integer.BYTES + TRAILER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(buffer.limit() - Integer.BYTES) != MAGIC) {
+            throw new IOException("Not a snapshot: " + path);
+        }
+        int version = buffer.getInt(Integer.BYTES);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + path);
+        }
+
+        int trailer = buffer.limit() - TRAILER_SIZE;
+        int stringsOffset = (int) buffer.getLong(trailer);
+        int nodesOffset = (int) buffer.getLong(trailer + Long.BYTES);
+        int groupsOffset = (int) buffer.getLong(trailer + 2 * Long.BYTES);
+        int footerOffset = (int) buffer.getLong(trailer + 4 * Long.BYTES);
+        int blockCount = buffer.getInt(trailer + 5 * Long.BYTES);
+
+        ByteBuffer in = buffer.duplicate();
+        in.position(stringsOffset);
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarInt(in);
+            ByteBuffer slice = in.slice();
+            slice.limit(length);
+            strings[i] = StandardCharsets.UTF_8.decode(slice).toString();
+            in.position(in.position() + length);
+        }
+
+        in.position(nodesOffset);
+        ExportNode[] nodes = new ExportNode[readVarInt(in)];
+        for (int i = 0; i < nodes.length; i++) {
+            ExportNode.Builder builder = ExportNode.builder(strings[readVarInt(in)], strings[readVarInt(in)]);
+            int flags = in.get();
+            builder.value((flags & FLAG_VALUE) != 0);
+            if ((flags & FLAG_EXPIRY) != 0) {
+                builder.expiry(readVarLong(in));
+            }
+            int contexts = readVarInt(in);
+            for (int j = 0; j < contexts; j++) {
+                String key = strings[readVarInt(in)];
+                int values = readVarInt(in);
+                for (int k = 0; k < values; k++) {
+                    builder.withContext(key, strings[readVarInt(in)]);
+                }
+            }
+            nodes[i] = builder.build();
+        }
+
+        in.position(groupsOffset);
+        int groups = readVarInt(in);
+        for (int i = 0; i < groups; i++) {
+            String name = strings[readVarInt(in)];
+            readNodes(in, nodes, data.group(name));
+        }
+
+        int tracks = readVarInt(in);
+        for (int i = 0; i < tracks; i++) {
+            String name = strings[readVarInt(in)];
+            String[] trackGroups = new String[readVarInt(in)];
+            for (int j = 0; j < trackGroups.length; j++) {
+                trackGroups[j] = strings[readVarInt(in)];
+            }
+            data.track(name, Arrays.asList(trackGroups));
+        }
+
+        // each block is independent, so they are decoded in parallel
+        List<CompletableFuture<Void>> futures = new ArrayList<>(blockCount);
+        int users = 0;
+        for (int i = 0; i < blockCount; i++) {
+            int index = footerOffset + i * BLOCK_INDEX_SIZE;
+            int offset = (int) buffer.getLong(index + 2 * Long.BYTES);
+            int count = buffer.getInt(index + 3 * Long.BYTES);
+            users += count;
+
+            ByteBuffer block = buffer.duplicate();
+            block.position(offset);
+            futures.add(CompletableFuture.runAsync(() -> readUsers(block, count, strings, nodes, data), executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        return users;
+    }
+
+    private static void readUsers(ByteBuffer in, int count, String[] strings, ExportNode[] nodes, ExportData data) {
+        for (int i = 0; i < count; i++) {
+            ExportData.ExportUser user = data.user(new UUID(in.getLong(), in.getLong()));
+            int username = readVarInt(in);
+            if (username != 0) {
+                user.setUsername(strings[username - 1]);
+            }
+            int primaryGroup = readVarInt(in);
+            if (primaryGroup != 0) {
+                user.setPrimaryGroup(strings[primaryGroup - 1]);
+            }
+            readNodes(in, nodes, user.getNodes());
+        }
+    }
+
+    private static void addNodes(Set<ExportNode> nodes, Table<String> strings, Table<ExportNode> table) {
+        for (ExportNode node : nodes) {
+            if (table.add(node)) {
+                strings.add(node.getType());
+                strings.add(node.getKey());
+                for (Map.Entry<String, SortedSet<String>> context : node.getContext().entrySet()) {
+                    strings.add(context.getKey());
+                    context.getValue().forEach(strings::add);
+                }
+            }
+        }
+    }
+
+    private static void writeNodes(DataOutputStream out, Set<ExportNode> nodes, Table<ExportNode> table) throws IOException {
+        writeVarInt(out, nodes.size());
+        for (ExportNode node : nodes) {
+            writeVarInt(out, table.indexOf(node));
+        }
+    }
+
+    private static void readNodes(ByteBuffer in, ExportNode[] table, Set<ExportNode> nodes) {
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            nodes.add(table[readVarInt(in)]);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Assigns each distinct value an index, in the order they are first added.
+     */
+    private static final class Table<T> {
+        private final Map<T, Integer> indexes = new HashMap<>();
+        private final List<T> values = new ArrayList<>();
+
+        boolean add(T value) {
+            if (this.indexes.putIfAbsent(value, this.values.size()) == null) {
+                this.values.add(value);
+                return true;
+            }
+            return false;
+        }
+
+        int indexOf(T value) {
+            return this.indexes.get(value);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Writes an {@link ExportData} as a gzipped LuckPerms export file, which can be loaded with
+ * {@code /lp import}.
+ *
+ * <p>Groups, tracks, users and nodes are written in sorted order, so the same input always
+ * produces the same file.</p>
+ *
+ * <p>Each entity is serialized straight to the output as it is reached, and the output is
+ * compressed on several threads by a {@link ParallelGzipOutputStream}.</p>
+ */
+public final class ExportWriter {
+    private ExportWriter() {}
+
+    public static void write(ExportData data, Path file) throws IOException {
+        try (JsonStreamWriter writer = new JsonStreamWriter(new ParallelGzipOutputStream(Files.newOutputStream(file)))) {
+            writer.beginObject();
+
+            writer.name("metadata").beginObject();
+            writer.name("generatedBy").value("luckperms-migration-cli");
+            writer.name("generatedAt").value(Instant.now().toString());
+            writer.endObject();
+
+            writer.name("groups").beginObject();
+            for (Map.Entry<String, ? extends Collection<ExportNode>> group : new TreeMap<>(data.getGroups()).entrySet()) {
+                writer.name(group.getKey()).beginObject();
+                writeNodes(writer, group.getValue());
+                writer.endObject();
+            }
+            writer.endObject();
+
+            writer.name("tracks").beginObject();
+            for (Map.Entry<String, List<String>> track : new TreeMap<>(data.getTracks()).entrySet()) {
+                writer.name(track.getKey()).beginObject();
+                writer.name("groups").beginArray();
+                for (String group : track.getValue()) {
+                    writer.value(group);
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endObject();
+
+            writer.name("users").beginObject();
+            for (Map.Entry<UUID, ExportData.ExportUser> user : new TreeMap<>(data.getUsers()).entrySet()) {
+                writer.name(user.getKey().toString()).beginObject();
+                if (user.getValue().getUsername() != null) {
+                    writer.name("username").value(user.getValue().getUsername());
+                }
+                writer.name("primaryGroup").value(user.getValue().getPrimaryGroup() == null ? "default" : user.getValue().getPrimaryGroup());
+                writeNodes(writer, user.getValue().getNodes());
+                writer.endObject();
+            }
+            writer.endObject();
+
+            writer.endObject();
+        }
+    }
+
+    private static void writeNodes(JsonStreamWriter writer, Collection<ExportNode> nodes) throws IOException {
+        List<ExportNode> sorted = new ArrayList<>(nodes);
+        sorted.sort(null);
+
+        writer.name("nodes").beginArray();
+        for (ExportNode node : sorted) {
+            writer.beginObject();
+            writer.name("type").value(node.getType());
+            writer.name("key").value(node.getKey());
+            writer.name("value").value(node.getValue());
+            if (node.getExpiry() != 0L) {
+                writer.name("expiry").value(node.getExpiry());
+            }
+            if (!node.getContext().isEmpty()) {
+                writer.name("context").beginObject();
+                for (Map.Entry<String, SortedSet<String>> context : node.getContext().entrySet()) {
+                    writer.name(context.getKey());
+                    if (context.getValue().size() == 1) {
+                        writer.value(context.getValue().first());
+                    } else {
+                        writer.beginArray();
+                        for (String value : context.getValue()) {
+                            writer.value(value);
+                        }
+                        writer.endArray();
+                    }
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads GroupManager's data folder, in the same way as the GroupManager migration plugin.
+ */
+public final class GroupManagerSource implements ExportSource {
+    private final File directory;
+    private final boolean migrateAsGlobal;
+
+    public GroupManagerSource(File directory, boolean migrateAsGlobal) {
+        this.directory = directory;
+        this.migrateAsGlobal = migrateAsGlobal;
+    }
+
+    @Override
+    public void read(ExportData data, ExecutorService executor, MigrationReport report) throws Exception {
+        GroupManagerYamlReader reader = new GroupManagerYamlReader(this.directory);
+        if (!reader.exists()) {
+            throw new IllegalArgumentException("No GroupManager worlds folder found in " + this.directory);
+        }
+
+        ExportNodeFactory global = new ExportNodeFactory(Collections.emptySet());
+        reader.readGlobalGroups(group -> {
+            // global groups have no variables
+            Set<ExportNode> nodes = data.group(MigrationUtils.standardizeName(group.getName()));
+            NodeConversions.groupManagerHolder(group.getPermissions(), group.getInherits(), Collections.emptyMap(), 50, global, nodes::add);
+            report.increment("Global groups");
+        });
+
+        Map<String, Set<String>> groupMirrors = reader.getMirrors("groups");
+        Map<String, Set<String>> userMirrors = reader.getMirrors("users");
+
+        // each world folder is independent, so they are read in parallel
+        List<CompletableFuture<Map<UUID, String>>> worlds = new ArrayList<>();
+        for (String world : reader.getWorlds()) {
+            Set<String> groupWorlds = worlds(world, groupMirrors);
+            Set<String> userWorlds = worlds(world, userMirrors);
+            worlds.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readWorld(reader, world, groupWorlds, userWorlds, data, report);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, executor));
+        }
+
+        // apply the primary groups in world order, so later worlds win as in the plugin
+        for (CompletableFuture<Map<UUID, String>> world : worlds) {
+            for (Map.Entry<UUID, String> primaryGroup : world.join().entrySet()) {
+                ExportData.ExportUser user = data.user(primaryGroup.getKey());
+                user.getNodes().add(ExportNode.inheritance(primaryGroup.getValue()).build());
+                user.setPrimaryGroup(primaryGroup.getValue());
+            }
+        }
+    }
+
+    private Set<String> worlds(String world, Map<String, Set<String>> mirrors) {
+        // as in the plugin, data migrated as global has no world context
+        if (this.migrateAsGlobal) {
+            return Collections.emptySet();
+        }
+
+        Set<String> worlds = new LinkedHashSet<>();
+        worlds.add(world.toLowerCase());
+        worlds.addAll(mirrors.getOrDefault(world.toLowerCase(), Collections.emptySet()));
+        return worlds;
+    }
+
+    private static Map<UUID, String> readWorld(GroupManagerYamlReader reader, String world, Set<String> groupWorlds, Set<String> userWorlds, ExportData data, MigrationReport report) throws Exception {
+        ExportNodeFactory groupFactory = new ExportNodeFactory(groupWorlds);
+        reader.readGroups(world, group -> {
+            Set<ExportNode> nodes = data.group(MigrationUtils.standardizeName(group.getName()));
+            NodeConversions.groupManagerHolder(group.getPermissions(), group.getInherits(), group.getVariables(), 50, groupFactory, nodes::add);
+            report.increment("Groups read");
+        });
+
+        Map<UUID, String> primaryGroups = new HashMap<>();
+        ExportNodeFactory userFactory = new ExportNodeFactory(userWorlds);
+        reader.readUsers(world, user -> {
+            // names can't be resolved to uuids without a server
+            UUID uuid = Uuids.parse(user.getId());
+            if (uuid == null) {
+                report.increment("Users without a uuid skipped");
+                return;
+            }
+
+            ExportData.ExportUser exportUser = data.user(uuid);
+            if (user.getLastName() != null && Uuids.parse(user.getLastName()) == null) {
+                exportUser.setUsername(user.getLastName());
+            }
+
+            NodeConversions.groupManagerHolder(user.getPermissions(), user.getSubGroups(), user.getVariables(), 100, userFactory, exportUser.getNodes()::add);
+            if (user.getGroup() != null) {
+                primaryGroups.put(uuid, MigrationUtils.standardizeName(user.getGroup()));
+            }
+            report.increment("Users read");
+        });
+        return primaryGroups;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts another plugin's data into a LuckPerms export file, without running a server.
+ *
+ * <p>The output can be loaded with {@code /lp import}.</p>
+ */
+public final class MigrationCli {
+    private static final String USAGE = "Usage: java -jar luckperms-migration-cli.jar " +
+            "<groupmanager|bpermissions|permissionsbukkit|zpermissions|snapshot> <input folder, jdbc url or snapshot> <output.json.gz> " +
+            "[--per-world] [--user <user>] [--password <password>] [--snapshot <file>]";
+
+    private MigrationCli() {}
+
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        boolean perWorld = false;
+        String user = null;
+        String password = null;
+        Path snapshot = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--per-world")) {
+                perWorld = true;
+            } else if (arg.equals("--user") && i + 1 < args.length) {
+                user = args[++i];
+            } else if (arg.equals("--password") && i + 1 < args.length) {
+                password = args[++i];
+            } else if (arg.equals("--snapshot") && i + 1 < args.length) {
+                snapshot = Paths.get(args[++i]);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() != 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        String input = positional.get(1);
+        ExportSource source;
+        switch (positional.get(0).toLowerCase()) {
+            case "groupmanager":
+                source = new GroupManagerSource(new File(input), !perWorld);
+                break;
+            case "bpermissions":
+                source = new BPermissionsSource(new File(input));
+                break;
+            case "permissionsbukkit":
+                source = new PermissionsBukkitSource(new File(input));
+                break;
+            case "zpermissions":
+                source = new ZPermissionsSource(input, user, password);
+                break;
+            case "snapshot":
+                source = (data, executor, report) -> report.add("Users read", ExportSnapshot.read(Paths.get(input), data, executor));
+                break;
+            default:
+                System.err.println("Unknown plugin: " + positional.get(0));
+                System.err.println(USAGE);
+                System.exit(1);
+                return;
+        }
+
+        Path output = Paths.get(positional.get(2));
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        MigrationReport report = new MigrationReport();
+        long start = System.currentTimeMillis();
+
+        try {
+            ExportData data = new ExportData();
+            source.read(data, executor, report);
+            if (snapshot != null) {
+                ExportSnapshot.write(data, snapshot);
+                System.out.println("Saved a snapshot to " + snapshot);
+            }
+            ExportWriter.write(data, output);
+
+            System.out.println("Wrote " + data.getGroups().size() + " groups, " + data.getTracks().size() + " tracks and " +
+                    data.getUsers().size() + " users to " + output);
+            report.log(System.out::println);
+            System.out.println("Took " + (System.currentTimeMillis() - start) + "ms. Load the file with /lp import.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads PermissionsBukkit's config.yml, in the same way as the PermissionsBukkit migration plugin.
+ */
+public final class PermissionsBukkitSource implements ExportSource {
+    private final File file;
+
+    public PermissionsBukkitSource(File file) {
+        // accept either the data folder or the config itself
+        this.file = file.isDirectory() ? new File(file, "config.yml") : file;
+    }
+
+    @Override
+    public void read(ExportData data, ExecutorService executor, MigrationReport report) throws Exception {
+        if (!this.file.exists()) {
+            throw new IllegalArgumentException("No PermissionsBukkit config found at " + this.file);
+        }
+
+        // a single file is streamed in order, so there is nothing to spread over the executor
+        new PermissionsBukkitYamlReader(this.file).read(group -> {
+            addNodes(data.group(MigrationUtils.standardizeName(group.getName())), group);
+            report.increment("Groups read");
+        }, user -> {
+            // names can't be resolved to uuids without a server
+            UUID uuid = Uuids.parse(user.getName());
+            if (uuid == null) {
+                report.increment("Users without a uuid skipped");
+                return;
+            }
+
+            addNodes(data.user(uuid).getNodes(), user);
+            report.increment("Users read");
+        });
+    }
+
+    private static void addNodes(Collection<ExportNode> nodes, PermissionsBukkitYamlReader.HolderData data) {
+        for (Map.Entry<String, Boolean> perm : data.getPermissions().entrySet()) {
+            nodes.add(ExportNode.permission(perm.getKey(), perm.getValue()).build());
+        }
+
+        for (Map.Entry<String, Map<String, Boolean>> world : data.getWorldPermissions().entrySet()) {
+            for (Map.Entry<String, Boolean> perm : world.getValue().entrySet()) {
+                nodes.add(ExportNode.permission(perm.getKey(), perm.getValue()).withContext("world", world.getKey()).build());
+            }
+        }
+
+        for (String group : data.getParents()) {
+            nodes.add(ExportNode.inheritance(MigrationUtils.standardizeName(group)).build());
+        }
+    }
+
+}
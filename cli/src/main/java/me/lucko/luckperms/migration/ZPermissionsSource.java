@@ -0,0 +1,141 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the zPermissions database, in the same way as the zPermissions migration plugin.
+ *
+ * <p>Tracks are kept in zPermissions' config rather than the database, so they aren't exported.</p>
+ */
+public final class ZPermissionsSource implements ExportSource {
+    private final String url;
+    private final String user;
+    private final String password;
+
+    public ZPermissionsSource(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    public void read(ExportData data, ExecutorService executor, MigrationReport report) throws Exception {
+        try (Connection connection = MigrationUtils.openStreamingConnection(this.url, this.user, this.password);
+             ZPermissionsSqlReader reader = new ZPermissionsSqlReader(connection)) {
+
+            int maxWeight = 0;
+            for (ZPermissionsSqlReader.EntityData entity : reader.groups()) {
+                String groupName = MigrationUtils.standardizeName(entity.getDisplayName());
+                int weight = entity.getPriority();
+                maxWeight = Math.max(maxWeight, weight);
+
+                addNodes(data.group(groupName), entity, weight);
+                data.setGroupWeight(groupName, weight);
+                report.increment("Groups read");
+            }
+
+            // memberships are ordered by member, then by group priority, so the first
+            // membership which hasn't expired is the primary group
+            long now = System.currentTimeMillis() / 1000L;
+            Set<UUID> primaryGroupChosen = new HashSet<>();
+            for (ZPermissionsSqlReader.MembershipData membership : reader.memberships()) {
+                UUID uuid = Uuids.parse(membership.getMember());
+                if (uuid == null) {
+                    report.increment("Memberships without a uuid skipped");
+                    continue;
+                }
+
+                String groupName = MigrationUtils.standardizeName(membership.getGroup());
+                ExportData.ExportUser user = data.user(uuid);
+                user.getNodes().add(ExportNode.inheritance(groupName).expiry(membership.getExpiry()).build());
+
+                boolean expired = membership.getExpiry() != 0L && membership.getExpiry() <= now;
+                if (!expired && primaryGroupChosen.add(uuid)) {
+                    user.setPrimaryGroup(groupName);
+                }
+                if (user.getUsername() == null) {
+                    user.setUsername(membership.getDisplayName());
+                }
+            }
+
+            int userWeight = maxWeight + 10;
+            for (ZPermissionsSqlReader.EntityData entity : reader.players()) {
+                UUID uuid = Uuids.parse(entity.getName());
+                if (uuid == null) {
+                    report.increment("Users without a uuid skipped");
+                    continue;
+                }
+
+                ExportData.ExportUser user = data.user(uuid);
+                user.setUsername(entity.getDisplayName());
+                addNodes(user.getNodes(), entity, userWeight);
+                report.increment("Users read");
+            }
+        }
+    }
+
+    private static void addNodes(Collection<ExportNode> nodes, ZPermissionsSqlReader.EntityData entity, int weight) {
+        for (ZPermissionsSqlReader.EntryData e : entity.getPermissions()) {
+            if (e.getPermission().isEmpty()) continue;
+
+            ExportNode.Builder builder = ExportNode.builder(e.getPermission()).value(e.getValue());
+            if (e.getWorld() != null && !e.getWorld().isEmpty()) {
+                builder.withContext("world", e.getWorld());
+            }
+            nodes.add(builder.build());
+        }
+
+        for (String inheritance : entity.getParents()) {
+            if (!inheritance.equals(entity.getDisplayName())) {
+                nodes.add(ExportNode.inheritance(MigrationUtils.standardizeName(inheritance)).build());
+            }
+        }
+
+        for (Map.Entry<String, Object> metadata : entity.getMetadata().entrySet()) {
+            String key = metadata.getKey().toLowerCase();
+            String value = metadata.getValue() == null ? "" : metadata.getValue().toString();
+            if (key.isEmpty() || value.isEmpty()) continue;
+
+            if (key.equals("prefix")) {
+                nodes.add(ExportNode.prefix(weight, value).build());
+            } else if (key.equals("suffix")) {
+                nodes.add(ExportNode.suffix(weight, value).build());
+            } else {
+                nodes.add(ExportNode.meta(key, value).build());
+            }
+        }
+    }
+
+}
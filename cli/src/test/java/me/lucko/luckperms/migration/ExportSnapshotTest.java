@@ -0,0 +1,166 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.migration;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ExportSnapshotTest {
+    // more than fit in one user block
+    private static final int USERS = 20000;
+
+    private static ExecutorService executor;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        executor.shutdown();
+    }
+
+    private static ExportData data() {
+        ExportData data = new ExportData();
+        data.group("default").add(ExportNode.permission("a.b", true).build());
+        data.group("admin").add(ExportNode.inheritance("default").build());
+        data.group("admin").add(ExportNode.prefix(10, "[Admin]").withContext("world", new HashSet<>(Arrays.asList("nether", "end"))).build());
+        data.group("empty");
+        data.setGroupWeight("admin", 10);
+        data.track("staff", Arrays.asList("default", "admin"));
+        data.track("empty", Collections.emptyList());
+
+        for (int i = 0; i < USERS; i++) {
+            ExportData.ExportUser user = data.user(new UUID(i * 31L - USERS, i));
+            switch (i % 3) {
+                case 0:
+                    user.setUsername("user" + i);
+                    user.setPrimaryGroup("admin");
+                    break;
+                case 1:
+                    user.setUsername("user" + i);
+                    break;
+                default:
+                    // no username or primary group
+                    break;
+            }
+
+            user.getNodes().add(ExportNode.inheritance("default").build());
+            user.getNodes().add(ExportNode.permission("-own.node." + i, true).expiry(2000000000L + i).build());
+            if (i % 5 == 0) {
+                user.getNodes().add(ExportNode.meta("key", "value." + i)
+                        .withContext("server", "lobby")
+                        .withContext("world", new HashSet<>(Arrays.asList("world", "nether")))
+                        .build());
+            }
+        }
+        return data;
+    }
+
+    // nodes are equal regardless of their type, so the type is compared too
+    private static Set<String> describe(Set<ExportNode> nodes) {
+        Set<String> described = new HashSet<>();
+        for (ExportNode node : nodes) {
+            described.add(node.getType() + " " + node);
+        }
+        return described;
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        ExportData data = data();
+        Path path = this.folder.newFile("snapshot.lpms").toPath();
+        ExportSnapshot.write(data, path);
+
+        ExportData read = new ExportData();
+        assertEquals(USERS, ExportSnapshot.read(path, read, executor));
+
+        assertEquals(data.getGroups().keySet(), read.getGroups().keySet());
+        for (Map.Entry<String, Set<ExportNode>> group : data.getGroups().entrySet()) {
+            assertEquals(describe(group.getValue()), describe(read.getGroups().get(group.getKey())));
+        }
+        assertEquals(data.getTracks(), read.getTracks());
+
+        assertEquals(data.getUsers().keySet(), read.getUsers().keySet());
+        for (Map.Entry<UUID, ExportData.ExportUser> entry : data.getUsers().entrySet()) {
+            ExportData.ExportUser user = entry.getValue();
+            ExportData.ExportUser readUser = read.getUsers().get(entry.getKey());
+            assertEquals(user.getUsername(), readUser.getUsername());
+            assertEquals(user.getPrimaryGroup(), readUser.getPrimaryGroup());
+            assertEquals(describe(user.getNodes()), describe(readUser.getNodes()));
+        }
+
+        ExportData.ExportUser anonymous = read.getUsers().get(new UUID(2 * 31L - USERS, 2));
+        assertNull(anonymous.getUsername());
+        assertNull(anonymous.getPrimaryGroup());
+    }
+
+    @Test
+    public void roundTripsEmptyData() throws IOException {
+        Path path = this.folder.newFile("empty.lpms").toPath();
+        ExportSnapshot.write(new ExportData(), path);
+
+        ExportData read = new ExportData();
+        assertEquals(0, ExportSnapshot.read(path, read, executor));
+        assertEquals(0, read.getGroups().size());
+        assertEquals(0, read.getTracks().size());
+        assertEquals(0, read.getUsers().size());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Path path = this.folder.newFile("other.lpms").toPath();
+        Files.write(path, new byte[64]);
+        try {
+            ExportSnapshot.read(path, new ExportData(), executor);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
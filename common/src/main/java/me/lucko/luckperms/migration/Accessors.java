@@ -0,0 +1,155 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Resolves non-public members of other plugins into {@link MethodHandle}s.
+ *
+ * <p>Handles are intended to be held in {@code static final} fields, so the lookup
+ * happens once and the JIT is able to inline the access. If a member can't be found,
+ * an {@link IllegalStateException} is thrown which names the version of the plugin
+ * that was loaded.</p>
+ */
+public final class Accessors {
+    private Accessors() {}
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    public static Class<?> findClass(String name, Class<?> anchor) {
+        try {
+            return Class.forName(name, false, anchor.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw missing("class " + name, anchor, e);
+        }
+    }
+
+    public static MethodHandle getter(Class<?> owner, String name, Class<?> type) {
+        return getter(owner, name, owner, type);
+    }
+
+    public static MethodHandle getter(Class<?> owner, String name, Class<?> receiver, Class<?> type) {
+        try {
+            return LOOKUP.unreflectGetter(field(owner, name)).asType(MethodType.methodType(type, receiver));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw missing("field '" + name + "' in " + owner.getName(), owner, e);
+        }
+    }
+
+    public static MethodHandle setter(Class<?> owner, String name, Class<?> type) {
+        try {
+            return LOOKUP.unreflectSetter(field(owner, name)).asType(MethodType.methodType(void.class, owner, type));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw missing("field '" + name + "' in " + owner.getName(), owner, e);
+        }
+    }
+
+    public static MethodHandle method(Class<?> owner, String name, Class<?> returnType) {
+        try {
+            Method method = owner.getDeclaredMethod(name);
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method).asType(MethodType.methodType(returnType, owner));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw missing("method '" + name + "()' in " + owner.getName(), owner, e);
+        }
+    }
+
+    private static Field field(Class<?> owner, String name) throws NoSuchFieldException {
+        Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static IllegalStateException missing(String member, Class<?> owner, Throwable cause) {
+        return new IllegalStateException("Unable to access " + member + ". " +
+                "The installed version of " + describeSource(owner) + " is not supported by this migration plugin.", cause);
+    }
+
+    /**
+     * Describes the plugin which the given class was loaded from, using the name and
+     * version in its plugin description file if possible.
+     *
+     * @param clazz the class
+     * @return a description of the plugin
+     */
+    static String describeSource(Class<?> clazz) {
+        CodeSource source = clazz.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return clazz.getName();
+        }
+
+        try (JarFile jar = new JarFile(new File(source.getLocation().toURI()))) {
+            for (String descriptor : new String[]{"plugin.yml", "bungee.yml"}) {
+                JarEntry entry = jar.getJarEntry(descriptor);
+                if (entry == null) {
+                    continue;
+                }
+
+                String name = null;
+                String version = null;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(jar.getInputStream(entry), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("name:")) {
+                            name = unquote(line.substring(5));
+                        } else if (line.startsWith("version:")) {
+                            version = unquote(line.substring(8));
+                        }
+                    }
+                }
+
+                if (name != null) {
+                    return version == null ? name : name + " v" + version;
+                }
+            }
+        } catch (Exception e) {
+            // ignore
+        }
+
+        return source.getLocation().getPath();
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        if (value.length() >= 2 && (value.charAt(0) == '\'' || value.charAt(0) == '"')) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+}
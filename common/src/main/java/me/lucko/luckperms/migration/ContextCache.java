@@ -0,0 +1,113 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.context.DefaultContextKeys;
+import net.luckperms.api.context.ImmutableContextSet;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares a single {@link ImmutableContextSet} between every node migrated with the same
+ * server and world, so the contexts are built once rather than added to each node.
+ */
+public final class ContextCache {
+    private static final Map<Key, ImmutableContextSet> CACHE = new ConcurrentHashMap<>();
+
+    private ContextCache() {}
+
+    public static ImmutableContextSet world(String world) {
+        return of(null, world);
+    }
+
+    public static ImmutableContextSet server(String server) {
+        return of(server, null);
+    }
+
+    /**
+     * Gets the context set for a server and world.
+     *
+     * <p>As with LuckPerms' own node builders, a "global" server or world is the same as no
+     * context at all. LuckPerms never adds it to a player's contexts, so a node with it
+     * would never apply.</p>
+     *
+     * @param server the server, or null, empty or "global" for no server context
+     * @param world the world, or null, empty or "global" for no world context
+     * @return the shared context set
+     */
+    public static ImmutableContextSet of(String server, String world) {
+        if (isGlobal(server)) server = null;
+        if (isGlobal(world)) world = null;
+        if (server == null && world == null) {
+            return ImmutableContextSet.empty();
+        }
+        return CACHE.computeIfAbsent(new Key(server, world), ContextCache::build);
+    }
+
+    /**
+     * Gets if a server or world value means the node applies everywhere.
+     *
+     * @param value the value
+     * @return true if the value is null, empty or "global"
+     */
+    public static boolean isGlobal(String value) {
+        return value == null || value.isEmpty() || value.equalsIgnoreCase("global");
+    }
+
+    private static ImmutableContextSet build(Key key) {
+        ImmutableContextSet.Builder context = ImmutableContextSet.builder();
+        if (key.server != null) context.add(DefaultContextKeys.SERVER_KEY, key.server);
+        if (key.world != null) context.add(DefaultContextKeys.WORLD_KEY, key.world);
+        return context.build();
+    }
+
+    private static final class Key {
+        private final String server;
+        private final String world;
+
+        Key(String server, String world) {
+            this.server = server;
+            this.world = world;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return Objects.equals(this.server, other.server) && Objects.equals(this.world, other.world);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(this.server) + Objects.hashCode(this.world);
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility for ordering elements which depend on one another.
+ */
+public final class DependencyOrder {
+    private DependencyOrder() {}
+
+    /**
+     * Splits the keys of the given dependency map into levels, where every element only
+     * depends on elements in earlier levels.
+     *
+     * <p>Elements in the same level are independent of each other, so can be processed
+     * in parallel. Dependencies which aren't keys of the map are ignored, and any elements
+     * which form a cycle are placed together in the final level.</p>
+     *
+     * @param dependencies a map of each element to the elements it depends on
+     * @param <E> the element type
+     * @return the levels
+     */
+    public static <E> List<List<E>> levels(Map<E, ? extends Collection<E>> dependencies) {
+        Map<E, Integer> remaining = new HashMap<>();
+        Map<E, List<E>> dependants = new HashMap<>();
+        for (Map.Entry<E, ? extends Collection<E>> entry : dependencies.entrySet()) {
+            int count = 0;
+            for (E dependency : entry.getValue()) {
+                if (dependencies.containsKey(dependency) && !dependency.equals(entry.getKey())) {
+                    dependants.computeIfAbsent(dependency, e -> new ArrayList<>()).add(entry.getKey());
+                    count++;
+                }
+            }
+            remaining.put(entry.getKey(), count);
+        }
+
+        List<List<E>> levels = new ArrayList<>();
+        List<E> level = new ArrayList<>();
+        for (Map.Entry<E, Integer> entry : remaining.entrySet()) {
+            if (entry.getValue() == 0) {
+                level.add(entry.getKey());
+            }
+        }
+
+        while (!level.isEmpty()) {
+            levels.add(level);
+            List<E> next = new ArrayList<>();
+            for (E element : level) {
+                remaining.remove(element);
+                for (E dependant : dependants.getOrDefault(element, Collections.emptyList())) {
+                    if (remaining.merge(dependant, -1, Integer::sum) == 0) {
+                        next.add(dependant);
+                    }
+                }
+            }
+            level = next;
+        }
+
+        if (!remaining.isEmpty()) {
+            levels.add(new ArrayList<>(remaining.keySet()));
+        }
+        return levels;
+    }
+
+}
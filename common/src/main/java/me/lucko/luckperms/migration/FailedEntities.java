@@ -0,0 +1,139 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The entities which failed to migrate, saved so they can be migrated again on their own.
+ *
+ * <p>The file holds the arguments the migration was run with on its first line, followed by
+ * one entity per line, e.g. {@code user:<id>} or {@code group:<name>}.</p>
+ */
+public final class FailedEntities {
+    private final String[] args;
+    private final Set<String> entities;
+
+    public FailedEntities(String[] args, Collection<String> entities) {
+        this.args = args;
+        this.entities = new LinkedHashSet<>(entities);
+    }
+
+    public static String user(String id) {
+        return "user:" + id;
+    }
+
+    public static String group(String name) {
+        return "group:" + name;
+    }
+
+    /**
+     * Reads the failed entities from a file.
+     *
+     * @param file the file
+     * @return the failed entities, or null if the file doesn't exist
+     * @throws IOException if the file can't be read
+     */
+    public static FailedEntities read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String args = reader.readLine();
+            Set<String> entities = new LinkedHashSet<>();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entities.add(line);
+                }
+            }
+            return new FailedEntities(args == null || args.isEmpty() ? new String[0] : args.split(" "), entities);
+        }
+    }
+
+    /**
+     * Writes the failed entities to a file, or deletes the file if there are none.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        if (this.entities.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(String.join(" ", this.args));
+            writer.newLine();
+            for (String entity : this.entities) {
+                writer.write(entity);
+                writer.newLine();
+            }
+        }
+    }
+
+    public String[] getArgs() {
+        return this.args;
+    }
+
+    public Set<String> getEntities() {
+        return this.entities;
+    }
+
+    /**
+     * Gets the ids of the failed entities of a type.
+     *
+     * @param type the type, {@code "user"} or {@code "group"}
+     * @return the ids
+     */
+    public Set<String> getIds(String type) {
+        Set<String> ids = new LinkedHashSet<>();
+        String prefix = type + ":";
+        for (String entity : this.entities) {
+            if (entity.startsWith(prefix)) {
+                ids.add(entity.substring(prefix.length()));
+            }
+        }
+        return ids;
+    }
+
+    public boolean contains(String entity) {
+        return this.entities.contains(entity);
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Pauses a migration before it runs the server out of memory.
+ *
+ * <p>A usage threshold is set on the old generation pool. Once it is crossed, producers
+ * which reach a {@link #checkpoint(Throwing.Runnable) checkpoint} write out what they have
+ * collected so far and wait. They are resumed when a garbage collection leaves the old
+ * generation below the resume level.</p>
+ *
+ * <p>Pauses and the peak heap usage seen during the run are recorded in the
+ * {@link MigrationReport}.</p>
+ */
+public final class HeapWatchdog implements AutoCloseable {
+    private static final long POLL_MILLIS = 1000;
+    private static final long MAX_PAUSE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final MigrationReport report;
+    private final Consumer<String> logger;
+    private final MemoryPoolMXBean oldGen;
+    private final long resumeAt;
+    private final long previousThreshold;
+    private final List<Runnable> unregister = new ArrayList<>();
+
+    private volatile boolean pressure = false;
+    private volatile long peakUsed = 0;
+
+    /**
+     * Starts watching the heap.
+     *
+     * @param pauseAt the old generation occupancy to pause at, as a fraction of its maximum size
+     * @param resumeAt the occupancy after a collection to resume at
+     * @param report the report to record pauses in
+     * @param logger the logger for pause messages
+     */
+    public HeapWatchdog(double pauseAt, double resumeAt, MigrationReport report, Consumer<String> logger) {
+        this.report = report;
+        this.logger = logger;
+        this.oldGen = findOldGen();
+
+        if (this.oldGen == null) {
+            // nothing to watch, so producers are never paused
+            this.resumeAt = 0;
+            this.previousThreshold = 0;
+            return;
+        }
+
+        long max = this.oldGen.getUsage().getMax();
+        this.resumeAt = (long) (max * resumeAt);
+        this.previousThreshold = this.oldGen.getUsageThreshold();
+        this.oldGen.setUsageThreshold((long) (max * pauseAt));
+
+        NotificationEmitter memory = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        NotificationListener thresholdListener = (notification, handback) -> {
+            // notifications are delivered asynchronously, so may arrive after a collection
+            if (notification.getType().equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED) && this.oldGen.isUsageThresholdExceeded()) {
+                this.pressure = true;
+            }
+        };
+        memory.addNotificationListener(thresholdListener, null, null);
+        this.unregister.add(() -> removeListener(memory, thresholdListener));
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) {
+                continue;
+            }
+
+            NotificationEmitter emitter = (NotificationEmitter) gc;
+            NotificationListener gcListener = (notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    onCollection(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+                }
+            };
+            emitter.addNotificationListener(gcListener, null, null);
+            this.unregister.add(() -> removeListener(emitter, gcListener));
+        }
+
+        // the threshold may already have been crossed
+        if (this.oldGen.isUsageThresholdExceeded()) {
+            this.pressure = true;
+        }
+    }
+
+    private static MemoryPoolMXBean findOldGen() {
+        MemoryPoolMXBean oldGen = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported() || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+
+            // the tenured pool is the largest one which supports both thresholds
+            long max = pool.getUsage().getMax();
+            if (max > 0 && (oldGen == null || max > oldGen.getUsage().getMax())) {
+                oldGen = pool;
+            }
+        }
+        return oldGen;
+    }
+
+    private void onCollection(GarbageCollectionNotificationInfo info) {
+        long used = 0;
+        for (MemoryUsage usage : info.getGcInfo().getMemoryUsageBeforeGc().values()) {
+            used += usage.getUsed();
+        }
+        if (used > this.peakUsed) {
+            this.peakUsed = used;
+        }
+
+        MemoryUsage oldGenAfter = info.getGcInfo().getMemoryUsageAfterGc().get(this.oldGen.getName());
+        if (oldGenAfter != null && oldGenAfter.getUsed() < this.resumeAt) {
+            resume();
+        }
+    }
+
+    private synchronized void resume() {
+        if (this.pressure) {
+            this.pressure = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gets if the old generation is currently above the pause level.
+     *
+     * @return if the heap is under pressure
+     */
+    public boolean isUnderPressure() {
+        return this.pressure;
+    }
+
+    /**
+     * Pauses the calling producer if the heap is under pressure.
+     *
+     * <p>The flush is run first, and should write out and drop the data the producer is
+     * holding on to. The producer is then held until memory has been reclaimed, or for at
+     * most a minute.</p>
+     *
+     * @param flush writes out the producer's pending data
+     * @throws Exception if the flush fails, or if interrupted while waiting
+     */
+    public void checkpoint(Throwing.Runnable flush) throws Exception {
+        if (!this.pressure) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        this.report.increment("Heap pressure pauses");
+        this.logger.accept("Memory is running low, writing pending data and pausing until it has been reclaimed.");
+
+        flush.run();
+
+        synchronized (this) {
+            long waited;
+            while (this.pressure && (waited = System.currentTimeMillis() - start) < MAX_PAUSE_MILLIS) {
+                wait(Math.min(POLL_MILLIS, MAX_PAUSE_MILLIS - waited));
+
+                // in case the notification for the last collection was missed
+                MemoryUsage collected = this.oldGen.getCollectionUsage();
+                if (collected != null && collected.getUsed() < this.resumeAt && !this.oldGen.isUsageThresholdExceeded()) {
+                    this.pressure = false;
+                }
+            }
+        }
+
+        long paused = System.currentTimeMillis() - start;
+        this.report.add("Heap pressure pause time (ms)", paused);
+        this.logger.accept("Resuming after pausing for " + paused + "ms.");
+    }
+
+    @Override
+    public void close() {
+        for (Runnable r : this.unregister) {
+            r.run();
+        }
+        if (this.oldGen != null) {
+            this.oldGen.setUsageThreshold(this.previousThreshold);
+        }
+        resume();
+
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        this.report.add("Peak heap used (MB)", Math.max(used, this.peakUsed) / (1024 * 1024));
+    }
+
+    private static void removeListener(NotificationEmitter emitter, NotificationListener listener) {
+        try {
+            emitter.removeNotificationListener(listener);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+}
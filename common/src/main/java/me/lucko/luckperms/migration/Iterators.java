@@ -25,6 +25,10 @@
 
 package me.lucko.luckperms.migration;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -44,6 +48,27 @@ public final class Iterators {
         return success;
     }
 
+    public static <E> boolean tryIterate(Iterable<E> iterable, Executor executor, Throwing.Consumer<E> action) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (E element : iterable) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    action.accept(element);
+                    return true;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }, executor));
+        }
+
+        boolean success = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            success &= future.join();
+        }
+        return success;
+    }
+
     public static <I, O> boolean tryIterate(Iterable<I> iterable, Function<I, O> mapping, Consumer<O> action) {
         boolean success = true;
         for (I element : iterable) {
@@ -0,0 +1,287 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes compact JSON directly to a stream, as UTF-8.
+ *
+ * <p>Nothing is held in memory apart from a reused output buffer, so a document of any size
+ * can be written one entity at a time. The output is the same as Gson's {@code JsonWriter}
+ * with its default settings.</p>
+ */
+public final class JsonStreamWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // the longest encoding of a single char, which is a unicode escape
+    private static final int MAX_CHAR_BYTES = 6;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+
+    public JsonStreamWriter(OutputStream out) {
+        this.out = out;
+        this.stack[0] = EMPTY_DOCUMENT;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        push(EMPTY_OBJECT);
+        writeByte('{');
+        return this;
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        push(EMPTY_ARRAY);
+        writeByte('[');
+        return this;
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        int context = peek();
+        if (context == NONEMPTY_OBJECT) {
+            writeByte(',');
+        } else if (context != EMPTY_OBJECT) {
+            throw new IllegalStateException("Nesting problem.");
+        }
+        this.stack[this.depth - 1] = DANGLING_NAME;
+        writeString(name);
+        writeByte(':');
+        return this;
+    }
+
+    public JsonStreamWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    private JsonStreamWriter close(int empty, int nonempty, char bracket) throws IOException {
+        int context = peek();
+        if (context != empty && context != nonempty) {
+            throw new IllegalStateException("Nesting problem.");
+        }
+        this.depth--;
+        writeByte(bracket);
+        return this;
+    }
+
+    private void push(int context) {
+        if (this.depth == this.stack.length) {
+            this.stack = Arrays.copyOf(this.stack, this.depth * 2);
+        }
+        this.stack[this.depth++] = context;
+    }
+
+    private int peek() {
+        if (this.depth == 0) {
+            throw new IllegalStateException("JsonStreamWriter is closed.");
+        }
+        return this.stack[this.depth - 1];
+    }
+
+    // writes the separator before a value, and records that the enclosing scope isn't empty
+    private void beforeValue() throws IOException {
+        switch (peek()) {
+            case EMPTY_DOCUMENT:
+                this.stack[this.depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            case DANGLING_NAME:
+                this.stack[this.depth - 1] = NONEMPTY_OBJECT;
+                break;
+            case EMPTY_ARRAY:
+                this.stack[this.depth - 1] = NONEMPTY_ARRAY;
+                break;
+            case NONEMPTY_ARRAY:
+                writeByte(',');
+                break;
+            case NONEMPTY_DOCUMENT:
+                throw new IllegalStateException("JSON must have only one top-level value.");
+            default:
+                throw new IllegalStateException("Nesting problem.");
+        }
+    }
+
+    private void writeByte(char c) throws IOException {
+        if (this.pos == this.buffer.length) {
+            flushBuffer();
+        }
+        this.buffer[this.pos++] = (byte) c;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    // escapes the same characters as Gson, and encodes the rest as UTF-8
+    private void writeString(String s) throws IOException {
+        byte[] buffer = this.buffer;
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            if (this.pos > buffer.length - MAX_CHAR_BYTES) {
+                flushBuffer();
+            }
+
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = (byte) c;
+                        break;
+                    case '\t':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = 't';
+                        break;
+                    case '\b':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = 'b';
+                        break;
+                    case '\n':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = 'n';
+                        break;
+                    case '\r':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = 'r';
+                        break;
+                    case '\f':
+                        buffer[this.pos++] = '\\';
+                        buffer[this.pos++] = 'f';
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writeUnicodeEscape(c);
+                        } else {
+                            buffer[this.pos++] = (byte) c;
+                        }
+                        break;
+                }
+            } else if (c < 0x800) {
+                buffer[this.pos++] = (byte) (0xc0 | (c >> 6));
+                buffer[this.pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c == 0x2028 || c == 0x2029) {
+                // line and paragraph separators, which end a line in javascript
+                writeUnicodeEscape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[this.pos++] = (byte) (0xf0 | (cp >> 18));
+                buffer[this.pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[this.pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[this.pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, replaced in the same way as the standard UTF-8 encoder
+                buffer[this.pos++] = '?';
+            } else {
+                buffer[this.pos++] = (byte) (0xe0 | (c >> 12));
+                buffer[this.pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[this.pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeUnicodeEscape(char c) {
+        this.buffer[this.pos++] = '\\';
+        this.buffer[this.pos++] = 'u';
+        this.buffer[this.pos++] = HEX[(c >> 12) & 0xf];
+        this.buffer[this.pos++] = HEX[(c >> 8) & 0xf];
+        this.buffer[this.pos++] = HEX[(c >> 4) & 0xf];
+        this.buffer[this.pos++] = HEX[c & 0xf];
+    }
+
+    private void flushBuffer() throws IOException {
+        this.out.write(this.buffer, 0, this.pos);
+        this.pos = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            this.out.close();
+        }
+
+        if (this.depth > 1 || this.depth == 1 && this.stack[0] != NONEMPTY_DOCUMENT) {
+            throw new IOException("Incomplete document");
+        }
+        this.depth = 0;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keeps LuckPerms up to date with changes made in the source plugin after a migration.
+ *
+ * <p>Changes are recorded per entity, and an entity is only migrated again once it has stopped
+ * changing for the quiet period, so a burst of edits to the same user or group results in a
+ * single update. An entity which keeps changing is still updated after {@code maxDelay}.</p>
+ *
+ * <p>Updates run one at a time on the sync's own thread.</p>
+ */
+public final class LiveSync {
+    private static final long TICK_MILLIS = 250;
+
+    private final long quietMillis;
+    private final long maxDelayMillis;
+    private final Consumer<String> logger;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger applied = new AtomicInteger(0);
+    private final ScheduledExecutorService scheduler;
+
+    public LiveSync(long quiet, long maxDelay, TimeUnit unit, Consumer<String> logger) {
+        this.quietMillis = unit.toMillis(quiet);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        this.logger = logger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "luckperms-migration-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flush, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a change to an entity.
+     *
+     * <p>The update replaces any update already pending for the same key, so it should
+     * migrate the entity's current state rather than the change itself.</p>
+     *
+     * @param key a key identifying the entity, e.g. {@code "user:<uuid>"}
+     * @param update the update to apply once the entity has stopped changing
+     */
+    public void changed(String key, Throwing.Runnable update) {
+        long now = System.currentTimeMillis();
+        this.pending.compute(key, (k, p) -> new Pending(update, p == null ? now : p.firstChange, now));
+    }
+
+    /**
+     * Gets the number of updates applied so far.
+     *
+     * @return the number of updates
+     */
+    public int getApplied() {
+        return this.applied.get();
+    }
+
+    /**
+     * Stops the sync.
+     *
+     * <p>Updates may need the server's main thread, so they should only be applied from
+     * another thread.</p>
+     *
+     * @param applyPending whether to apply pending updates before returning, instead of discarding them
+     */
+    public void stop(boolean applyPending) {
+        if (!applyPending) {
+            this.pending.clear();
+            this.scheduler.shutdownNow();
+            return;
+        }
+
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // anything recorded while the last tick was running
+        for (Map.Entry<String, Pending> e : this.pending.entrySet()) {
+            if (this.pending.remove(e.getKey(), e.getValue())) {
+                apply(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Pending> e : this.pending.entrySet()) {
+            Pending p = e.getValue();
+            if (now - p.lastChange < this.quietMillis && now - p.firstChange < this.maxDelayMillis) {
+                continue;
+            }
+
+            // only remove the update we're about to apply, a newer change stays pending
+            if (this.pending.remove(e.getKey(), p)) {
+                apply(e.getKey(), p);
+            }
+        }
+    }
+
+    private void apply(String key, Pending p) {
+        try {
+            p.update.run();
+            this.applied.incrementAndGet();
+            this.logger.accept("Synced " + key);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static final class Pending {
+        final Throwing.Runnable update;
+        final long firstChange;
+        final long lastChange;
+
+        Pending(Throwing.Runnable update, long firstChange, long lastChange) {
+            this.update = update;
+            this.firstChange = firstChange;
+            this.lastChange = lastChange;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.types.InheritanceNode;
+import net.luckperms.api.node.types.MetaNode;
+import net.luckperms.api.node.types.PrefixNode;
+import net.luckperms.api.node.types.SuffixNode;
+
+/**
+ * Creates LuckPerms nodes in a fixed context.
+ */
+public final class LuckPermsNodeFactory implements NodeFactory<Node> {
+    private final ImmutableContextSet context;
+
+    public LuckPermsNodeFactory(ImmutableContextSet context) {
+        this.context = context;
+    }
+
+    @Override
+    public Node permission(String permission, boolean value) {
+        return Node.builder(permission).value(value).withContext(this.context).build();
+    }
+
+    @Override
+    public Node inheritance(String group) {
+        return InheritanceNode.builder(group).withContext(this.context).build();
+    }
+
+    @Override
+    public Node prefix(int priority, String prefix) {
+        return PrefixNode.builder(prefix, priority).withContext(this.context).build();
+    }
+
+    @Override
+    public Node suffix(int priority, String suffix) {
+        return SuffixNode.builder(suffix, priority).withContext(this.context).build();
+    }
+
+    @Override
+    public Node meta(String key, String value) {
+        return MetaNode.builder(key, value).withContext(this.context).build();
+    }
+
+}
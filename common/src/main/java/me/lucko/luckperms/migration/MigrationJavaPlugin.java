@@ -28,18 +28,153 @@ package me.lucko.luckperms.migration;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.ConsoleCommandSender;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 public abstract class MigrationJavaPlugin extends JavaPlugin {
+    private LiveSync sync;
+    private Listener syncListener;
 
     @Override
     public final boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
-        getServer().getScheduler().runTaskAsynchronously(this, () -> runMigration(sender, args));
+        if (args.length == 1 && args[0].equalsIgnoreCase("stop-sync")) {
+            getServer().getScheduler().runTaskAsynchronously(this, () -> stopSync(sender, true));
+            return true;
+        }
+
+        if (args.length == 1 && args[0].equalsIgnoreCase("retry")) {
+            getServer().getScheduler().runTaskAsynchronously(this, () -> retryFailed(sender));
+            return true;
+        }
+
+        // a trailing "sync" keeps LuckPerms up to date with further changes once the migration is done
+        boolean sync = args.length >= 1 && args[args.length - 1].equalsIgnoreCase("sync");
+        String[] migrationArgs = sync ? Arrays.copyOf(args, args.length - 1) : args;
+
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            runMigration(sender, migrationArgs);
+            if (sync) {
+                startSync(sender);
+            }
+        });
         return true;
     }
 
+    @Override
+    public void onDisable() {
+        // this is the main thread, so anything still pending is discarded
+        stopSync(getServer().getConsoleSender(), false);
+    }
+
     protected abstract void runMigration(CommandSender sender, String[] args);
 
+    /**
+     * Migrates only the given entities, which failed to migrate in an earlier run.
+     *
+     * <p>Migrations which {@link #saveFailures(CommandSender, String[], Collection) save their
+     * failures} override this.</p>
+     *
+     * @param sender the sender
+     * @param args the arguments the earlier run was made with
+     * @param only the entities to migrate
+     */
+    protected void runMigration(CommandSender sender, String[] args, FailedEntities only) {
+        log(sender, "Retrying failed users and groups isn't supported by this migration.");
+    }
+
+    private void retryFailed(CommandSender sender) {
+        FailedEntities failed;
+        try {
+            failed = FailedEntities.read(getFailuresFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (failed == null) {
+            log(sender, "There are no failed users or groups to retry.");
+            return;
+        }
+
+        log(sender, "Retrying " + failed.getEntities().size() + " users and groups which failed to migrate.");
+        runMigration(sender, failed.getArgs(), failed);
+    }
+
+    private Path getFailuresFile() {
+        return getDataFolder().toPath().resolve("failed.txt");
+    }
+
+    /**
+     * Saves the entities which still failed to migrate at the end of a run, so they can be retried
+     * on their own. Any earlier failures are replaced.
+     *
+     * @param sender the sender
+     * @param args the arguments the run was made with
+     * @param entities the entities
+     */
+    protected void saveFailures(CommandSender sender, String[] args, Collection<String> entities) {
+        try {
+            new FailedEntities(args, entities).write(getFailuresFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!entities.isEmpty()) {
+            log(sender, entities.size() + " users and groups still failed to migrate, and have been saved to " + getFailuresFile() + ". " +
+                    "Run the command again with 'retry' to migrate only those.");
+        }
+    }
+
+    /**
+     * Creates a listener for changes made in the source plugin, which records them with the given sync.
+     *
+     * @param sync the sync
+     * @return the listener, or null if changes can't be synced
+     */
+    protected Listener createSyncListener(LiveSync sync) {
+        return null;
+    }
+
+    private synchronized void startSync(CommandSender sender) {
+        if (this.sync != null) {
+            log(sender, "Changes are already being synced.");
+            return;
+        }
+
+        LiveSync sync = new LiveSync(2, 30, TimeUnit.SECONDS, msg -> getLogger().info(msg));
+        Listener listener = createSyncListener(sync);
+        if (listener == null) {
+            sync.stop(false);
+            log(sender, "Unable to sync changes from this plugin.");
+            return;
+        }
+
+        this.sync = sync;
+        this.syncListener = listener;
+        getServer().getScheduler().runTask(this, () -> getServer().getPluginManager().registerEvents(listener, this));
+        log(sender, "Now syncing further changes to LuckPerms. Run the command again with 'stop-sync' once every server has switched over.");
+    }
+
+    private synchronized void stopSync(CommandSender sender, boolean applyPending) {
+        if (this.sync == null) {
+            return;
+        }
+
+        HandlerList.unregisterAll(this.syncListener);
+        this.sync.stop(applyPending);
+        log(sender, "Stopped syncing changes. Synced " + this.sync.getApplied() + " updates in total.");
+
+        this.sync = null;
+        this.syncListener = null;
+    }
+
     protected void log(CommandSender sender, String msg) {
         getLogger().info(msg);
         if (!(sender instanceof ConsoleCommandSender)) {
@@ -47,4 +182,9 @@ public abstract class MigrationJavaPlugin extends JavaPlugin {
         }
     }
 
+    protected void log(CommandSender sender, MigrationReport report) {
+        log(sender, "Run report:");
+        report.log(msg -> log(sender, "  " + msg));
+    }
+
 }
@@ -25,16 +25,39 @@
 
 package me.lucko.luckperms.migration;
 
+import net.luckperms.api.model.PermissionHolder;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.node.Node;
 import net.luckperms.api.node.NodeBuilder;
 import net.luckperms.api.node.NodeType;
 import net.luckperms.api.node.types.WeightNode;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiFunction;
+
 public final class MigrationUtils {
     private MigrationUtils() {}
 
     public static NodeBuilder<?, ?> parseNode(String permission, boolean value) {
+        return parsePermission(permission, value, (p, v) -> Node.builder(p).value(v));
+    }
+
+    /**
+     * Parses a leading '-' or '!', which negates a permission, or '+'.
+     *
+     * @param permission the permission
+     * @param value the value, if the permission doesn't specify one
+     * @param builder creates the result from the parsed permission and value
+     * @param <T> the result type
+     * @return the result
+     */
+    public static <T> T parsePermission(String permission, boolean value, BiFunction<String, Boolean, T> builder) {
         if (permission.length() > 1) {
             if (permission.charAt(0) == '-' || permission.charAt(0) == '!') {
                 permission = permission.substring(1);
@@ -45,7 +68,7 @@ public final class MigrationUtils {
             }
         }
 
-        return Node.builder(permission).value(value);
+        return builder.apply(permission, value);
     }
 
     public static void setGroupWeight(Group group, int weight) {
@@ -53,6 +76,68 @@ public final class MigrationUtils {
         group.data().add(WeightNode.builder(weight).build());
     }
 
+    /**
+     * Adds the nodes collected for a holder.
+     *
+     * <p>The API has no bulk add, so the nodes are added one at a time. Existing nodes are
+     * kept, so re-running a migration only adds data.</p>
+     *
+     * @param holder the holder
+     * @param nodes the nodes to add
+     */
+    public static void addNodes(PermissionHolder holder, Collection<? extends Node> nodes) {
+        for (Node node : nodes) {
+            holder.data().add(node);
+        }
+    }
+
+    /**
+     * Replaces the nodes of a holder, so nodes which are no longer present in the source are
+     * removed as well.
+     *
+     * @param holder the holder
+     * @param nodes the holder's new nodes
+     */
+    public static void setNodes(PermissionHolder holder, Collection<? extends Node> nodes) {
+        Set<Node> replacement = new LinkedHashSet<>(nodes);
+        if (replacement.equals(new LinkedHashSet<>(holder.data().toCollection()))) {
+            return;
+        }
+
+        holder.data().clear();
+        for (Node node : replacement) {
+            holder.data().add(node);
+        }
+    }
+
+    /**
+     * Opens a connection for streaming through a plugin's tables.
+     *
+     * <p>MySQL Connector/J reads a whole result set into memory unless cursor fetch is enabled,
+     * whatever the fetch size. With it, rows are fetched in batches of the fetch size, and
+     * several result sets can be open on the connection at once.</p>
+     *
+     * @param url the jdbc url
+     * @param user the user, or null
+     * @param password the password, or null
+     * @return the connection
+     * @throws SQLException if the connection can't be opened
+     */
+    public static Connection openStreamingConnection(String url, String user, String password) throws SQLException {
+        Properties properties = new Properties();
+        if (user != null) {
+            properties.setProperty("user", user);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        // the property only has a meaning to MySQL
+        if (url.startsWith("jdbc:mysql:")) {
+            properties.setProperty("useCursorFetch", "true");
+        }
+        return DriverManager.getConnection(url, properties);
+    }
+
     public static String standardizeName(String string) {
         return string.trim()
                 .replace(':', '-')
@@ -61,4 +146,4 @@ public final class MigrationUtils {
                 .toLowerCase();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,195 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.context.Context;
+import net.luckperms.api.context.DefaultContextKeys;
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Removes redundant nodes from a holder's data before it is written.
+ *
+ * <ul>
+ *     <li>A node set in every known world is replaced by a single node without a world.</li>
+ *     <li>A node is removed if an equal node applies in a wider (or the same) context, and
+ *     lasts at least as long.</li>
+ * </ul>
+ *
+ * <p>Only permission and inheritance nodes are compacted. Keys which are set to both true
+ * and false are left alone, as removing either could change which one takes priority.</p>
+ */
+public final class NodeCompactor {
+    private NodeCompactor() {}
+
+    /**
+     * Compacts a set of nodes.
+     *
+     * @param nodes the nodes
+     * @param worlds every world on the server, or an empty collection to not merge worlds
+     * @return the compacted nodes
+     */
+    public static Set<Node> compact(Collection<Node> nodes, Collection<String> worlds) {
+        Set<String> knownWorlds = new HashSet<>();
+        for (String world : worlds) {
+            knownWorlds.add(world.toLowerCase());
+        }
+
+        Set<Node> result = new LinkedHashSet<>(nodes.size());
+        Map<String, List<Node>> byKey = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            if (node.getType() == NodeType.PERMISSION || node.getType() == NodeType.INHERITANCE) {
+                byKey.computeIfAbsent(node.getKey(), k -> new ArrayList<>()).add(node);
+            } else {
+                result.add(node);
+            }
+        }
+
+        for (List<Node> keyed : byKey.values()) {
+            if (keyed.size() == 1 || hasConflict(keyed)) {
+                result.addAll(keyed);
+                continue;
+            }
+            removeShadowed(mergeWorlds(keyed, knownWorlds), result);
+        }
+        return result;
+    }
+
+    private static boolean hasConflict(List<Node> nodes) {
+        boolean value = nodes.get(0).getValue();
+        for (Node node : nodes) {
+            if (node.getValue() != value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // replaces nodes which are otherwise equal and together cover every known world
+    private static List<Node> mergeWorlds(List<Node> nodes, Set<String> knownWorlds) {
+        if (knownWorlds.isEmpty()) {
+            return nodes;
+        }
+
+        Map<List<Object>, List<Node>> groups = new LinkedHashMap<>();
+        List<Node> result = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            if (worlds(node).isEmpty()) {
+                result.add(node);
+            } else {
+                groups.computeIfAbsent(Arrays.asList(node.getExpiry(), withoutWorld(node)), k -> new ArrayList<>()).add(node);
+            }
+        }
+
+        for (Map.Entry<List<Object>, List<Node>> group : groups.entrySet()) {
+            Set<String> covered = new HashSet<>();
+            for (Node node : group.getValue()) {
+                covered.addAll(worlds(node));
+            }
+
+            if (covered.containsAll(knownWorlds)) {
+                Node first = group.getValue().get(0);
+                ImmutableContextSet.Builder builder = ImmutableContextSet.builder();
+                for (Context c : withoutWorld(first)) {
+                    builder.add(c.getKey(), c.getValue());
+                }
+                result.add(first.toBuilder().context(builder.build()).build());
+            } else {
+                result.addAll(group.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static void removeShadowed(List<Node> nodes, Set<Node> result) {
+        List<Set<Context>> contexts = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            contexts.add(contexts(node));
+        }
+
+        for (int i = 0; i < nodes.size(); i++) {
+            boolean shadowed = false;
+            for (int j = 0; j < nodes.size() && !shadowed; j++) {
+                if (i != j) {
+                    shadowed = shadows(nodes.get(j), contexts.get(j), j, nodes.get(i), contexts.get(i), i);
+                }
+            }
+            if (!shadowed) {
+                result.add(nodes.get(i));
+            }
+        }
+    }
+
+    private static boolean shadows(Node wider, Set<Context> widerContext, int widerIndex, Node node, Set<Context> context, int index) {
+        if (!context.containsAll(widerContext)) {
+            return false;
+        }
+
+        boolean sameContext = context.size() == widerContext.size();
+        if (wider.hasExpiry()) {
+            if (!node.hasExpiry() || wider.getExpiry().isBefore(node.getExpiry())) {
+                return false;
+            }
+            if (sameContext && wider.getExpiry().equals(node.getExpiry())) {
+                // the nodes are equivalent, so keep the first
+                return widerIndex < index;
+            }
+            return true;
+        }
+        return !sameContext || node.hasExpiry() || widerIndex < index;
+    }
+
+    private static Set<Context> contexts(Node node) {
+        return new HashSet<>(node.getContexts().toSet());
+    }
+
+    private static Set<Context> withoutWorld(Node node) {
+        Set<Context> contexts = contexts(node);
+        contexts.removeIf(c -> c.getKey().equals(DefaultContextKeys.WORLD_KEY));
+        return contexts;
+    }
+
+    private static Set<String> worlds(Node node) {
+        Set<String> worlds = new HashSet<>();
+        for (String world : node.getContexts().getValues(DefaultContextKeys.WORLD_KEY)) {
+            worlds.add(world.toLowerCase());
+        }
+        return worlds;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Conversions shared by the migration plugins and the standalone runner, so the two
+ * produce the same nodes from the same data.
+ */
+public final class NodeConversions {
+    private NodeConversions() {}
+
+    /**
+     * Converts a GroupManager group or user in one world.
+     *
+     * @param permissions the permissions, which may be negated by a leading '-'
+     * @param parents the inherited groups, or a user's subgroups
+     * @param variables the variables, including the prefix and suffix
+     * @param weight the weight of the prefix and suffix
+     * @param factory the node factory, in the world's context
+     * @param nodes receives the nodes
+     * @param <N> the node type
+     */
+    public static <N> void groupManagerHolder(Collection<String> permissions, Collection<String> parents, Map<String, String> variables, int weight,
+                                              NodeFactory<N> factory, Consumer<? super N> nodes) {
+        for (String node : permissions) {
+            if (node.isEmpty()) continue;
+            nodes.accept(MigrationUtils.parsePermission(node, true, factory::permission));
+        }
+
+        for (String parent : parents) {
+            if (parent.isEmpty()) continue;
+            nodes.accept(factory.inheritance(MigrationUtils.standardizeName(parent)));
+        }
+
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            String key = variable.getKey().toLowerCase();
+            String value = variable.getValue();
+            if (key.isEmpty() || value == null || value.isEmpty()) continue;
+            if (key.equals("build")) continue;
+
+            if (key.equals("prefix")) {
+                nodes.accept(factory.prefix(weight, value));
+            } else if (key.equals("suffix")) {
+                nodes.accept(factory.suffix(weight, value));
+            } else {
+                nodes.accept(factory.meta(key, value));
+            }
+        }
+    }
+
+    /**
+     * Converts a bPermissions group or user in one world.
+     *
+     * @param permissions the permissions, negated by a leading '^'
+     * @param parents the inherited groups
+     * @param meta the meta, including the prefix and suffix
+     * @param priority the priority of the prefix and suffix
+     * @param groupName maps a bPermissions group name to a LuckPerms one
+     * @param children gets the child permissions registered for a permission, which are
+     *                 inherited along with it
+     * @param factory the node factory, in the world's context
+     * @param nodes receives the nodes
+     * @param <N> the node type
+     */
+    public static <N> void bPermissionsHolder(Collection<String> permissions, Collection<String> parents, Map<String, String> meta, int priority,
+                                              Function<String, String> groupName, Function<String, Map<String, Boolean>> children,
+                                              NodeFactory<N> factory, Consumer<? super N> nodes) {
+        for (String p : permissions) {
+            // bPermissions negates a permission with a leading '^'
+            boolean value = !p.startsWith("^");
+            String name = value ? p : p.substring(1);
+            if (name.isEmpty()) {
+                continue;
+            }
+            nodes.accept(factory.permission(name, value));
+
+            for (Map.Entry<String, Boolean> child : children.apply(name).entrySet()) {
+                if (child.getKey().isEmpty()) {
+                    continue;
+                }
+
+                // children of a negated permission are inverted
+                nodes.accept(factory.permission(child.getKey(), child.getValue() == value));
+            }
+        }
+
+        for (String parent : parents) {
+            if (parent.isEmpty()) {
+                continue;
+            }
+            nodes.accept(factory.inheritance(groupName.apply(parent)));
+        }
+
+        for (Map.Entry<String, String> entry : meta.entrySet()) {
+            if (entry.getKey().isEmpty() || entry.getValue().isEmpty()) {
+                continue;
+            }
+
+            if (entry.getKey().equalsIgnoreCase("prefix")) {
+                nodes.accept(factory.prefix(priority, entry.getValue()));
+            } else if (entry.getKey().equalsIgnoreCase("suffix")) {
+                nodes.accept(factory.suffix(priority, entry.getValue()));
+            } else {
+                nodes.accept(factory.meta(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Gets no child permissions, for when the plugins registering them aren't loaded.
+     *
+     * @param permission the permission
+     * @return an empty map
+     */
+    public static Map<String, Boolean> noChildren(String permission) {
+        return Collections.emptyMap();
+    }
+
+}
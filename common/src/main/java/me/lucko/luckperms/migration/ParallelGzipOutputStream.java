@@ -0,0 +1,257 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data in gzip format using several threads, in the same way as pigz.
+ *
+ * <p>The data is split into fixed size blocks, and each block is compressed on a worker
+ * thread as an independent gzip member. Members are written in order, and a gzip file made
+ * of several members is still read as a single stream, including by {@link java.util.zip.GZIPInputStream}.</p>
+ *
+ * <p>Blocks, and the deflaters which compress them, are reused once their member has been
+ * written. At most two blocks per thread are in flight, so memory use stays bounded however
+ * much is written.</p>
+ */
+public final class ParallelGzipOutputStream extends OutputStream {
+    private static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            (byte) 0xff // operating system (unknown)
+    };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+
+    private final Queue<Block> freeBlocks = new ConcurrentLinkedQueue<>();
+    private final Queue<Future<Block>> inFlight = new ArrayDeque<>();
+    private Block current;
+    private boolean written = false;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxInFlight = threads * 2;
+
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "luckperms-migration-gzip-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        Block block = block();
+        block.input[block.length++] = (byte) b;
+        if (block.length == this.blockSize) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            Block block = block();
+            int n = Math.min(len, this.blockSize - block.length);
+            System.arraycopy(b, off, block.input, block.length, n);
+            block.length += n;
+            off += n;
+            len -= n;
+
+            if (block.length == this.blockSize) {
+                submit();
+            }
+        }
+    }
+
+    private Block block() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (this.current == null) {
+            Block block = this.freeBlocks.poll();
+            this.current = block != null ? block : new Block(this.blockSize);
+        }
+        return this.current;
+    }
+
+    private void submit() throws IOException {
+        Block block = this.current;
+        this.current = null;
+        if (block == null || block.length == 0) {
+            if (block != null) {
+                this.freeBlocks.add(block);
+            }
+            return;
+        }
+
+        // wait for the oldest member if enough are already being compressed
+        while (this.inFlight.size() >= this.maxInFlight) {
+            writeNext();
+        }
+        this.inFlight.add(this.executor.submit(block::compress));
+    }
+
+    private void writeNext() throws IOException {
+        Block block;
+        try {
+            block = this.inFlight.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        this.out.write(block.output, 0, block.outputLength);
+        this.written = true;
+        block.length = 0;
+        this.freeBlocks.add(block);
+    }
+
+    /**
+     * Compresses and writes everything written so far. The partly filled block is written
+     * as a shorter member, so flushing often makes the output larger.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        submit();
+        while (!this.inFlight.isEmpty()) {
+            writeNext();
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        try {
+            flush();
+
+            // an empty file isn't valid gzip, so write a single empty member
+            if (!this.written) {
+                Block block = block().compress();
+                this.out.write(block.output, 0, block.outputLength);
+            }
+        } finally {
+            this.closed = true;
+            this.executor.shutdownNow();
+            if (this.current != null) {
+                this.freeBlocks.add(this.current);
+                this.current = null;
+            }
+            for (Block block : this.freeBlocks) {
+                block.deflater.end();
+            }
+            this.freeBlocks.clear();
+            this.out.close();
+        }
+    }
+
+    private static final class Block {
+        final byte[] input;
+        int length = 0;
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+        byte[] output;
+        int outputLength;
+
+        Block(int size) {
+            this.input = new byte[size];
+            this.output = new byte[size + size / 8 + 64];
+        }
+
+        // compresses the input into a complete gzip member
+        Block compress() {
+            System.arraycopy(HEADER, 0, this.output, 0, HEADER.length);
+            int pos = HEADER.length;
+
+            this.deflater.reset();
+            this.deflater.setInput(this.input, 0, this.length);
+            this.deflater.finish();
+            while (!this.deflater.finished()) {
+                if (pos == this.output.length) {
+                    this.output = Arrays.copyOf(this.output, this.output.length * 2);
+                }
+                pos += this.deflater.deflate(this.output, pos, this.output.length - pos);
+            }
+
+            this.crc.reset();
+            this.crc.update(this.input, 0, this.length);
+
+            if (pos + 8 > this.output.length) {
+                this.output = Arrays.copyOf(this.output, pos + 8);
+            }
+            pos = writeInt(this.output, pos, (int) this.crc.getValue());
+            pos = writeInt(this.output, pos, this.length);
+            this.outputLength = pos;
+            return this;
+        }
+
+        // little endian, as used by the gzip trailer
+        private static int writeInt(byte[] b, int pos, int i) {
+            b[pos] = (byte) i;
+            b[pos + 1] = (byte) (i >> 8);
+            b[pos + 2] = (byte) (i >> 16);
+            b[pos + 3] = (byte) (i >> 24);
+            return pos + 4;
+        }
+    }
+}
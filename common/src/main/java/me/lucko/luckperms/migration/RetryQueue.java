@@ -0,0 +1,192 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes entities to LuckPerms, retrying those which fail.
+ *
+ * <p>Writes can fail transiently, for example if the storage is under load. A failed write is
+ * queued and tried again by {@link #retryFailed()}, waiting twice as long after each failure,
+ * until it succeeds or has failed {@code maxAttempts} times.</p>
+ */
+public final class RetryQueue {
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final MigrationReport report;
+    private final Consumer<String> logger;
+
+    private final Queue<Task> failed = new ConcurrentLinkedQueue<>();
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    public RetryQueue(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit, MigrationReport report, Consumer<String> logger) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = unit.toMillis(baseDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        this.report = report;
+        this.logger = logger;
+    }
+
+    /**
+     * Writes an entity.
+     *
+     * <p>The write fails if it throws, or if the future it returns (usually from a save)
+     * completes exceptionally. It may be run again, so it should only depend on data which
+     * was collected beforehand.</p>
+     *
+     * @param entity a key identifying the entity, as used by {@link FailedEntities}
+     * @param write the write, which returns a future for any work it leaves running, or null
+     */
+    public void run(String entity, Callable<? extends CompletableFuture<?>> write) {
+        attempt(new Task(entity, write));
+    }
+
+    private void attempt(Task task) {
+        CompletableFuture<?> future;
+        try {
+            future = task.write.call();
+        } catch (Exception e) {
+            fail(task, e);
+            return;
+        }
+
+        if (future != null) {
+            // completes once the failure, if any, has been queued
+            CompletableFuture<Void> done = future.handle((result, ex) -> {
+                if (ex != null) {
+                    fail(task, ex);
+                }
+                return null;
+            });
+            this.pending.add(done);
+            done.thenRun(() -> this.pending.remove(done));
+        }
+    }
+
+    private void fail(Task task, Throwable t) {
+        task.attempts++;
+        task.error = t;
+        task.failedAt = System.currentTimeMillis();
+        this.failed.add(task);
+    }
+
+    private long backoff(int attempts) {
+        long delay = this.baseDelayMillis << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, this.maxDelayMillis);
+
+        // spread out retries of writes which failed together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Retries failed writes, once every write made so far has completed.
+     *
+     * <p>If the thread is interrupted, the writes still waiting to be retried are given up on.</p>
+     *
+     * @return the entities which still failed after the maximum number of attempts
+     */
+    public List<String> retryFailed() {
+        List<String> gaveUp = new ArrayList<>();
+        PriorityQueue<Task> queue = new PriorityQueue<>(Comparator.comparingLong(t -> t.retryAt));
+
+        while (true) {
+            awaitPending();
+
+            Task task;
+            while ((task = this.failed.poll()) != null) {
+                if (task.attempts >= this.maxAttempts) {
+                    this.logger.accept("Giving up on " + task.entity + " after " + task.attempts + " attempts.");
+                    task.error.printStackTrace();
+                    gaveUp.add(task.entity);
+                } else {
+                    task.retryAt = task.failedAt + backoff(task.attempts);
+                    queue.add(task);
+                }
+            }
+
+            task = queue.poll();
+            if (task == null) {
+                break;
+            }
+
+            long wait = task.retryAt - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    gaveUp.add(task.entity);
+                    for (Task remaining : queue) {
+                        gaveUp.add(remaining.entity);
+                    }
+                    break;
+                }
+            }
+
+            this.report.increment("Writes retried");
+            this.logger.accept("Retrying " + task.entity + " (attempt " + (task.attempts + 1) + " of " + this.maxAttempts + ") after: " + task.error);
+            attempt(task);
+        }
+
+        this.report.add("Entities failed", gaveUp.size());
+        return gaveUp;
+    }
+
+    private void awaitPending() {
+        for (CompletableFuture<?> future : new ArrayList<>(this.pending)) {
+            future.join();
+        }
+    }
+
+    private static final class Task {
+        final String entity;
+        final Callable<? extends CompletableFuture<?>> write;
+        int attempts = 0;
+        Throwable error;
+        long failedAt;
+        long retryAt;
+
+        Task(String entity, Callable<? extends CompletableFuture<?>> write) {
+            this.entity = entity;
+            this.write = write;
+        }
+    }
+
+}
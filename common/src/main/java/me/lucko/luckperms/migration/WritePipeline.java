@@ -0,0 +1,87 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous writes with a bounded number in flight at once.
+ *
+ * <p>Submitting blocks once the limit is reached, so a fast reader is held back by the
+ * storage instead of queueing every pending write in memory.</p>
+ */
+public final class WritePipeline {
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    public WritePipeline(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Starts a write, waiting for a free slot first.
+     *
+     * <p>Exceptions thrown by the write are caught and printed, in the same way as
+     * {@link Iterators#tryIterate(Iterable, Throwing.Consumer)}.</p>
+     *
+     * @param write the write
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    public void submit(Supplier<? extends CompletableFuture<?>> write) throws InterruptedException {
+        this.permits.acquire();
+
+        CompletableFuture<?> future;
+        try {
+            future = write.get();
+        } catch (Exception e) {
+            this.permits.release();
+            e.printStackTrace();
+            return;
+        }
+
+        future.whenComplete((result, ex) -> {
+            this.permits.release();
+            if (ex != null) {
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Waits until every submitted write has completed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        this.permits.acquire(this.maxInFlight);
+        this.permits.release(this.maxInFlight);
+    }
+
+}
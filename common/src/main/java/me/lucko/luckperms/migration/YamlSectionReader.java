@@ -0,0 +1,220 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.NodeEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Streams the entries of top-level sections in a YAML document, using the
+ * SnakeYAML event parser.
+ *
+ * <p>Each entry is composed into plain maps, lists and strings and passed to the
+ * consumer before the next one is read, so only a single entry is held in memory
+ * at a time. Sections which aren't requested are skipped without being composed.</p>
+ */
+public final class YamlSectionReader {
+    private static final Pattern NULL = Pattern.compile("~|null|Null|NULL|");
+    private static final Pattern TRUE = Pattern.compile("y|Y|yes|Yes|YES|true|True|TRUE|on|On|ON");
+
+    private final Iterator<Event> events;
+    private final Map<String, Object> anchors = new HashMap<>();
+
+    private YamlSectionReader(Reader reader) {
+        this.events = new Yaml().parse(reader).iterator();
+    }
+
+    /**
+     * Reads the entries of the given top-level sections, in the order they appear.
+     *
+     * <p>Exceptions thrown by the consumer are caught and printed, in the same way
+     * as {@link Iterators#tryIterate(Iterable, Throwing.Consumer)}.</p>
+     *
+     * @param reader the reader
+     * @param sections the sections to read
+     * @param consumer the consumer
+     * @return true if every entry was consumed successfully
+     */
+    public static boolean read(Reader reader, Collection<String> sections, EntryConsumer consumer) {
+        return new YamlSectionReader(reader).read(sections, consumer);
+    }
+
+    private boolean read(Collection<String> sections, EntryConsumer consumer) {
+        // find the root mapping
+        Event event;
+        do {
+            if (!this.events.hasNext()) {
+                return true;
+            }
+            event = this.events.next();
+        } while (!event.is(Event.ID.MappingStart));
+
+        boolean success = true;
+        while (!(event = this.events.next()).is(Event.ID.MappingEnd)) {
+            String section = String.valueOf(compose(event));
+            Event value = this.events.next();
+
+            if (!sections.contains(section) || !value.is(Event.ID.MappingStart)) {
+                skip(value);
+                continue;
+            }
+
+            while (!(event = this.events.next()).is(Event.ID.MappingEnd)) {
+                String key = String.valueOf(compose(event));
+                Object entry = compose(this.events.next());
+                try {
+                    consumer.accept(section, key, entry);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+            }
+        }
+        return success;
+    }
+
+    private Object compose(Event event) {
+        Object value;
+        if (event.is(Event.ID.Scalar)) {
+            ScalarEvent scalar = (ScalarEvent) event;
+            boolean isNull = scalar.getImplicit().canOmitTagInPlainScalar() && NULL.matcher(scalar.getValue()).matches();
+            value = isNull ? null : scalar.getValue();
+        } else if (event.is(Event.ID.SequenceStart)) {
+            List<Object> list = new ArrayList<>();
+            Event next;
+            while (!(next = this.events.next()).is(Event.ID.SequenceEnd)) {
+                list.add(compose(next));
+            }
+            value = list;
+        } else if (event.is(Event.ID.MappingStart)) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            Event next;
+            while (!(next = this.events.next()).is(Event.ID.MappingEnd)) {
+                map.put(String.valueOf(compose(next)), compose(this.events.next()));
+            }
+            value = map;
+        } else if (event.is(Event.ID.Alias)) {
+            return this.anchors.get(((AliasEvent) event).getAnchor());
+        } else {
+            throw new IllegalStateException("Unexpected event: " + event);
+        }
+
+        String anchor = ((NodeEvent) event).getAnchor();
+        if (anchor != null) {
+            this.anchors.put(anchor, value);
+        }
+        return value;
+    }
+
+    private void skip(Event event) {
+        int depth = event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart) ? 1 : 0;
+        if (event instanceof NodeEvent && ((NodeEvent) event).getAnchor() != null) {
+            // keep anchored values, as they might be referenced later on
+            compose(event);
+            return;
+        }
+
+        while (depth > 0) {
+            Event next = this.events.next();
+            if (next.is(Event.ID.MappingStart) || next.is(Event.ID.SequenceStart)) {
+                depth++;
+            } else if (next.is(Event.ID.MappingEnd) || next.is(Event.ID.SequenceEnd)) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Gets a value of a composed entry as a map, or an empty map if it isn't one.
+     *
+     * @param value the value
+     * @return the map
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> asMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : Collections.emptyMap();
+    }
+
+    /**
+     * Gets a value of a composed entry as a list of strings, or an empty list if it isn't one.
+     *
+     * @param value the value
+     * @return the list
+     */
+    public static List<String> asStringList(Object value) {
+        if (!(value instanceof List)) {
+            return Collections.emptyList();
+        }
+
+        List<String> list = new ArrayList<>();
+        for (Object element : (List<?>) value) {
+            if (element != null && !(element instanceof Map) && !(element instanceof List)) {
+                list.add(element.toString());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets a value of a composed entry as a string, or null if it isn't a scalar.
+     *
+     * @param value the value
+     * @return the string
+     */
+    public static String asString(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Gets a value of a composed entry as a boolean, or false if it isn't a true scalar.
+     *
+     * @param value the value
+     * @return the boolean
+     */
+    public static boolean asBoolean(Object value) {
+        return value instanceof String && TRUE.matcher((String) value).matches();
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(String section, String key, Object value) throws Exception;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.context.DefaultContextKeys;
+import net.luckperms.api.context.ImmutableContextSet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContextCacheTest {
+
+    @BeforeClass
+    public static void setup() {
+        TestLuckPerms.install();
+    }
+
+    @Test
+    public void globalIsNoContext() {
+        assertTrue(ContextCache.world("global").isEmpty());
+        assertTrue(ContextCache.server("GLOBAL").isEmpty());
+        assertTrue(ContextCache.of("global", "global").isEmpty());
+        assertTrue(ContextCache.of(null, "").isEmpty());
+    }
+
+    @Test
+    public void globalServerIsDropped() {
+        ImmutableContextSet context = ContextCache.of("global", "nether");
+        assertEquals(1, context.size());
+        assertTrue(context.contains(DefaultContextKeys.WORLD_KEY, "nether"));
+        assertSame(ContextCache.world("nether"), context);
+    }
+
+    @Test
+    public void serverAndWorld() {
+        ImmutableContextSet context = ContextCache.of("lobby", "nether");
+        assertEquals(2, context.size());
+        assertTrue(context.contains(DefaultContextKeys.SERVER_KEY, "lobby"));
+        assertTrue(context.contains(DefaultContextKeys.WORLD_KEY, "nether"));
+        assertSame(context, ContextCache.of("lobby", "nether"));
+    }
+}
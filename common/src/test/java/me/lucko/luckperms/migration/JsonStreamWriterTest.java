@@ -0,0 +1,169 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.migration;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonStreamWriterTest {
+    private static final List<String> STRINGS = Arrays.asList(
+            "",
+            "plain",
+            "quote \" backslash \\ slash /",
+            "\t\b\n\r\f",
+            "\u0000\u0001\u001f\u007f",
+            "line \u2028 paragraph \u2029",
+            "\u00e9 \u00fc \u00df \u0800 \uffff",
+            "emoji \ud83d\ude00 and \ud800\udc00",
+            "unpaired \ud83d high",
+            "unpaired \ude00 low",
+            "reversed \ude00\ud83d",
+            "trailing \ud83d"
+    );
+
+    // the same events, written by both writers
+    private interface Document {
+        void write(JsonStreamWriter json) throws IOException;
+
+        void write(JsonWriter json) throws IOException;
+    }
+
+    private static final Document DOCUMENT = new Document() {
+        @Override
+        public void write(JsonStreamWriter json) throws IOException {
+            json.beginObject();
+            json.name("strings").beginArray();
+            for (String s : STRINGS) {
+                json.value(s);
+            }
+            json.endArray();
+            json.name("null").value((String) null);
+            json.name("flags").beginArray().value(true).value(false).endArray();
+            json.name("numbers").beginArray().value(0).value(-1).value(Long.MAX_VALUE).value(Long.MIN_VALUE).endArray();
+            json.name("empty").beginObject().endObject();
+            json.name("nested").beginArray().beginArray().endArray().beginObject().name("\u2028\ud83d").value("x").endObject().endArray();
+            json.endObject();
+        }
+
+        @Override
+        public void write(JsonWriter json) throws IOException {
+            json.beginObject();
+            json.name("strings").beginArray();
+            for (String s : STRINGS) {
+                json.value(s);
+            }
+            json.endArray();
+            json.name("null").value((String) null);
+            json.name("flags").beginArray().value(true).value(false).endArray();
+            json.name("numbers").beginArray().value(0).value(-1).value(Long.MAX_VALUE).value(Long.MIN_VALUE).endArray();
+            json.name("empty").beginObject().endObject();
+            json.name("nested").beginArray().beginArray().endArray().beginObject().name("\u2028\ud83d").value("x").endObject().endArray();
+            json.endObject();
+        }
+    };
+
+    private static byte[] write(Document document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonStreamWriter json = new JsonStreamWriter(out)) {
+            document.write(json);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] writeWithGson(Document document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            document.write(json);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void writesTheSameAsGson() throws IOException {
+        byte[] expected = writeWithGson(DOCUMENT);
+        assertEquals(new String(expected, StandardCharsets.UTF_8), new String(write(DOCUMENT), StandardCharsets.UTF_8));
+        assertArrayEquals(expected, write(DOCUMENT));
+    }
+
+    @Test
+    public void parsesWithGson() throws IOException {
+        JsonObject object = JsonParser.parseString(new String(write(DOCUMENT), StandardCharsets.UTF_8)).getAsJsonObject();
+
+        JsonArray strings = object.getAsJsonArray("strings");
+        assertEquals(STRINGS.size(), strings.size());
+        for (int i = 0; i < STRINGS.size(); i++) {
+            // unpaired surrogates can't be encoded, so are replaced
+            String expected = new String(STRINGS.get(i).getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+            assertEquals(expected, strings.get(i).getAsString());
+        }
+
+        assertTrue(object.get("null").isJsonNull());
+        assertEquals(Long.MIN_VALUE, object.getAsJsonArray("numbers").get(3).getAsLong());
+        assertEquals(0, object.getAsJsonObject("empty").size());
+    }
+
+    @Test
+    public void writesLongStringsAcrossTheBuffer() throws IOException {
+        // longer than the output buffer, with multi-byte characters and escapes on every boundary
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200_000) {
+            sb.append("a\u2028\ud83d\ude00\u00e9\"\u0001\u0800");
+        }
+        String value = sb.toString();
+
+        Document document = new Document() {
+            @Override
+            public void write(JsonStreamWriter json) throws IOException {
+                json.beginArray().value(value).value(value).endArray();
+            }
+
+            @Override
+            public void write(JsonWriter json) throws IOException {
+                json.beginArray().value(value).value(value).endArray();
+            }
+        };
+        byte[] written = write(document);
+        assertArrayEquals(writeWithGson(document), written);
+
+        JsonElement parsed = JsonParser.parseString(new String(written, StandardCharsets.UTF_8));
+        assertEquals(value, parsed.getAsJsonArray().get(1).getAsString());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MigrationUtilsTest {
+
+    @Test
+    public void opensStreamingConnectionsForOtherDrivers() throws SQLException {
+        try (Connection connection = MigrationUtils.openStreamingConnection("jdbc:h2:mem:streaming", "sa", null)) {
+            assertFalse(connection.isClosed());
+        }
+    }
+
+    @Test
+    public void parsesPermissionPrefixes() {
+        assertEquals("a.b=false", MigrationUtils.parsePermission("-a.b", true, (p, v) -> p + "=" + v));
+        assertEquals("a.b=false", MigrationUtils.parsePermission("!a.b", true, (p, v) -> p + "=" + v));
+        assertEquals("a.b=true", MigrationUtils.parsePermission("+a.b", false, (p, v) -> p + "=" + v));
+        assertEquals("-=true", MigrationUtils.parsePermission("-", true, (p, v) -> p + "=" + v));
+    }
+}
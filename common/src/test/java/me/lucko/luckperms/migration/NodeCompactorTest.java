@@ -0,0 +1,134 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.context.DefaultContextKeys;
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NodeCompactorTest {
+    private static final List<String> WORLDS = Arrays.asList("world", "nether", "end");
+
+    @BeforeClass
+    public static void setup() {
+        TestLuckPerms.install();
+    }
+
+    // node builders need a full LuckPerms instance, so the nodes only implement what the compactor reads
+    private static Node node(String key, boolean value, Instant expiry, String... worlds) {
+        ImmutableContextSet.Builder contexts = ImmutableContextSet.builder();
+        for (String world : worlds) {
+            contexts.add(DefaultContextKeys.WORLD_KEY, world);
+        }
+        ImmutableContextSet contextSet = contexts.build();
+        String description = key + "=" + value + (expiry == null ? "" : "@" + expiry) + contextSet;
+
+        return (Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class<?>[]{Node.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getType":
+                    return NodeType.PERMISSION;
+                case "getKey":
+                    return key;
+                case "getValue":
+                    return value;
+                case "hasExpiry":
+                    return expiry != null;
+                case "getExpiry":
+                    return expiry;
+                case "getContexts":
+                    return contextSet;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return description;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static List<Node> compact(Node... nodes) {
+        return new ArrayList<>(NodeCompactor.compact(Arrays.asList(nodes), WORLDS));
+    }
+
+    @Test
+    public void leavesConflictingValuesAlone() {
+        Node allowed = node("a.b", true, null);
+        Node denied = node("a.b", false, null, "nether");
+        Node duplicate = node("a.b", true, null, "nether");
+        assertEquals(Arrays.asList(allowed, denied, duplicate), compact(allowed, denied, duplicate));
+    }
+
+    @Test
+    public void doesNotMergeAPartialWorldSet() {
+        Node world = node("a.b", true, null, "world");
+        Node nether = node("a.b", true, null, "nether");
+        assertEquals(Arrays.asList(world, nether), compact(world, nether));
+    }
+
+    @Test
+    public void keepsAPermanentNodeUnderAnExpiringWiderNode() {
+        Node expiring = node("a.b", true, Instant.ofEpochSecond(2000000000L));
+        Node permanent = node("a.b", true, null, "nether");
+        assertEquals(Arrays.asList(expiring, permanent), compact(expiring, permanent));
+    }
+
+    @Test
+    public void removesANarrowerNodeWhichExpiresFirst() {
+        Node permanent = node("a.b", true, null);
+        Node expiring = node("a.b", true, Instant.ofEpochSecond(2000000000L), "nether");
+        assertEquals(Collections.singletonList(permanent), compact(permanent, expiring));
+    }
+
+    @Test
+    public void keepsTheFirstOfEqualNodes() {
+        Node first = node("a.b", true, null, "nether");
+        Node second = node("a.b", true, null, "nether");
+        List<Node> result = compact(first, second);
+        assertEquals(1, result.size());
+        assertSame(first, result.get(0));
+
+        Instant expiry = Instant.ofEpochSecond(2000000000L);
+        Node firstExpiring = node("a.b", true, expiry);
+        Node secondExpiring = node("a.b", true, expiry);
+        assertEquals(Collections.singletonList(firstExpiring), compact(firstExpiring, secondExpiring));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class NodeConversionsTest {
+
+    // describes each node as a string
+    private static final NodeFactory<String> FACTORY = new NodeFactory<String>() {
+        @Override
+        public String permission(String permission, boolean value) {
+            return permission + "=" + value;
+        }
+
+        @Override
+        public String inheritance(String group) {
+            return "group." + group;
+        }
+
+        @Override
+        public String prefix(int priority, String prefix) {
+            return "prefix." + priority + "." + prefix;
+        }
+
+        @Override
+        public String suffix(int priority, String suffix) {
+            return "suffix." + priority + "." + suffix;
+        }
+
+        @Override
+        public String meta(String key, String value) {
+            return "meta." + key + "." + value;
+        }
+    };
+
+    @Test
+    public void convertsGroupManagerHolders() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("Prefix", "[A]");
+        variables.put("suffix", "[B]");
+        variables.put("build", "true");
+        variables.put("empty", "");
+        variables.put("rank", "1");
+
+        List<String> nodes = new ArrayList<>();
+        NodeConversions.groupManagerHolder(Arrays.asList("a.b", "-c.d", "", "+e"), Arrays.asList("Mod Team", ""), variables, 50, FACTORY, nodes::add);
+        assertEquals(Arrays.asList("a.b=true", "c.d=false", "e=true", "group.mod-team", "prefix.50.[A]", "suffix.50.[B]", "meta.rank.1"), nodes);
+    }
+
+    @Test
+    public void convertsBPermissionsHolders() {
+        Map<String, String> meta = new LinkedHashMap<>();
+        meta.put("prefix", "[A]");
+        meta.put("SUFFIX", "[B]");
+        meta.put("colour", "red");
+        meta.put("", "x");
+
+        Map<String, Boolean> children = new LinkedHashMap<>();
+        children.put("kit.a", true);
+        children.put("kit.b", false);
+
+        List<String> nodes = new ArrayList<>();
+        NodeConversions.bPermissionsHolder(Arrays.asList("a.b", "^kit", "^", "-c"), Collections.singletonList("Admin"), meta, 10,
+                name -> "default-" + name.toLowerCase(), p -> p.equals("kit") ? children : Collections.emptyMap(), FACTORY, nodes::add);
+
+        // children of a negated permission are inverted, and '-' has no meaning to bPermissions
+        assertEquals(Arrays.asList("a.b=true", "kit=false", "kit.a=false", "kit.b=true", "-c=true",
+                "group.default-admin", "prefix.10.[A]", "suffix.10.[B]", "meta.colour.red"), nodes);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.migration;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelGzipOutputStreamTest {
+    private static final int BLOCK_SIZE = 1000;
+
+    private static byte[] decompress(byte[] gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] data(int length) {
+        // half random, so some blocks compress larger than they started
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        for (int i = 0; i < length / 2; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        return data;
+    }
+
+    @Test
+    public void roundTripsAcrossBlocks() throws IOException {
+        // more blocks than can be in flight at once, ending part way through a block
+        byte[] data = data(BLOCK_SIZE * 23 + 17);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 3, BLOCK_SIZE)) {
+            // single bytes, then writes which straddle block boundaries
+            for (int i = 0; i < 10; i++) {
+                gzip.write(data[i]);
+            }
+            for (int off = 10; off < data.length; off += 1337) {
+                gzip.write(data, off, Math.min(1337, data.length - off));
+            }
+        }
+        assertArrayEquals(data, decompress(out.toByteArray()));
+    }
+
+    @Test
+    public void writesEverythingOnFlush() throws IOException {
+        byte[] data = data(BLOCK_SIZE * 2 + 500);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 2, BLOCK_SIZE);
+        gzip.write(data, 0, BLOCK_SIZE + 250);
+        gzip.flush();
+
+        byte[] flushed = new byte[BLOCK_SIZE + 250];
+        System.arraycopy(data, 0, flushed, 0, flushed.length);
+        assertArrayEquals(flushed, decompress(out.toByteArray()));
+
+        gzip.write(data, flushed.length, data.length - flushed.length);
+        gzip.close();
+        assertArrayEquals(data, decompress(out.toByteArray()));
+    }
+
+    @Test
+    public void writesValidGzipWhenEmpty() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(out, 2, BLOCK_SIZE).close();
+        assertEquals(0, decompress(out.toByteArray()).length);
+
+        // an empty flush doesn't write a member
+        out = new ByteArrayOutputStream();
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 2, BLOCK_SIZE);
+        gzip.flush();
+        assertEquals(0, out.size());
+        gzip.close();
+        assertEquals(0, decompress(out.toByteArray()).length);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class WritePipelineTest {
+
+    @Test
+    public void boundsTheWritesInFlight() throws InterruptedException {
+        WritePipeline pipeline = new WritePipeline(2);
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            writes.add(new CompletableFuture<>());
+        }
+
+        AtomicInteger started = new AtomicInteger(0);
+        Thread submitter = new Thread(() -> {
+            try {
+                for (CompletableFuture<Void> write : writes) {
+                    pipeline.submit(() -> {
+                        started.incrementAndGet();
+                        return write;
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+
+        // the third write waits for a free slot
+        submitter.join(200);
+        assertEquals(2, started.get());
+
+        writes.get(0).complete(null);
+        submitter.join(5000);
+        assertEquals(3, started.get());
+    }
+
+    @Test
+    public void waitsForEveryWrite() throws InterruptedException {
+        WritePipeline pipeline = new WritePipeline(4);
+        AtomicInteger done = new AtomicInteger(0);
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(() -> CompletableFuture.runAsync(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.incrementAndGet();
+            }));
+        }
+
+        pipeline.awaitCompletion();
+        assertEquals(20, done.get());
+    }
+
+    @Test
+    public void failedWritesReleaseTheirSlot() throws InterruptedException {
+        WritePipeline pipeline = new WritePipeline(1);
+
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new RuntimeException("expected"));
+        pipeline.submit(() -> failed);
+        pipeline.submit(() -> {
+            throw new RuntimeException("expected");
+        });
+
+        AtomicInteger ran = new AtomicInteger(0);
+        pipeline.submit(() -> {
+            ran.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+        pipeline.awaitCompletion();
+        assertEquals(1, ran.get());
+    }
+}
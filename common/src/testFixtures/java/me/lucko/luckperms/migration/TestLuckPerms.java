@@ -0,0 +1,264 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.context.Context;
+import net.luckperms.api.context.ContextManager;
+import net.luckperms.api.context.ContextSatisfyMode;
+import net.luckperms.api.context.ContextSet;
+import net.luckperms.api.context.ContextSetFactory;
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.context.MutableContextSet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Registers a minimal LuckPerms instance, so context sets can be built without a server.
+ *
+ * <p>Only the context set factory is implemented.</p>
+ */
+public final class TestLuckPerms {
+    private static boolean installed = false;
+
+    private TestLuckPerms() {}
+
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+
+        ContextSetFactory factory = new Factory();
+        ContextManager contextManager = proxy(ContextManager.class, "getContextSetFactory", factory);
+        LuckPerms luckPerms = proxy(LuckPerms.class, "getContextManager", contextManager);
+
+        try {
+            Field instance = LuckPermsProvider.class.getDeclaredField("instance");
+            instance.setAccessible(true);
+            instance.set(null, luckPerms);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+        installed = true;
+    }
+
+    private static <T> T proxy(Class<T> type, String method, Object result) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, m, args) -> {
+            if (m.getName().equals(method)) {
+                return result;
+            }
+            throw new UnsupportedOperationException(m.getName());
+        }));
+    }
+
+    private static final class Factory implements ContextSetFactory {
+        @Override
+        public ImmutableContextSet.Builder immutableBuilder() {
+            return new Builder();
+        }
+
+        @Override
+        public ImmutableContextSet immutableOf(String key, String value) {
+            return new Builder().add(key, value).build();
+        }
+
+        @Override
+        public ImmutableContextSet immutableEmpty() {
+            return new Builder().build();
+        }
+
+        @Override
+        public MutableContextSet mutable() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Builder implements ImmutableContextSet.Builder {
+        private final Map<String, Set<String>> map = new TreeMap<>();
+
+        @Override
+        public ImmutableContextSet.Builder add(String key, String value) {
+            this.map.computeIfAbsent(key.toLowerCase(), k -> new TreeSet<>()).add(value.toLowerCase());
+            return this;
+        }
+
+        @Override
+        public ImmutableContextSet.Builder addAll(ContextSet contextSet) {
+            for (Context context : contextSet) {
+                add(context.getKey(), context.getValue());
+            }
+            return this;
+        }
+
+        @Override
+        public ImmutableContextSet build() {
+            return new SimpleContextSet(this.map);
+        }
+    }
+
+    private static final class SimpleContextSet implements ImmutableContextSet {
+        private final Map<String, Set<String>> map;
+
+        SimpleContextSet(Map<String, Set<String>> map) {
+            Map<String, Set<String>> copy = new TreeMap<>();
+            map.forEach((key, values) -> copy.put(key, Collections.unmodifiableSet(new TreeSet<>(values))));
+            this.map = Collections.unmodifiableMap(copy);
+        }
+
+        @Override
+        public boolean isImmutable() {
+            return true;
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public ImmutableContextSet immutableCopy() {
+            return this;
+        }
+
+        @Override
+        public MutableContextSet mutableCopy() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<Context> toSet() {
+            Set<Context> set = new LinkedHashSet<>();
+            this.map.forEach((key, values) -> {
+                for (String value : values) {
+                    set.add(new SimpleContext(key, value));
+                }
+            });
+            return set;
+        }
+
+        @Override
+        public Map<String, Set<String>> toMap() {
+            return this.map;
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public Map<String, String> toFlattenedMap() {
+            Map<String, String> map = new HashMap<>();
+            this.map.forEach((key, values) -> map.put(key, values.iterator().next()));
+            return map;
+        }
+
+        @Override
+        public Iterator<Context> iterator() {
+            return toSet().iterator();
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return this.map.containsKey(key.toLowerCase());
+        }
+
+        @Override
+        public Set<String> getValues(String key) {
+            return this.map.getOrDefault(key.toLowerCase(), Collections.emptySet());
+        }
+
+        @Override
+        public boolean contains(String key, String value) {
+            return getValues(key).contains(value.toLowerCase());
+        }
+
+        @Override
+        public boolean isSatisfiedBy(ContextSet other, ContextSatisfyMode mode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return this.map.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return this.map.values().stream().mapToInt(Set::size).sum();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof ContextSet && this.map.equals(((ContextSet) o).toMap());
+        }
+
+        @Override
+        public int hashCode() {
+            return this.map.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return this.map.toString();
+        }
+    }
+
+    private static final class SimpleContext implements Context {
+        private final String key;
+        private final String value;
+
+        SimpleContext(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return this.key;
+        }
+
+        @Override
+        public String getValue() {
+            return this.value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Context)) return false;
+            Context other = (Context) o;
+            return this.key.equals(other.getKey()) && this.value.equals(other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.key.hashCode() + this.value.hashCode();
+        }
+    }
+}
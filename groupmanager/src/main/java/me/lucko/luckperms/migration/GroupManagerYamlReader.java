@@ -0,0 +1,252 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads GroupManager's data files directly from disk, without the plugin being loaded.
+ *
+ * <p>The {@code globalgroups.yml} file and each world's {@code groups.yml} and
+ * {@code users.yml} are streamed using {@link YamlSectionReader}, so only one group or
+ * user is held in memory at a time.</p>
+ */
+public final class GroupManagerYamlReader {
+    private final File directory;
+
+    public GroupManagerYamlReader(File directory) {
+        this.directory = directory;
+    }
+
+    public boolean exists() {
+        return new File(this.directory, "worlds").isDirectory();
+    }
+
+    /**
+     * Gets the names of the worlds which have their own data folder.
+     *
+     * @return the world names
+     */
+    public List<String> getWorlds() {
+        List<String> worlds = new ArrayList<>();
+        File[] folders = new File(this.directory, "worlds").listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                if (new File(folder, "groups.yml").exists() || new File(folder, "users.yml").exists()) {
+                    worlds.add(folder.getName());
+                }
+            }
+        }
+        Collections.sort(worlds);
+        return worlds;
+    }
+
+    /**
+     * Gets the worlds which mirror the given data type from another world, read from the
+     * {@code settings.mirrors} section of GroupManager's config.
+     *
+     * @param type the data type, either "users" or "groups"
+     * @return a map of each world to the worlds which mirror it
+     * @throws IOException if the config can't be read
+     */
+    public Map<String, Set<String>> getMirrors(String type) throws IOException {
+        Map<String, Set<String>> mirrors = new HashMap<>();
+
+        File file = new File(this.directory, "config.yml");
+        if (!file.exists()) {
+            return mirrors;
+        }
+
+        Object config;
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            config = new Yaml().load(reader);
+        }
+
+        Map<String, Object> mirrorsSection = YamlSectionReader.asMap(YamlSectionReader.asMap(YamlSectionReader.asMap(config).get("settings")).get("mirrors"));
+        for (Map.Entry<String, Object> parent : mirrorsSection.entrySet()) {
+            Set<String> children = mirrors.computeIfAbsent(parent.getKey().toLowerCase(), w -> new LinkedHashSet<>());
+            if (parent.getValue() instanceof Map) {
+                // world_nether: [users, groups]
+                for (Map.Entry<String, Object> child : YamlSectionReader.asMap(parent.getValue()).entrySet()) {
+                    List<String> types = YamlSectionReader.asStringList(child.getValue());
+                    if (types.isEmpty() || types.contains(type)) {
+                        children.add(child.getKey().toLowerCase());
+                    }
+                }
+            } else {
+                // a plain list of worlds mirrors everything
+                for (String child : YamlSectionReader.asStringList(parent.getValue())) {
+                    children.add(child.toLowerCase());
+                }
+            }
+        }
+        return mirrors;
+    }
+
+    public boolean readGlobalGroups(Throwing.Consumer<GroupData> consumer) throws IOException {
+        return readGroups(new File(this.directory, "globalgroups.yml"), consumer);
+    }
+
+    public boolean readGroups(String world, Throwing.Consumer<GroupData> consumer) throws IOException {
+        return readGroups(new File(new File(new File(this.directory, "worlds"), world), "groups.yml"), consumer);
+    }
+
+    public boolean readUsers(String world, Throwing.Consumer<UserData> consumer) throws IOException {
+        File file = new File(new File(new File(this.directory, "worlds"), world), "users.yml");
+        if (!file.exists()) {
+            return true;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return YamlSectionReader.read(reader, Collections.singleton("users"), (section, key, value) -> {
+                Map<String, Object> user = YamlSectionReader.asMap(value);
+                consumer.accept(new UserData(
+                        key,
+                        YamlSectionReader.asString(user.get("lastname")),
+                        YamlSectionReader.asString(user.get("group")),
+                        YamlSectionReader.asStringList(user.get("subgroups")),
+                        YamlSectionReader.asStringList(user.get("permissions")),
+                        readVariables(user.get("info"))
+                ));
+            });
+        }
+    }
+
+    private static boolean readGroups(File file, Throwing.Consumer<GroupData> consumer) throws IOException {
+        if (!file.exists()) {
+            return true;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return YamlSectionReader.read(reader, Collections.singleton("groups"), (section, key, value) -> {
+                Map<String, Object> group = YamlSectionReader.asMap(value);
+                consumer.accept(new GroupData(
+                        key,
+                        YamlSectionReader.asStringList(group.get("permissions")),
+                        YamlSectionReader.asStringList(group.get("inheritance")),
+                        readVariables(group.get("info"))
+                ));
+            });
+        }
+    }
+
+    private static Map<String, String> readVariables(Object info) {
+        Map<String, String> variables = new HashMap<>();
+        for (Map.Entry<String, Object> entry : YamlSectionReader.asMap(info).entrySet()) {
+            String value = YamlSectionReader.asString(entry.getValue());
+            if (value != null) {
+                variables.put(entry.getKey(), value);
+            }
+        }
+        return variables;
+    }
+
+    public static final class GroupData {
+        private final String name;
+        private final List<String> permissions;
+        private final List<String> inherits;
+        private final Map<String, String> variables;
+
+        GroupData(String name, List<String> permissions, List<String> inherits, Map<String, String> variables) {
+            this.name = name;
+            this.permissions = permissions;
+            this.inherits = inherits;
+            this.variables = variables;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public List<String> getPermissions() {
+            return this.permissions;
+        }
+
+        public List<String> getInherits() {
+            return this.inherits;
+        }
+
+        public Map<String, String> getVariables() {
+            return this.variables;
+        }
+    }
+
+    public static final class UserData {
+        private final String id;
+        private final String lastName;
+        private final String group;
+        private final List<String> subGroups;
+        private final List<String> permissions;
+        private final Map<String, String> variables;
+
+        UserData(String id, String lastName, String group, List<String> subGroups, List<String> permissions, Map<String, String> variables) {
+            this.id = id;
+            this.lastName = lastName;
+            this.group = group;
+            this.subGroups = subGroups;
+            this.permissions = permissions;
+            this.variables = variables;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public String getLastName() {
+            return this.lastName;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        public List<String> getSubGroups() {
+            return this.subGroups;
+        }
+
+        public List<String> getPermissions() {
+            return this.permissions;
+        }
+
+        public Map<String, String> getVariables() {
+            return this.variables;
+        }
+    }
+
+}
@@ -27,44 +27,69 @@ package me.lucko.luckperms.migration;
 
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.context.DefaultContextKeys;
+import net.luckperms.api.context.ImmutableContextSet;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
 import net.luckperms.api.node.types.InheritanceNode;
-import net.luckperms.api.node.types.MetaNode;
-import net.luckperms.api.node.types.PrefixNode;
-import net.luckperms.api.node.types.SuffixNode;
 
 import org.anjocaido.groupmanager.GlobalGroups;
 import org.anjocaido.groupmanager.GroupManager;
+import org.anjocaido.groupmanager.data.Variables;
 import org.anjocaido.groupmanager.dataholder.WorldDataHolder;
 import org.anjocaido.groupmanager.dataholder.worlds.WorldsHolder;
+import org.anjocaido.groupmanager.events.GMGroupEvent;
+import org.anjocaido.groupmanager.events.GMUserEvent;
 import org.bukkit.World;
 import org.bukkit.command.CommandSender;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public final class MigrationGroupManager extends MigrationJavaPlugin {
     private LuckPerms luckPerms;
-    private GroupManager gm;
+    private volatile SyncState syncState;
+
+    // users written early by the collectors are written one batch at a time
+    private final Object spillLock = new Object();
 
     @Override
     public void onEnable() {
         this.luckPerms = getServer().getServicesManager().load(LuckPerms.class);
-        this.gm = JavaPlugin.getPlugin(GroupManager.class);
     }
 
     @Override
     public void runMigration(CommandSender sender, String[] args) {
+        runMigration(sender, args, null);
+    }
+
+    @Override
+    protected void runMigration(CommandSender sender, String[] args, FailedEntities only) {
         log(sender, "Starting.");
 
         final boolean migrateAsGlobal;
@@ -76,34 +101,36 @@ public final class MigrationGroupManager extends MigrationJavaPlugin {
 
         final Function<String, String> worldMappingFunc = s -> migrateAsGlobal || s == null ? "global" : s;
 
-        if (!getServer().getPluginManager().isPluginEnabled("GroupManager")) {
+        // Read the data files directly if requested, or if GroupManager isn't enabled.
+        GroupManagerYamlReader files = new GroupManagerYamlReader(new File(getDataFolder().getParentFile(), "GroupManager"));
+        boolean fromFiles = (args.length >= 2 && args[1].equalsIgnoreCase("files")) || !getServer().getPluginManager().isPluginEnabled("GroupManager");
+
+        if (fromFiles && !files.exists()) {
             log(sender, "Plugin not loaded.");
             return;
         }
 
-        List<String> worlds = getServer().getWorlds().stream().map(World::getName).map(String::toLowerCase).collect(Collectors.toList());
+        if (fromFiles) {
+            log(sender, "Reading the GroupManager data files directly.");
+        }
+
+        // Writes which fail are retried at the end, and any still failing are saved
+        MigrationReport report = new MigrationReport();
+        RetryQueue retries = new RetryQueue(5, 1, 30, TimeUnit.SECONDS, report, msg -> log(sender, msg));
 
         // Migrate Global Groups
         log(sender, "Starting global group migration.");
-        GlobalGroups gg = GroupManager.getGlobalGroups();
-
         AtomicInteger globalGroupCount = new AtomicInteger(0);
-        Iterators.tryIterate(gg.getGroupList(), g -> {
-            String groupName = MigrationUtils.standardizeName(g.getName());
-            Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
-
-            for (String node : g.getPermissionList()) {
-                if (node.isEmpty()) continue;
-                group.data().add(MigrationUtils.parseNode(node, true).build());
-            }
-            for (String s : g.getInherits()) {
-                if (s.isEmpty()) continue;
-                group.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(s)).build());
+        if (fromFiles) {
+            try {
+                files.readGlobalGroups(g -> migrateGlobalGroup(sender, retries, only, g.getName(), g.getPermissions(), g.getInherits(), globalGroupCount));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-            this.luckPerms.getGroupManager().saveGroup(group);
-            log(sender, "Migrated " + globalGroupCount.incrementAndGet() + " groups so far.");
-        });
+        } else {
+            GlobalGroups gg = GroupManager.getGlobalGroups();
+            Iterators.tryIterate(gg.getGroupList(), g -> migrateGlobalGroup(sender, retries, only, g.getName(), g.getPermissionList(), g.getInherits(), globalGroupCount));
+        }
         log(sender, "Migrated " + globalGroupCount.get() + " global groups");
 
         // Collect data
@@ -111,150 +138,421 @@ public final class MigrationGroupManager extends MigrationJavaPlugin {
         Map<UUID, String> primaryGroups = new HashMap<>();
         Map<String, Set<Node>> groups = new HashMap<>();
 
-        WorldsHolder wh = gm.getWorldsHolder();
+        // Nodes repeated in every world, or under a wider context, are only written once
+        AtomicInteger removedNodes = new AtomicInteger(0);
+        AtomicInteger userCount = new AtomicInteger(0);
 
-        // Collect data for all users and groups.
-        log(sender, "Collecting user and group data.");
-        Iterators.tryIterate(worlds, String::toLowerCase, world -> {
-            log(sender, "Querying world " + world);
+        // If the server runs low on memory, the collectors pause and write out the users
+        // collected so far. Their primary groups are kept until the end.
+        try (HeapWatchdog watchdog = new HeapWatchdog(0.85, 0.7, report, msg -> log(sender, msg))) {
+            Set<String> knownWorlds = new HashSet<>();
+            Throwing.Consumer<WorldData> checkpoint = data -> watchdog.checkpoint(() -> spillUsers(sender, retries, data, knownWorlds, removedNodes));
+
+            // Collect data for all users and groups. The worlds don't depend on each other, so
+            // each is converted in parallel into its own partial result.
+            log(sender, "Collecting user and group data.");
+            Map<WorldDataHolder, ImmutableContextSet> holderContexts = new LinkedHashMap<>();
+            List<Supplier<WorldData>> collectors = fromFiles ? fileCollectors(sender, files, worldMappingFunc, knownWorlds, only, checkpoint) : holderCollectors(sender, worldMappingFunc, knownWorlds, holderContexts, only, checkpoint);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(collectors.size(), Runtime.getRuntime().availableProcessors())));
+            List<CompletableFuture<WorldData>> worldData = new ArrayList<>();
+            for (Supplier<WorldData> collector : collectors) {
+                worldData.add(CompletableFuture.supplyAsync(collector, executor));
+            }
+            executor.shutdown();
+
+            // Merge the partial results, in world order so the chosen primary groups are the same as before
+            for (CompletableFuture<WorldData> future : worldData) {
+                try {
+                    future.join().mergeInto(users, primaryGroups, groups);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
 
-            WorldDataHolder wdh = wh.getWorldData(world);
+            // users written early still need their primary group
+            for (UUID uuid : primaryGroups.keySet()) {
+                users.putIfAbsent(new UserIdentifier(uuid, null), new HashSet<>());
+            }
 
-            AtomicInteger groupWorldCount = new AtomicInteger(0);
-            Iterators.tryIterate(wdh.getGroupList(), group -> {
-                String groupName = MigrationUtils.standardizeName(group.getName());
+            log(sender, "All data has now been processed, now starting the import process.");
+            log(sender, "Found a total of " + users.size() + " users and " + groups.size() + " groups.");
+
+            log(sender, "Starting group migration.");
+            AtomicInteger groupCount = new AtomicInteger(0);
+            Iterators.tryIterate(groups.entrySet(), e -> {
+                Set<Node> nodes = NodeCompactor.compact(e.getValue(), knownWorlds);
+                removedNodes.addAndGet(e.getValue().size() - nodes.size());
+
+                retries.run(FailedEntities.group(e.getKey()), () -> {
+                    Group group = this.luckPerms.getGroupManager().createAndLoadGroup(e.getKey()).join();
+                    MigrationUtils.addNodes(group, nodes);
+                    return this.luckPerms.getGroupManager().saveGroup(group);
+                });
+                log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+            });
+            log(sender, "Migrated " + groupCount.get() + " groups");
 
-                groups.putIfAbsent(groupName, new HashSet<>());
+            log(sender, "Starting user migration.");
+            Iterators.tryIterate(users.entrySet(), e -> {
+                Set<Node> nodes = NodeCompactor.compact(e.getValue(), knownWorlds);
+                removedNodes.addAndGet(e.getValue().size() - nodes.size());
 
-                for (String node : group.getPermissionList()) {
-                    if (node.isEmpty()) continue;
-                    groups.get(groupName).add(MigrationUtils.parseNode(node, true).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                }
-                for (String s : group.getInherits()) {
-                    if (s.isEmpty()) continue;
-                    groups.get(groupName).add(InheritanceNode.builder(MigrationUtils.standardizeName(s)).value(true).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
+                String primaryGroup = primaryGroups.get(e.getKey().uuid);
+                boolean hasPrimaryGroup = primaryGroup != null && !primaryGroup.isEmpty();
+                if (hasPrimaryGroup) {
+                    nodes.add(InheritanceNode.builder(primaryGroup).build());
                 }
 
-                String[] metaKeys = group.getVariables().getVarKeyList();
-                for (String key : metaKeys) {
-                    String value = group.getVariables().getVarString(key);
-                    key = key.toLowerCase();
-                    if (key.isEmpty() || value.isEmpty()) continue;
-                    if (key.equals("build")) continue;
-
-                    if (key.equals("prefix")) {
-                        groups.get(groupName).add(PrefixNode.builder(value, 50).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                    } else if (key.equals("suffix")) {
-                        groups.get(groupName).add(SuffixNode.builder(value, 50).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                    } else {
-                        groups.get(groupName).add(MetaNode.builder(key, value).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
+                retries.run(FailedEntities.user(e.getKey().uuid.toString()), () -> {
+                    User user = this.luckPerms.getUserManager().loadUser(e.getKey().uuid, e.getKey().name).join();
+                    MigrationUtils.addNodes(user, nodes);
+
+                    if (hasPrimaryGroup) {
+                        user.setPrimaryGroup(primaryGroup);
+                        user.data().remove(InheritanceNode.builder("default").build());
                     }
+
+                    CompletableFuture<Void> save = this.luckPerms.getUserManager().saveUser(user);
+                    this.luckPerms.getUserManager().cleanupUser(user);
+                    return save;
+                });
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
                 }
+            });
+
+            // remembered in case further changes are synced, which needs GroupManager to be running
+            this.syncState = fromFiles ? null : new SyncState(holderContexts, knownWorlds);
+        }
+
+        log(sender, "Migrated " + userCount.get() + " users.");
+        log(sender, "Removed " + removedNodes.get() + " redundant nodes.");
+        saveFailures(sender, args, retries.retryFailed());
+        log(sender, report);
+        log(sender, "Success! Migration complete.");
+        log(sender, "Don't forget to remove the GroupManager jar from your plugins folder & restart the server. " +
+                "LuckPerms may not take over as the server permission handler until this is done.");
+    }
 
+    private void migrateGlobalGroup(CommandSender sender, RetryQueue retries, FailedEntities only, String name, Collection<String> permissions, Collection<String> inherits, AtomicInteger count) {
+        String groupName = MigrationUtils.standardizeName(name);
+        if (only != null && !only.contains(FailedEntities.group(groupName))) {
+            return;
+        }
+
+        // global groups have no variables
+        Set<Node> nodes = new LinkedHashSet<>();
+        NodeConversions.groupManagerHolder(permissions, inherits, Collections.emptyMap(), 50, new LuckPermsNodeFactory(ImmutableContextSet.empty()), nodes::add);
+
+        retries.run(FailedEntities.group(groupName), () -> {
+            Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+            MigrationUtils.addNodes(group, nodes);
+            return this.luckPerms.getGroupManager().saveGroup(group);
+        });
+        log(sender, "Migrated " + count.incrementAndGet() + " groups so far.");
+    }
+
+    private List<Supplier<WorldData>> holderCollectors(CommandSender sender, Function<String, String> worldMappingFunc, Set<String> knownWorlds, Map<WorldDataHolder, ImmutableContextSet> holderContexts, FailedEntities only, Throwing.Consumer<WorldData> checkpoint) {
+        List<String> worlds = getServer().getWorlds().stream().map(World::getName).map(String::toLowerCase).collect(Collectors.toList());
+        knownWorlds.addAll(worlds);
+        WorldsHolder wh = JavaPlugin.getPlugin(GroupManager.class).getWorldsHolder();
+
+        // Mirrored worlds share the same WorldDataHolder, so group the worlds by holder and
+        // only collect each distinct set of data once.
+        List<WorldDataHolder> holders = new ArrayList<>();
+        Map<WorldDataHolder, List<String>> holderWorlds = new IdentityHashMap<>();
+        for (String world : worlds) {
+            WorldDataHolder wdh = wh.getWorldData(world);
+            holderWorlds.computeIfAbsent(wdh, h -> {
+                holders.add(h);
+                return new ArrayList<>();
+            }).add(world);
+        }
+
+        List<Supplier<WorldData>> collectors = new ArrayList<>();
+        for (WorldDataHolder wdh : holders) {
+            List<String> holderWorldNames = holderWorlds.get(wdh);
+
+            // the data applies in every world which shares the holder
+            ImmutableContextSet context = worldContext(holderWorldNames, worldMappingFunc);
+            holderContexts.put(wdh, context);
+            String description = String.join(", ", holderWorldNames);
+
+            // GroupManager isn't thread safe, so it's only read on this thread. The copied
+            // data is then converted in parallel.
+            List<GroupManagerYamlReader.GroupData> groups = new ArrayList<>();
+            List<GroupManagerYamlReader.UserData> users = new ArrayList<>();
+            readHolder(sender, wdh, description, groups, users);
+            collectors.add(() -> collectHolder(sender, description, groups, users, context, only, checkpoint));
+        }
+        return collectors;
+    }
+
+    private List<Supplier<WorldData>> fileCollectors(CommandSender sender, GroupManagerYamlReader files, Function<String, String> worldMappingFunc, Set<String> knownWorlds, FailedEntities only, Throwing.Consumer<WorldData> checkpoint) {
+        Map<String, Set<String>> groupMirrors;
+        Map<String, Set<String>> userMirrors;
+        try {
+            groupMirrors = files.getMirrors("groups");
+            userMirrors = files.getMirrors("users");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // Mirrored worlds don't have their own data folder, so each folder is a distinct set of data.
+        List<Supplier<WorldData>> collectors = new ArrayList<>();
+        for (String world : files.getWorlds()) {
+            List<String> groupWorlds = new ArrayList<>();
+            groupWorlds.add(world.toLowerCase());
+            groupWorlds.addAll(groupMirrors.getOrDefault(world.toLowerCase(), Collections.emptySet()));
+
+            List<String> userWorlds = new ArrayList<>();
+            userWorlds.add(world.toLowerCase());
+            userWorlds.addAll(userMirrors.getOrDefault(world.toLowerCase(), Collections.emptySet()));
+
+            knownWorlds.addAll(groupWorlds);
+            knownWorlds.addAll(userWorlds);
+
+            ImmutableContextSet groupContext = worldContext(groupWorlds, worldMappingFunc);
+            ImmutableContextSet userContext = worldContext(userWorlds, worldMappingFunc);
+            collectors.add(() -> collectFiles(sender, files, world, groupContext, userContext, only, checkpoint));
+        }
+        return collectors;
+    }
+
+    // a "global" world is left out, as LuckPerms would never match it
+    static ImmutableContextSet worldContext(Collection<String> worlds, Function<String, String> worldMappingFunc) {
+        ImmutableContextSet.Builder context = ImmutableContextSet.builder();
+        for (String world : worlds) {
+            String mapped = worldMappingFunc.apply(world);
+            if (!ContextCache.isGlobal(mapped)) {
+                context.add(DefaultContextKeys.WORLD_KEY, mapped);
+            }
+        }
+        return context.build();
+    }
+
+    private void readHolder(CommandSender sender, WorldDataHolder wdh, String world, List<GroupManagerYamlReader.GroupData> groups, List<GroupManagerYamlReader.UserData> users) {
+        log(sender, "Querying world " + world);
+
+        Iterators.tryIterate(wdh.getGroupList(), group -> groups.add(new GroupManagerYamlReader.GroupData(group.getName(),
+                new ArrayList<>(group.getPermissionList()), new ArrayList<>(group.getInherits()), variables(group.getVariables()))));
+
+        Iterators.tryIterate(wdh.getUserList(), user -> {
+            // resolved here, as it may need to look up the player
+            UUID uuid = lookupUuid(user.getUUID());
+            if (uuid == null) {
+                return;
+            }
+            users.add(new GroupManagerYamlReader.UserData(uuid.toString(), user.getLastName(), user.getGroupName(),
+                    new ArrayList<>(user.subGroupListStringCopy()), new ArrayList<>(user.getPermissionList()), variables(user.getVariables())));
+        });
+    }
+
+    private WorldData collectHolder(CommandSender sender, String world, List<GroupManagerYamlReader.GroupData> groups, List<GroupManagerYamlReader.UserData> users, ImmutableContextSet context, FailedEntities only, Throwing.Consumer<WorldData> checkpoint) {
+        WorldData data = new WorldData(only);
+
+        AtomicInteger groupWorldCount = new AtomicInteger(0);
+        Iterators.tryIterate(groups, group -> {
+            collectGroup(data, group.getName(), group.getPermissions(), group.getInherits(), group.getVariables(), context);
+            log(sender, "Migrated " + groupWorldCount.incrementAndGet() + " groups so far in world " + world);
+        });
+        log(sender, "Migrated " + groupWorldCount.get() + " groups in world " + world);
+
+        AtomicInteger userWorldCount = new AtomicInteger(0);
+        Iterators.tryIterate(users, user -> {
+            collectUser(data, user.getId(), user.getLastName(), user.getGroup(), user.getSubGroups(), user.getPermissions(), user.getVariables(), context);
+            if (userWorldCount.incrementAndGet() % 500 == 0) {
+                log(sender, "Migrated " + userWorldCount.get() + " users so far in world " + world);
+            }
+            checkpoint.accept(data);
+        });
+        log(sender, "Migrated " + userWorldCount.get() + " users in world " + world);
+        return data;
+    }
+
+    private WorldData collectFiles(CommandSender sender, GroupManagerYamlReader files, String world, ImmutableContextSet groupContext, ImmutableContextSet userContext, FailedEntities only, Throwing.Consumer<WorldData> checkpoint) {
+        WorldData data = new WorldData(only);
+
+        log(sender, "Reading world " + world);
+
+        try {
+            AtomicInteger groupWorldCount = new AtomicInteger(0);
+            files.readGroups(world, group -> {
+                collectGroup(data, group.getName(), group.getPermissions(), group.getInherits(), group.getVariables(), groupContext);
                 log(sender, "Migrated " + groupWorldCount.incrementAndGet() + " groups so far in world " + world);
             });
             log(sender, "Migrated " + groupWorldCount.get() + " groups in world " + world);
 
             AtomicInteger userWorldCount = new AtomicInteger(0);
-            Iterators.tryIterate(wdh.getUserList(), user -> {
-                UUID uuid = lookupUuid(user.getUUID());
-                if (uuid == null) {
-                    return;
+            files.readUsers(world, user -> {
+                collectUser(data, user.getId(), user.getLastName(), user.getGroup(), user.getSubGroups(), user.getPermissions(), user.getVariables(), userContext);
+                if (userWorldCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userWorldCount.get() + " users so far in world " + world);
                 }
+                checkpoint.accept(data);
+            });
+            log(sender, "Migrated " + userWorldCount.get() + " users in world " + world);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return data;
+    }
 
-                String lastName = user.getLastName();
-                if (lastName != null && Uuids.parse(lastName) != null) {
-                    lastName = null;
-                }
+    // writes the users a collector has gathered so far, so their nodes can be reclaimed
+    private void spillUsers(CommandSender sender, RetryQueue retries, WorldData data, Set<String> knownWorlds, AtomicInteger removedNodes) {
+        synchronized (this.spillLock) {
+            log(sender, "Writing " + data.users.size() + " collected users early.");
+
+            List<CompletableFuture<Void>> saves = new ArrayList<>();
+            Iterators.tryIterate(data.users.entrySet(), e -> {
+                // nodes are only ever added, so the rest of the user's data is added later
+                Set<Node> nodes = NodeCompactor.compact(e.getValue(), knownWorlds);
+                removedNodes.addAndGet(e.getValue().size() - nodes.size());
+
+                retries.run(FailedEntities.user(e.getKey().uuid.toString()), () -> {
+                    User user = this.luckPerms.getUserManager().loadUser(e.getKey().uuid, e.getKey().name).join();
+                    MigrationUtils.addNodes(user, nodes);
+
+                    CompletableFuture<Void> save = this.luckPerms.getUserManager().saveUser(user);
+                    saves.add(save);
+                    this.luckPerms.getUserManager().cleanupUser(user);
+                    return save;
+                });
+            });
+            data.users.clear();
 
-                UserIdentifier id = new UserIdentifier(uuid, lastName);
+            // the user may be loaded again by another collector, or once collection is done.
+            // failed saves are left to the retry queue.
+            CompletableFuture.allOf(saves.toArray(new CompletableFuture[0])).handle((result, ex) -> null).join();
+        }
+    }
 
-                users.putIfAbsent(id, new HashSet<>());
+    private static void collectGroup(WorldData data, String name, Collection<String> permissions, Collection<String> inherits, Map<String, String> variables, ImmutableContextSet context) {
+        String groupName = MigrationUtils.standardizeName(name);
+        if (!data.includes(FailedEntities.group(groupName))) {
+            return;
+        }
 
-                for (String node : user.getPermissionList()) {
-                    if (node.isEmpty()) continue;
-                    users.get(id).add(MigrationUtils.parseNode(node, true).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                }
+        Set<Node> nodes = data.groups.computeIfAbsent(groupName, g -> new HashSet<>());
+        NodeConversions.groupManagerHolder(permissions, inherits, variables, 50, new LuckPermsNodeFactory(context), nodes::add);
+    }
 
-                // Collect sub groups
-                String finalWorld = worldMappingFunc.apply(world);
-                users.get(id).addAll(user.subGroupListStringCopy().stream()
-                        .filter(n -> !n.isEmpty())
-                        .map(MigrationUtils::standardizeName)
-                        .map(n -> InheritanceNode.builder(n).value(true).withContext(DefaultContextKeys.WORLD_KEY, finalWorld).build())
-                        .collect(Collectors.toSet())
-                );
-
-                // Get primary group
-                primaryGroups.put(uuid, MigrationUtils.standardizeName(user.getGroupName()));
-
-                String[] metaKeys = user.getVariables().getVarKeyList();
-                for (String key : metaKeys) {
-                    String value = user.getVariables().getVarString(key);
-                    key = key.toLowerCase();
-                    if (key.isEmpty() || value.isEmpty()) continue;
-                    if (key.equals("build")) continue;
-
-                    if (key.equals("prefix")) {
-                        users.get(id).add(PrefixNode.builder(value, 100).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                    } else if (key.equals("suffix")) {
-                        users.get(id).add(SuffixNode.builder(value, 100).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                    } else {
-                        users.get(id).add(MetaNode.builder(key, value).withContext(DefaultContextKeys.WORLD_KEY, worldMappingFunc.apply(world)).build());
-                    }
-                }
+    private void collectUser(WorldData data, String uuidString, String lastName, String groupName, Collection<String> subGroups, Collection<String> permissions, Map<String, String> variables, ImmutableContextSet context) {
+        UUID uuid = lookupUuid(uuidString);
+        if (uuid == null || !data.includes(FailedEntities.user(uuid.toString()))) {
+            return;
+        }
 
-                if (userWorldCount.incrementAndGet() % 500 == 0) {
-                    log(sender, "Migrated " + userWorldCount.get() + " users so far in world " + world);
+        if (lastName != null && Uuids.parse(lastName) != null) {
+            lastName = null;
+        }
+
+        Set<Node> nodes = data.users.computeIfAbsent(new UserIdentifier(uuid, lastName), u -> new HashSet<>());
+
+        // Collect permissions, sub groups and variables
+        NodeConversions.groupManagerHolder(permissions, subGroups, variables, 100, new LuckPermsNodeFactory(context), nodes::add);
+
+        // Get primary group
+        if (groupName != null) {
+            data.primaryGroups.put(uuid, MigrationUtils.standardizeName(groupName));
+        }
+    }
+
+    private static Map<String, String> variables(Variables variables) {
+        Map<String, String> map = new HashMap<>();
+        for (String key : variables.getVarKeyList()) {
+            map.put(key, variables.getVarString(key));
+        }
+        return map;
+    }
+
+    @Override
+    protected Listener createSyncListener(LiveSync sync) {
+        SyncState state = this.syncState;
+        if (state == null) {
+            // the migration didn't complete, or GroupManager isn't running
+            return null;
+        }
+        return new SyncListener(sync, state);
+    }
+
+    // GroupManager isn't thread safe, so it's read on the main thread during a sync
+    private <T> T readGroupManager(Callable<T> read) throws Exception {
+        return getServer().getScheduler().callSyncMethod(this, read).get();
+    }
+
+    private void syncUser(SyncState state, String userId) throws Exception {
+        UUID uuid = lookupUuid(userId);
+        if (uuid == null) {
+            return;
+        }
+
+        // collect the user from each world they're declared in, as the migration does
+        WorldData data = readGroupManager(() -> {
+            WorldData worldData = new WorldData();
+            state.holderContexts.forEach((wdh, context) -> {
+                if (wdh.isUserDeclared(userId)) {
+                    collectUser(worldData, wdh.getUser(userId), context);
                 }
             });
-            log(sender, "Migrated " + userWorldCount.get() + " users in world " + world);
+            return worldData;
         });
 
-        log(sender, "All data has now been processed, now starting the import process.");
-        log(sender, "Found a total of " + users.size() + " users and " + groups.size() + " groups.");
+        Set<Node> nodes = new LinkedHashSet<>();
+        String name = null;
+        for (Map.Entry<UserIdentifier, Set<Node>> e : data.users.entrySet()) {
+            nodes.addAll(e.getValue());
+            name = e.getKey().name;
+        }
+        nodes = NodeCompactor.compact(nodes, state.knownWorlds);
 
-        log(sender, "Starting group migration.");
-        AtomicInteger groupCount = new AtomicInteger(0);
-        Iterators.tryIterate(groups.entrySet(), e -> {
-            Group group = this.luckPerms.getGroupManager().createAndLoadGroup(e.getKey()).join();
+        String primaryGroup = data.primaryGroups.get(uuid);
+        if (primaryGroup == null || primaryGroup.isEmpty()) {
+            primaryGroup = "default";
+        }
+        nodes.add(InheritanceNode.builder(primaryGroup).build());
 
-            for (Node node : e.getValue()) {
-                group.data().add(node);
-            }
+        User user = this.luckPerms.getUserManager().loadUser(uuid, name).join();
+        MigrationUtils.setNodes(user, nodes);
+        user.setPrimaryGroup(primaryGroup);
 
-            this.luckPerms.getGroupManager().saveGroup(group);
-            log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
-        });
-        log(sender, "Migrated " + groupCount.get() + " groups");
+        this.luckPerms.getUserManager().saveUser(user).join();
+        this.luckPerms.getUserManager().cleanupUser(user);
+    }
 
-        log(sender, "Starting user migration.");
-        AtomicInteger userCount = new AtomicInteger(0);
-        Iterators.tryIterate(users.entrySet(), e -> {
-            User user = this.luckPerms.getUserManager().loadUser(e.getKey().uuid, e.getKey().name).join();
+    private void syncGroup(SyncState state, String name) throws Exception {
+        String groupName = MigrationUtils.standardizeName(name);
 
-            for (Node node : e.getValue()) {
-                user.data().add(node);
-            }
+        WorldData data = readGroupManager(() -> {
+            WorldData worldData = new WorldData();
+            state.holderContexts.forEach((wdh, context) -> {
+                if (wdh.groupExists(name)) {
+                    collectGroup(worldData, wdh.getGroup(name), context);
+                }
+            });
+            return worldData;
+        });
 
-            String primaryGroup = primaryGroups.get(e.getKey().uuid);
-            if (primaryGroup != null && !primaryGroup.isEmpty()) {
-                user.data().add(InheritanceNode.builder(primaryGroup).build());
-                user.setPrimaryGroup(primaryGroup);
-                user.data().remove(InheritanceNode.builder("default").build());
-            }
+        Set<Node> nodes = data.groups.get(groupName);
+        if (nodes == null) {
+            // the group has been removed from every world
+            this.luckPerms.getGroupManager().loadGroup(groupName).join()
+                    .ifPresent(group -> this.luckPerms.getGroupManager().deleteGroup(group).join());
+            return;
+        }
 
-            this.luckPerms.getUserManager().saveUser(user);
-            this.luckPerms.getUserManager().cleanupUser(user);
-            if (userCount.incrementAndGet() % 500 == 0) {
-                log(sender, "Migrated " + userCount.get() + " users so far.");
-            }
-        });
+        Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+        MigrationUtils.setNodes(group, NodeCompactor.compact(nodes, state.knownWorlds));
+        this.luckPerms.getGroupManager().saveGroup(group).join();
+    }
 
-        log(sender, "Migrated " + userCount.get() + " users.");
-        log(sender, "Success! Migration complete.");
-        log(sender, "Don't forget to remove the GroupManager jar from your plugins folder & restart the server. " +
-                "LuckPerms may not take over as the server permission handler until this is done.");
+    private void collectUser(WorldData data, org.anjocaido.groupmanager.data.User user, ImmutableContextSet context) {
+        collectUser(data, user.getUUID(), user.getLastName(), user.getGroupName(), user.subGroupListStringCopy(), user.getPermissionList(), variables(user.getVariables()), context);
+    }
+
+    private static void collectGroup(WorldData data, org.anjocaido.groupmanager.data.Group group, ImmutableContextSet context) {
+        collectGroup(data, group.getName(), group.getPermissionList(), group.getInherits(), variables(group.getVariables()), context);
     }
 
     public UUID lookupUuid(String s) {
@@ -273,6 +571,87 @@ public final class MigrationGroupManager extends MigrationJavaPlugin {
         return uuid;
     }
 
+    /**
+     * What is needed from a completed migration to collect a single user or group again.
+     */
+    private static final class SyncState {
+        final Map<WorldDataHolder, ImmutableContextSet> holderContexts;
+        final Set<String> knownWorlds;
+
+        SyncState(Map<WorldDataHolder, ImmutableContextSet> holderContexts, Set<String> knownWorlds) {
+            this.holderContexts = holderContexts;
+            this.knownWorlds = knownWorlds;
+        }
+    }
+
+    /**
+     * Records changes to GroupManager users and groups.
+     */
+    private final class SyncListener implements Listener {
+        private final LiveSync sync;
+        private final SyncState state;
+
+        SyncListener(LiveSync sync, SyncState state) {
+            this.sync = sync;
+            this.state = state;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onUserChange(GMUserEvent e) {
+            // the user isn't given when they've been removed
+            String userId = e.getUser() != null ? e.getUser().getUUID() : e.getUserName();
+            if (userId == null) {
+                return;
+            }
+            this.sync.changed("user:" + userId.toLowerCase(), () -> syncUser(this.state, userId));
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onGroupChange(GMGroupEvent e) {
+            String name = e.getGroup() != null ? e.getGroup().getName() : e.getGroupName();
+            if (name == null || name.startsWith("g:")) {
+                // global groups aren't held by a world, and are only migrated once
+                return;
+            }
+            this.sync.changed("group:" + MigrationUtils.standardizeName(name), () -> syncGroup(this.state, name));
+        }
+    }
+
+    /**
+     * The users and groups collected from a single world.
+     */
+    private static final class WorldData {
+        final Map<UserIdentifier, Set<Node>> users = new HashMap<>();
+        final Map<UUID, String> primaryGroups = new HashMap<>();
+        final Map<String, Set<Node>> groups = new HashMap<>();
+
+        // the entities to collect, or null for all of them
+        private final FailedEntities only;
+
+        WorldData(FailedEntities only) {
+            this.only = only;
+        }
+
+        WorldData() {
+            this(null);
+        }
+
+        boolean includes(String entity) {
+            return this.only == null || this.only.contains(entity);
+        }
+
+        void mergeInto(Map<UserIdentifier, Set<Node>> users, Map<UUID, String> primaryGroups, Map<String, Set<Node>> groups) {
+            this.users.forEach((id, nodes) -> users.merge(id, nodes, WorldData::union));
+            primaryGroups.putAll(this.primaryGroups);
+            this.groups.forEach((name, nodes) -> groups.merge(name, nodes, WorldData::union));
+        }
+
+        private static Set<Node> union(Set<Node> a, Set<Node> b) {
+            a.addAll(b);
+            return a;
+        }
+    }
+
     private static final class UserIdentifier {
         final UUID uuid;
         final String name;
@@ -281,5 +660,15 @@ public final class MigrationGroupManager extends MigrationJavaPlugin {
             this.uuid = uuid;
             this.name = name;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof UserIdentifier && this.uuid.equals(((UserIdentifier) o).uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.uuid.hashCode();
+        }
     }
 }
@@ -28,18 +28,20 @@ package me.lucko.luckperms.migration;
 import com.platymuus.bukkit.permissions.PermissionsPlugin;
 
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.context.DefaultContextKeys;
 import net.luckperms.api.model.PermissionHolder;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
 import net.luckperms.api.node.types.InheritanceNode;
 
 import org.bukkit.command.CommandSender;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -57,97 +59,71 @@ public final class MigrationPermissionsBukkit extends MigrationJavaPlugin {
     public void runMigration(CommandSender sender, String[] args) {
         log(sender, "Starting.");
 
-        FileConfiguration config = permissionsBukkit.getConfig();
+        // stream the config from disk, so only one group or user is in memory at a time
+        PermissionsBukkitYamlReader reader = new PermissionsBukkitYamlReader(new File(this.permissionsBukkit.getDataFolder(), "config.yml"));
 
-        // Migrate all groups
-        log(sender, "Starting group migration.");
+        log(sender, "Starting group and user migration.");
         AtomicInteger groupCount = new AtomicInteger(0);
-
-        ConfigurationSection groupsSection = config.getConfigurationSection("groups");
-
-        Iterators.tryIterate(groupsSection.getKeys(false), key -> {
-            final String groupName = MigrationUtils.standardizeName(key);
-            Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
-
-            // migrate data
-            if (groupsSection.isConfigurationSection(key)) {
-                migrate(lpGroup, groupsSection.getConfigurationSection(key));
-            }
-
-            this.luckPerms.getGroupManager().saveGroup(lpGroup).join();
-            log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
-        });
-        log(sender, "Migrated " + groupCount.get() + " groups");
-
-        // Migrate all users
-        log(sender, "Starting user migration.");
         AtomicInteger userCount = new AtomicInteger(0);
 
-        ConfigurationSection usersSection = config.getConfigurationSection("users");
+        try {
+            reader.read(group -> {
+                final String groupName = MigrationUtils.standardizeName(group.getName());
+                Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
 
-        Iterators.tryIterate(usersSection.getKeys(false), key -> {
-            UUID uuid = lookupUuid(key);
-            if (uuid == null) {
-                return;
-            }
+                // migrate data
+                migrate(lpGroup, group);
 
-            User lpUser = this.luckPerms.getUserManager().loadUser(uuid).join();
+                this.luckPerms.getGroupManager().saveGroup(lpGroup).join();
+                log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+            }, user -> {
+                UUID uuid = lookupUuid(user.getName());
+                if (uuid == null) {
+                    return;
+                }
 
-            // migrate data
-            if (usersSection.isConfigurationSection(key)) {
-                migrate(lpUser, usersSection.getConfigurationSection(key));
-            }
+                User lpUser = this.luckPerms.getUserManager().loadUser(uuid).join();
 
+                // migrate data
+                migrate(lpUser, user);
 
-            this.luckPerms.getUserManager().saveUser(lpUser);
-            this.luckPerms.getUserManager().cleanupUser(lpUser);
-            if (userCount.incrementAndGet() % 500 == 0) {
-                log(sender, "Migrated " + userCount.get() + " users so far.");
-            }
-        });
+                this.luckPerms.getUserManager().saveUser(lpUser);
+                this.luckPerms.getUserManager().cleanupUser(lpUser);
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
+        log(sender, "Migrated " + groupCount.get() + " groups");
         log(sender, "Migrated " + userCount.get() + " users.");
         log(sender, "Success! Migration complete.");
         log(sender, "Don't forget to remove the PermissionsBukkit jar from your plugins folder & restart the server. " +
                 "LuckPerms may not take over as the server permission handler until this is done.");
     }
 
-    private static void migrate(PermissionHolder holder, ConfigurationSection data) {
+    private static void migrate(PermissionHolder holder, PermissionsBukkitYamlReader.HolderData data) {
+        Set<Node> nodes = new LinkedHashSet<>();
+
         // migrate permissions
-        if (data.isConfigurationSection("permissions")) {
-            ConfigurationSection permsSection = data.getConfigurationSection("permissions");
-            for (String perm : permsSection.getKeys(false)) {
-                boolean value = permsSection.getBoolean(perm);
-                holder.data().add(MigrationUtils.parseNode(perm, value).build());
-            }
+        for (Map.Entry<String, Boolean> perm : data.getPermissions().entrySet()) {
+            nodes.add(MigrationUtils.parseNode(perm.getKey(), perm.getValue()).build());
         }
 
-        if (data.isConfigurationSection("worlds")) {
-            ConfigurationSection worldSection = data.getConfigurationSection("worlds");
-            for (String world : worldSection.getKeys(false)) {
-                if (worldSection.isConfigurationSection(world)) {
-                    ConfigurationSection permsSection = worldSection.getConfigurationSection(world);
-                    for (String perm : permsSection.getKeys(false)) {
-                        boolean value = permsSection.getBoolean(perm);
-                        holder.data().add(MigrationUtils.parseNode(perm, value).withContext(DefaultContextKeys.WORLD_KEY, world).build());
-                    }
-                }
+        for (Map.Entry<String, Map<String, Boolean>> world : data.getWorldPermissions().entrySet()) {
+            for (Map.Entry<String, Boolean> perm : world.getValue().entrySet()) {
+                nodes.add(MigrationUtils.parseNode(perm.getKey(), perm.getValue()).withContext(ContextCache.world(world.getKey())).build());
             }
         }
 
         // migrate parents
-        if (data.isList("groups")) {
-            List<String> groups = data.getStringList("groups");
-            for (String group : groups) {
-                holder.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(group)).build());
-            }
-        }
-        if (data.isList("inheritance")) {
-            List<String> groups = data.getStringList("inheritance");
-            for (String group : groups) {
-                holder.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(group)).build());
-            }
+        for (String group : data.getParents()) {
+            nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(group)).build());
         }
+
+        MigrationUtils.addNodes(holder, nodes);
     }
 
     public UUID lookupUuid(String s) {
@@ -0,0 +1,128 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the groups and users from PermissionsBukkit's {@code config.yml} directly from disk.
+ *
+ * <p>The file is streamed using {@link YamlSectionReader}, so only one group or user is
+ * held in memory at a time, rather than the whole configuration.</p>
+ */
+public final class PermissionsBukkitYamlReader {
+    private final File file;
+
+    public PermissionsBukkitYamlReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the groups and users, in the order they appear in the file.
+     *
+     * @param groups the group consumer
+     * @param users the user consumer
+     * @return true if all entries were read successfully
+     * @throws IOException if the file can't be read
+     */
+    public boolean read(Throwing.Consumer<HolderData> groups, Throwing.Consumer<HolderData> users) throws IOException {
+        try (Reader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+            return YamlSectionReader.read(reader, Arrays.asList("groups", "users"), (section, key, value) -> {
+                HolderData data = read(key, YamlSectionReader.asMap(value));
+                if (section.equals("groups")) {
+                    groups.accept(data);
+                } else {
+                    users.accept(data);
+                }
+            });
+        }
+    }
+
+    private static HolderData read(String name, Map<String, Object> section) {
+        HolderData data = new HolderData(name);
+        readPermissions(section.get("permissions"), data.permissions);
+
+        for (Map.Entry<String, Object> world : YamlSectionReader.asMap(section.get("worlds")).entrySet()) {
+            readPermissions(world.getValue(), data.worldPermissions.computeIfAbsent(world.getKey(), w -> new LinkedHashMap<>()));
+        }
+
+        data.parents.addAll(YamlSectionReader.asStringList(section.get("groups")));
+        data.parents.addAll(YamlSectionReader.asStringList(section.get("inheritance")));
+        return data;
+    }
+
+    private static void readPermissions(Object section, Map<String, Boolean> permissions) {
+        for (Map.Entry<String, Object> permission : YamlSectionReader.asMap(section).entrySet()) {
+            permissions.put(permission.getKey(), YamlSectionReader.asBoolean(permission.getValue()));
+        }
+    }
+
+    /**
+     * The raw data stored for a single group or user.
+     */
+    public static final class HolderData {
+        private final String name;
+        private final Map<String, Boolean> permissions = new LinkedHashMap<>();
+        private final Map<String, Map<String, Boolean>> worldPermissions = new LinkedHashMap<>();
+        private final List<String> parents = new ArrayList<>();
+
+        HolderData(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public Map<String, Boolean> getPermissions() {
+            return this.permissions;
+        }
+
+        public Map<String, Map<String, Boolean>> getWorldPermissions() {
+            return this.worldPermissions;
+        }
+
+        /**
+         * Gets the holder's parent groups, from both the "groups" and "inheritance" lists.
+         *
+         * @return the parents
+         */
+        public List<String> getParents() {
+            return this.parents;
+        }
+    }
+
+}
@@ -28,18 +28,24 @@ package me.lucko.luckperms.migration;
 import com.google.common.base.Strings;
 
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.context.DefaultContextKeys;
-import net.luckperms.api.model.PermissionHolder;
+import net.luckperms.api.context.ImmutableContextSet;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
 import net.luckperms.api.node.types.InheritanceNode;
 import net.luckperms.api.node.types.MetaNode;
 import net.luckperms.api.node.types.PrefixNode;
 import net.luckperms.api.node.types.SuffixNode;
+import net.luckperms.api.node.types.WeightNode;
 import net.luckperms.api.track.Track;
 
+import org.bukkit.World;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import ru.tehkode.permissions.NativeInterface;
@@ -48,26 +54,42 @@ import ru.tehkode.permissions.PermissionGroup;
 import ru.tehkode.permissions.PermissionManager;
 import ru.tehkode.permissions.PermissionUser;
 import ru.tehkode.permissions.PermissionsData;
+import ru.tehkode.permissions.PermissionsUserData;
 import ru.tehkode.permissions.bukkit.PermissionsEx;
+import ru.tehkode.permissions.events.PermissionEntityEvent;
 import ru.tehkode.permissions.events.PermissionEvent;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 public final class MigrationPermissionsEx extends MigrationJavaPlugin {
     private LuckPerms luckPerms;
     private PermissionsEx pex;
+    private volatile SyncState syncState;
 
     @Override
     public void onEnable() {
@@ -77,6 +99,11 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
 
     @Override
     public void runMigration(CommandSender sender, String[] args) {
+        runMigration(sender, args, null);
+    }
+
+    @Override
+    protected void runMigration(CommandSender sender, String[] args, FailedEntities only) {
         log(sender, "Starting.");
 
         if (!getServer().getPluginManager().isPluginEnabled("PermissionsEx")) {
@@ -85,157 +112,345 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
         }
 
         PermissionManager manager = this.pex.getPermissionsManager();
+        MigrationReport report = new MigrationReport();
+        RetryQueue retries = new RetryQueue(5, 1, 30, TimeUnit.SECONDS, report, msg -> log(sender, msg));
+
+        // used to replace nodes repeated in every world with a single node
+        List<String> worlds = new ArrayList<>();
+        for (World world : getServer().getWorlds()) {
+            worlds.add(standardizeWorld(world.getName()));
+        }
 
         // hack to work around accessing pex async
         try {
             disablePexEvents(manager);
-        } catch (ReflectiveOperationException e) {
-            e.printStackTrace();
+        } catch (Throwable t) {
+            t.printStackTrace();
         }
 
-        log(sender, "Calculating group weightings.");
-        int i = 0;
-        for (PermissionGroup group : manager.getGroupList()) {
-            i = Math.max(i, group.getRank());
-        }
-        int maxWeight = i + 5;
+        int maxWeight;
+        int userWeight;
+        AtomicInteger userCount = new AtomicInteger(0);
+        List<String> failed = new ArrayList<>();
+        try {
+            // Build the group inheritance graph, and collect weights & ladders in the same pass
+            log(sender, "Calculating group weightings.");
+            Map<String, List<PermissionGroup>> groups = new HashMap<>();
+            Map<String, Set<String>> groupParents = new HashMap<>();
+            Set<String> ladders = new HashSet<>();
+            int i = 0;
+            for (PermissionGroup group : manager.getGroupList()) {
+                i = Math.max(i, group.getRank());
+
+                String groupName = MigrationUtils.standardizeName(group.getName());
+                groups.computeIfAbsent(groupName, g -> new ArrayList<>()).add(group);
+
+                Set<String> parents = groupParents.computeIfAbsent(groupName, g -> new HashSet<>());
+                for (List<PermissionGroup> worldParents : group.getAllParents().values()) {
+                    for (PermissionGroup parent : worldParents) {
+                        parents.add(MigrationUtils.standardizeName(parent.getName()));
+                    }
+                }
 
-        // Migrate all groups.
-        log(sender, "Starting group migration.");
-        AtomicInteger groupCount = new AtomicInteger(0);
-        Set<String> ladders = new HashSet<>();
-        Iterators.tryIterate(manager.getGroupList(), group -> {
-            String groupName = MigrationUtils.standardizeName(group.getName());
-            int groupWeight = maxWeight - group.getRank();
+                // remember known ladders
+                if (group.isRanked()) {
+                    ladders.add(group.getRankLadder().toLowerCase());
+                }
+            }
+            maxWeight = i + 5;
 
-            Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+            // Migrate all groups, parents before their children. PEX is only read on this thread,
+            // and the converted groups which don't depend on each other are written in parallel.
+            log(sender, "Starting group migration.");
+            AtomicInteger groupCount = new AtomicInteger(0);
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                for (List<String> level : DependencyOrder.levels(groupParents)) {
+                    Map<String, Set<Node>> levelNodes = new LinkedHashMap<>();
+                    Map<String, Integer> levelWeights = new HashMap<>();
+                    Iterators.tryIterate(level, groupName -> {
+                        if (only != null && !only.contains(FailedEntities.group(groupName))) {
+                            return;
+                        }
 
-            MigrationUtils.setGroupWeight(lpGroup, groupWeight);
+                        Set<Node> nodes = new LinkedHashSet<>();
+                        int weight = 0;
+                        for (PermissionGroup group : groups.get(groupName)) {
+                            weight = maxWeight - group.getRank();
 
-            // migrate data
-            migrateEntity(group, lpGroup, groupWeight);
+                            // migrate data
+                            migrateEntity(group, nodes, weight);
+                        }
 
-            // remember known ladders
-            if (group.isRanked()) {
-                ladders.add(group.getRankLadder().toLowerCase());
+                        levelNodes.put(groupName, compact(nodes, worlds, report));
+                        levelWeights.put(groupName, weight);
+                    });
+
+                    Iterators.tryIterate(levelNodes.entrySet(), executor, e -> {
+                        // the save is waited for, so children are only migrated once their parents exist
+                        retries.run(FailedEntities.group(e.getKey()), () -> {
+                            Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(e.getKey()).join();
+                            MigrationUtils.setGroupWeight(lpGroup, levelWeights.get(e.getKey()));
+                            MigrationUtils.addNodes(lpGroup, e.getValue());
+                            this.luckPerms.getGroupManager().saveGroup(lpGroup).join();
+                            return null;
+                        });
+                        log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+                    });
+                }
+            } finally {
+                executor.shutdown();
             }
+            log(sender, "Migrated " + groupCount.get() + " groups");
 
-            this.luckPerms.getGroupManager().saveGroup(lpGroup).join();
-            log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
-        });
-        log(sender, "Migrated " + groupCount.get() + " groups");
-
-        // Migrate all ladders/tracks.
-        log(sender, "Starting tracks migration.");
-        for (String rankLadder : ladders) {
-            Track track = this.luckPerms.getTrackManager().createAndLoadTrack(rankLadder).join();
+            // Retry failed groups now, so the tracks include them
+            failed.addAll(retries.retryFailed());
 
-            // Get a list of all groups in a ladder
-            List<Group> ladder = manager.getRankLadder(rankLadder).entrySet().stream()
-                    .sorted(Comparator.<Map.Entry<Integer, PermissionGroup>>comparingInt(Map.Entry::getKey).reversed())
-                    .map(e -> MigrationUtils.standardizeName(e.getValue().getName()))
-                    .map(g -> this.luckPerms.getGroupManager().getGroup(g))
-                    .filter(Objects::nonNull)
-                    .collect(Collectors.toList());
-
-            track.clearGroups();
-            ladder.forEach(track::appendGroup);
+            // Migrate all ladders/tracks, now that every group exists. They aren't retried.
+            if (only != null) {
+                ladders.clear();
+            }
+            log(sender, "Starting tracks migration.");
+            List<CompletableFuture<Void>> trackSaves = new ArrayList<>();
+            for (String rankLadder : ladders) {
+                Track track = this.luckPerms.getTrackManager().createAndLoadTrack(rankLadder).join();
+
+                // Get a list of all groups in a ladder
+                List<Group> ladder = manager.getRankLadder(rankLadder).entrySet().stream()
+                        .sorted(Comparator.<Map.Entry<Integer, PermissionGroup>>comparingInt(Map.Entry::getKey).reversed())
+                        .map(e -> MigrationUtils.standardizeName(e.getValue().getName()))
+                        .map(g -> this.luckPerms.getGroupManager().getGroup(g))
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList());
+
+                track.clearGroups();
+                ladder.forEach(track::appendGroup);
+
+                trackSaves.add(this.luckPerms.getTrackManager().saveTrack(track));
+            }
+            CompletableFuture.allOf(trackSaves.toArray(new CompletableFuture[0])).join();
+            log(sender, "Migrated " + ladders.size() + " tracks");
+
+            // Migrate all users
+            log(sender, "Starting user migration.");
+
+            // Increment the max weight from the group migrations. All user meta should override.
+            userWeight = maxWeight + 5;
+
+            ConfigurationSection sqlConfig = getSqlBackendConfig();
+            boolean readFromSql = false;
+            if (sqlConfig != null && only == null) {
+                // read users in bulk, instead of making several queries per user
+                log(sender, "Reading users directly from the PermissionsEx database.");
+                try (Connection connection = openSqlConnection(sqlConfig);
+                     PexSqlReader reader = new PexSqlReader(connection, getSqlAliases(sqlConfig))) {
+                    // the query runs here, so PermissionsEx is only used instead if it fails
+                    Iterator<PexSqlReader.UserData> users = reader.users().iterator();
+                    readFromSql = true;
+
+                    Iterators.tryIterate(() -> users, data -> {
+                        if (data.isEmpty()) {
+                            report.increment("Empty users skipped");
+                            return;
+                        }
 
-            this.luckPerms.getTrackManager().saveTrack(track);
-        }
-        log(sender, "Migrated " + ladders.size() + " tracks");
+                        UUID u = lookupUuid(data.getIdentifier());
+                        if (u == null) {
+                            return;
+                        }
 
-        // Migrate all users
-        log(sender, "Starting user migration.");
-        AtomicInteger userCount = new AtomicInteger(0);
+                        String name = data.getOption("name", null);
 
-        // Increment the max weight from the group migrations. All user meta should override.
-        int userWeight = maxWeight + 5;
+                        // migrate data
+                        Set<Node> nodes = new LinkedHashSet<>();
+                        String primaryGroup = migrateEntity(data, manager, nodes, userWeight);
+                        writeUser(retries, data.getIdentifier(), u, name == null ? data.getIdentifier() : name, compact(nodes, worlds, report), primaryGroup);
 
-        Collection<String> userIdentifiers = manager.getBackend().getUserIdentifiers();
-        Iterators.tryIterate(userIdentifiers, id -> {
-            PermissionUser user = new PermissionUser(id, manager.getBackend().getUserData(id), manager);
-            if (isUserEmpty(user)) {
-                return;
+                        if (userCount.incrementAndGet() % 500 == 0) {
+                            log(sender, "Migrated " + userCount.get() + " users so far.");
+                        }
+                    });
+                } catch (SQLException | RuntimeException e) {
+                    // the reader rethrows query errors unchecked
+                    e.printStackTrace();
+                    if (readFromSql) {
+                        // the users already written aren't migrated a second time
+                        report.increment("Database read failures");
+                        log(sender, "Reading the PermissionsEx database failed part way through, so the remaining users were not migrated.");
+                    } else {
+                        log(sender, "Unable to read the PermissionsEx database, reading users through PermissionsEx instead.");
+                    }
+                }
             }
 
-            UUID u = lookupUuid(id);
-            if (u == null) {
-                return;
-            }
+            if (!readFromSql) {
+                Collection<String> userIdentifiers = only == null ? manager.getBackend().getUserIdentifiers() : only.getIds("user");
+                Iterators.tryIterate(userIdentifiers, id -> {
+                    // check the raw data before any inheritance is resolved
+                    PermissionsUserData data = manager.getBackend().getUserData(id);
+                    if (isUserEmpty(data)) {
+                        report.increment("Empty users skipped");
+                        return;
+                    }
 
-            // load in a user instance
-            User lpUser = this.luckPerms.getUserManager().loadUser(u, user.getName()).join();
+                    PermissionUser user = new PermissionUser(id, data, manager);
 
-            // migrate data
-            migrateEntity(user, lpUser, userWeight);
+                    UUID u = lookupUuid(id);
+                    if (u == null) {
+                        return;
+                    }
 
-            this.luckPerms.getUserManager().cleanupUser(lpUser);
-            this.luckPerms.getUserManager().saveUser(lpUser);
+                    // migrate data
+                    Set<Node> nodes = new LinkedHashSet<>();
+                    String primaryGroup = migrateEntity(user, nodes, userWeight);
+                    writeUser(retries, id, u, user.getName(), compact(nodes, worlds, report), primaryGroup);
 
-            if (userCount.incrementAndGet() % 500 == 0) {
-                log(sender, "Migrated " + userCount.get() + " users so far.");
+                    if (userCount.incrementAndGet() % 500 == 0) {
+                        log(sender, "Migrated " + userCount.get() + " users so far.");
+                    }
+                });
+            }
+        } finally {
+            // re-enable events
+            try {
+                enablePexEvents(manager);
+            } catch (Throwable t) {
+                t.printStackTrace();
             }
-        });
-
-        // re-enable events
-        try {
-            enablePexEvents(manager);
-        } catch (ReflectiveOperationException e) {
-            e.printStackTrace();
         }
 
+        // remembered in case further changes are synced
+        this.syncState = new SyncState(manager, worlds, maxWeight, userWeight);
+
         log(sender, "Migrated " + userCount.get() + " users.");
+        failed.addAll(retries.retryFailed());
+        saveFailures(sender, args, failed);
+        log(sender, report);
         log(sender, "Success! Migration complete.");
         log(sender, "Don't forget to remove the PermissionsEx jar from your plugins folder & restart the server. " +
                 "LuckPerms may not take over as the server permission handler until this is done.");
     }
 
-    private static final Method GET_DATA_METHOD;
-    private static final Field TIMED_PERMISSIONS_FIELD;
-    private static final Field TIMED_PERMISSIONS_TIME_FIELD;
-    private static final Field NATIVE_INTERFACE_FIELD;
-    static {
-        try {
-            GET_DATA_METHOD = PermissionEntity.class.getDeclaredMethod("getData");
-            GET_DATA_METHOD.setAccessible(true);
+    private void writeUser(RetryQueue retries, String id, UUID uuid, String name, Set<Node> nodes, String primaryGroup) {
+        retries.run(FailedEntities.user(id), () -> {
+            User lpUser = this.luckPerms.getUserManager().loadUser(uuid, name).join();
+            MigrationUtils.addNodes(lpUser, nodes);
+            setPrimaryGroup(lpUser, primaryGroup);
+
+            this.luckPerms.getUserManager().cleanupUser(lpUser);
+            return this.luckPerms.getUserManager().saveUser(lpUser);
+        });
+    }
+
+    @Override
+    protected Listener createSyncListener(LiveSync sync) {
+        SyncState state = this.syncState;
+        if (state == null) {
+            // the migration didn't complete
+            return null;
+        }
+        return new SyncListener(sync, state);
+    }
+
+    // pex fires events again during a sync, so it's read on the main thread
+    private <T> T readPex(Callable<T> read) throws Exception {
+        return getServer().getScheduler().callSyncMethod(this, read).get();
+    }
 
-            TIMED_PERMISSIONS_FIELD = PermissionEntity.class.getDeclaredField("timedPermissions");
-            TIMED_PERMISSIONS_FIELD.setAccessible(true);
+    private void syncUser(SyncState state, String id) throws Exception {
+        UUID u = lookupUuid(id);
+        if (u == null) {
+            return;
+        }
+
+        Set<Node> nodes = new LinkedHashSet<>();
+        AtomicReference<String> primaryGroup = new AtomicReference<>();
+        String name = readPex(() -> {
+            PermissionUser user = state.manager.getUser(id);
+            primaryGroup.set(migrateEntity(user, nodes, state.userWeight));
+            return user.getName();
+        });
 
-            TIMED_PERMISSIONS_TIME_FIELD = PermissionEntity.class.getDeclaredField("timedPermissionsTime");
-            TIMED_PERMISSIONS_TIME_FIELD.setAccessible(true);
+        User lpUser = this.luckPerms.getUserManager().loadUser(u, name).join();
 
-            NATIVE_INTERFACE_FIELD = PermissionManager.class.getDeclaredField("nativeI");
-            NATIVE_INTERFACE_FIELD.setAccessible(true);
-        } catch (NoSuchMethodException | NoSuchFieldException e) {
-            throw new ExceptionInInitializerError(e);
+        // the user's nodes are replaced, so make sure they're still in a group
+        if (nodes.stream().noneMatch(n -> n.getType() == NodeType.INHERITANCE && n.getContexts().isEmpty() && !n.hasExpiry())) {
+            nodes.add(InheritanceNode.builder("default").build());
         }
+        MigrationUtils.setNodes(lpUser, NodeCompactor.compact(nodes, state.worlds));
+
+        if (primaryGroup.get() != null) {
+            setPrimaryGroup(lpUser, primaryGroup.get());
+        } else {
+            lpUser.setPrimaryGroup("default");
+        }
+
+        this.luckPerms.getUserManager().saveUser(lpUser).join();
+        this.luckPerms.getUserManager().cleanupUser(lpUser);
     }
 
+    private void syncGroup(SyncState state, String groupName) throws Exception {
+        Set<Node> nodes = new LinkedHashSet<>();
+        Integer groupWeight = readPex(() -> {
+            Integer weight = null;
+            for (PermissionGroup group : state.manager.getGroupList()) {
+                if (MigrationUtils.standardizeName(group.getName()).equals(groupName)) {
+                    weight = state.maxWeight - group.getRank();
+                    migrateEntity(group, nodes, weight);
+                }
+            }
+            return weight;
+        });
+
+        if (groupWeight == null) {
+            // the group has been removed
+            this.luckPerms.getGroupManager().loadGroup(groupName).join()
+                    .ifPresent(group -> this.luckPerms.getGroupManager().deleteGroup(group).join());
+            return;
+        }
+
+        Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+
+        // the weight is replaced along with the rest of the group's nodes
+        Set<Node> compacted = NodeCompactor.compact(nodes, state.worlds);
+        compacted.add(WeightNode.builder(groupWeight).build());
+        MigrationUtils.setNodes(lpGroup, compacted);
+
+        this.luckPerms.getGroupManager().saveGroup(lpGroup).join();
+    }
+
+    private static final MethodHandle GET_DATA_METHOD = Accessors.method(PermissionEntity.class, "getData", PermissionsData.class);
+    private static final MethodHandle TIMED_PERMISSIONS_FIELD = Accessors.getter(PermissionEntity.class, "timedPermissions", Map.class);
+    private static final MethodHandle TIMED_PERMISSIONS_TIME_FIELD = Accessors.getter(PermissionEntity.class, "timedPermissionsTime", Map.class);
+    private static final MethodHandle NATIVE_INTERFACE_GETTER = Accessors.getter(PermissionManager.class, "nativeI", NativeInterface.class);
+    private static final MethodHandle NATIVE_INTERFACE_SETTER = Accessors.setter(PermissionManager.class, "nativeI", NativeInterface.class);
+
+    // world names are repeated for every holder, so they are only lower-cased once
+    private static final Map<String, String> WORLD_NAMES = new ConcurrentHashMap<>();
+
     private static Map<String, List<String>> getPermanentPermissions(PermissionEntity entity) {
         try {
-            PermissionsData data = (PermissionsData) GET_DATA_METHOD.invoke(entity);
+            PermissionsData data = (PermissionsData) GET_DATA_METHOD.invokeExact(entity);
             return data.getPermissionsMap();
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
         }
     }
 
-    private static boolean isUserEmpty(PermissionUser user) {
-        for (List<String> permissions : user.getAllPermissions().values()) {
+    private static boolean isUserEmpty(PermissionsUserData data) {
+        for (List<String> permissions : data.getPermissionsMap().values()) {
             if (!permissions.isEmpty()) {
                 return false;
             }
         }
 
-        for (List<PermissionGroup> parents : user.getAllParents().values()) {
+        for (List<String> parents : data.getParentsMap().values()) {
             if (!parents.isEmpty()) {
                 return false;
             }
         }
 
-        for (Map<String, String> options : user.getAllOptions().values()) {
+        for (Map<String, String> options : data.getOptionsMap().values()) {
             if (!options.isEmpty()) {
                 return false;
             }
@@ -244,15 +459,16 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
         return true;
     }
 
-    private static void migrateEntity(PermissionEntity entity, PermissionHolder holder, int weight) {
+    // nodes are collected for each holder, then compacted and added at once
+    private static Set<Node> compact(Set<Node> nodes, Collection<String> worlds, MigrationReport report) {
+        Set<Node> compacted = NodeCompactor.compact(nodes, worlds);
+        report.add("Redundant nodes removed", nodes.size() - compacted.size());
+        return compacted;
+    }
+
+    private static String migrateEntity(PermissionEntity entity, Set<Node> nodes, int weight) {
         // migrate permanent permissions
-        for (Map.Entry<String, List<String>> worldData : getPermanentPermissions(entity).entrySet()) {
-            String world = standardizeWorld(worldData.getKey());
-            for (String node : worldData.getValue()) {
-                if (node.isEmpty()) continue;
-                holder.data().add(MigrationUtils.parseNode(node, true).withContext(DefaultContextKeys.WORLD_KEY, world).build());
-            }
-        }
+        migratePermissions(getPermanentPermissions(entity), nodes);
 
         // migrate temporary permissions
         Map<String, List<String>> timedPermissions;
@@ -260,28 +476,76 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
 
         try {
             //noinspection unchecked
-            timedPermissions = (Map<String, List<String>>) TIMED_PERMISSIONS_FIELD.get(entity);
+            timedPermissions = (Map<String, List<String>>) TIMED_PERMISSIONS_FIELD.invokeExact(entity);
             //noinspection unchecked
-            timedPermissionsTime = (Map<String, Long>) TIMED_PERMISSIONS_TIME_FIELD.get(entity);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
+            timedPermissionsTime = (Map<String, Long>) TIMED_PERMISSIONS_TIME_FIELD.invokeExact(entity);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+
+        if (!timedPermissions.isEmpty()) {
+            TimedPermissionIndex index = new TimedPermissionIndex(timedPermissionsTime, System.currentTimeMillis() / 1000L);
+            for (Map.Entry<String, List<String>> worldData : timedPermissions.entrySet()) {
+                String world = standardizeWorld(worldData.getKey());
+                ImmutableContextSet context = ContextCache.world(world);
+                for (String node : worldData.getValue()) {
+                    if (node.isEmpty()) continue;
+                    long expiry = index.getExpiry(worldData.getKey(), node);
+                    if (expiry != TimedPermissionIndex.EXPIRED) {
+                        nodes.add(MigrationUtils.parseNode(node, true).withContext(context).expiry(expiry).build());
+                    }
+                }
+            }
+        }
+
+        // migrate parents
+        String primaryGroup = migrateParents(entity.getAllParents(), entity instanceof PermissionUser ? entity::getOption : null, nodes);
+
+        // migrate prefix / suffix & options
+        migrateMeta(entity.getOwnPrefix(), entity.getOwnSuffix(), entity.getAllOptions(), nodes, weight);
+        return primaryGroup;
+    }
+
+    private static String migrateEntity(PexSqlReader.UserData data, PermissionManager manager, Set<Node> nodes, int weight) {
+        // migrate permissions
+        migratePermissions(data.getPermissions(), nodes);
+
+        // migrate parents
+        Map<String, List<PermissionGroup>> parents = new HashMap<>();
+        for (Map.Entry<String, List<String>> worldData : data.getParents().entrySet()) {
+            List<PermissionGroup> groups = new ArrayList<>(worldData.getValue().size());
+            for (String parent : worldData.getValue()) {
+                PermissionGroup group = manager.getGroup(parent);
+                if (group != null) {
+                    groups.add(group);
+                }
+            }
+            parents.put(worldData.getKey(), groups);
         }
+        String primaryGroup = migrateParents(parents, data::getOption, nodes);
+
+        // migrate prefix / suffix & options
+        migrateMeta(data.getOption("prefix", null), data.getOption("suffix", null), data.getOptions(), nodes, weight);
+        return primaryGroup;
+    }
 
-        for (Map.Entry<String, List<String>> worldData : timedPermissions.entrySet()) {
+    private static void migratePermissions(Map<String, List<String>> permissions, Set<Node> nodes) {
+        for (Map.Entry<String, List<String>> worldData : permissions.entrySet()) {
             String world = standardizeWorld(worldData.getKey());
+            ImmutableContextSet context = ContextCache.world(world);
             for (String node : worldData.getValue()) {
                 if (node.isEmpty()) continue;
-                long expiry = timedPermissionsTime.getOrDefault(Strings.nullToEmpty(world) + ":" + node, 0L);
-                Node n = MigrationUtils.parseNode(node, true).withContext(DefaultContextKeys.WORLD_KEY, world).expiry(expiry).build();
-                if (!n.hasExpired()) {
-                    holder.data().add(n);
-                }
+                nodes.add(MigrationUtils.parseNode(node, true).withContext(context).build());
             }
         }
+    }
 
-        // migrate parents
-        for (Map.Entry<String, List<PermissionGroup>> worldData : entity.getAllParents().entrySet()) {
+    // returns the user's primary group, which is set once the nodes have been added
+    private static String migrateParents(Map<String, List<PermissionGroup>> parents, BiFunction<String, String, String> options, Set<Node> nodes) {
+        String primaryGroup = null;
+        for (Map.Entry<String, List<PermissionGroup>> worldData : parents.entrySet()) {
             String world = standardizeWorld(worldData.getKey());
+            ImmutableContextSet context = ContextCache.world(world);
 
             // keep track of primary group
             String primary = null;
@@ -292,8 +556,8 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
                 long expiry = 0L;
 
                 // check for temporary parent
-                if (entity instanceof PermissionUser) {
-                    String expiryOption = entity.getOption("group-" + parentName + "-until", world);
+                if (options != null) {
+                    String expiryOption = options.apply("group-" + parentName + "-until", world);
                     if (expiryOption != null) {
                         try {
                             expiry = Long.parseLong(expiryOption);
@@ -303,15 +567,15 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
                     }
                 }
 
-                InheritanceNode n = InheritanceNode.builder(MigrationUtils.standardizeName(parentName)).withContext(DefaultContextKeys.WORLD_KEY, world).expiry(expiry).build();
+                InheritanceNode n = InheritanceNode.builder(MigrationUtils.standardizeName(parentName)).withContext(context).expiry(expiry).build();
                 if (n.hasExpired()) {
                     continue;
                 }
 
-                holder.data().add(n);
+                nodes.add(n);
 
-                // migrate primary groups
-                if (world.equals("global") && holder instanceof User && expiry == 0) {
+                // migrate primary groups, options are only given for users
+                if (world.equals("global") && options != null && expiry == 0) {
                     if (parent.getRank() < primaryWeight) {
                         primary = parent.getName();
                         primaryWeight = parent.getRank();
@@ -320,27 +584,34 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
             }
 
             if (primary != null && !primary.isEmpty() && !primary.equalsIgnoreCase("default")) {
-                User user = ((User) holder);
-                user.setPrimaryGroup(primary);
-                user.data().remove(InheritanceNode.builder("default").build());
+                primaryGroup = primary;
+                nodes.remove(InheritanceNode.builder("default").build());
             }
         }
+        return primaryGroup;
+    }
+
+    private static void setPrimaryGroup(User user, String primaryGroup) {
+        if (primaryGroup != null) {
+            user.setPrimaryGroup(primaryGroup);
+            user.data().remove(InheritanceNode.builder("default").build());
+        }
+    }
 
+    private static void migrateMeta(String prefix, String suffix, Map<String, Map<String, String>> options, Set<Node> nodes, int weight) {
         // migrate prefix / suffix
-        String prefix = entity.getOwnPrefix();
-        String suffix = entity.getOwnSuffix();
-
         if (prefix != null && !prefix.isEmpty()) {
-            holder.data().add(PrefixNode.builder(prefix, weight).build());
+            nodes.add(PrefixNode.builder(prefix, weight).build());
         }
 
         if (suffix != null && !suffix.isEmpty()) {
-            holder.data().add(SuffixNode.builder(suffix, weight).build());
+            nodes.add(SuffixNode.builder(suffix, weight).build());
         }
 
         // migrate options
-        for (Map.Entry<String, Map<String, String>> worldData : entity.getAllOptions().entrySet()) {
+        for (Map.Entry<String, Map<String, String>> worldData : options.entrySet()) {
             String world = standardizeWorld(worldData.getKey());
+            ImmutableContextSet context = ContextCache.world(world);
             for (Map.Entry<String, String> opt : worldData.getValue().entrySet()) {
                 if (opt.getKey() == null || opt.getKey().isEmpty() || opt.getValue() == null || opt.getValue().isEmpty()) {
                     continue;
@@ -360,16 +631,52 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
                     continue;
                 }
 
-                holder.data().add(MetaNode.builder(opt.getKey(), opt.getValue()).withContext(DefaultContextKeys.WORLD_KEY, world).build());
+                nodes.add(MetaNode.builder(opt.getKey(), opt.getValue()).withContext(context).build());
             }
         }
     }
 
-    private static String standardizeWorld(String world) {
+    static String standardizeWorld(String world) {
         if (world == null || world.isEmpty() || world.equals("*")) {
-            world = "global";
+            return "global";
+        }
+        return WORLD_NAMES.computeIfAbsent(world, w -> w.toLowerCase());
+    }
+
+    private ConfigurationSection getSqlBackendConfig() {
+        ConfigurationSection backends = this.pex.getConfig().getConfigurationSection("permissions.backends");
+        String backend = this.pex.getConfig().getString("permissions.backend");
+        if (backends == null || backend == null || !backends.isConfigurationSection(backend)) {
+            return null;
+        }
+
+        ConfigurationSection config = backends.getConfigurationSection(backend);
+        if (!config.getString("type", backend).equalsIgnoreCase("sql")) {
+            return null;
         }
-        return world.toLowerCase();
+        return config;
+    }
+
+    static Connection openSqlConnection(ConfigurationSection config) throws SQLException {
+        String uri = config.getString("uri");
+        if (uri == null || uri.isEmpty()) {
+            throw new SQLException("The PermissionsEx SQL backend has no uri set");
+        }
+        if (!uri.startsWith("jdbc:")) {
+            uri = "jdbc:" + uri;
+        }
+        return MigrationUtils.openStreamingConnection(uri, config.getString("user"), config.getString("password"));
+    }
+
+    private static Map<String, String> getSqlAliases(ConfigurationSection config) {
+        Map<String, String> aliases = new HashMap<>();
+        ConfigurationSection section = config.getConfigurationSection("aliases");
+        if (section != null) {
+            for (String table : section.getKeys(false)) {
+                aliases.put(table, section.getString(table));
+            }
+        }
+        return aliases;
     }
 
     public UUID lookupUuid(String s) {
@@ -388,21 +695,109 @@ public final class MigrationPermissionsEx extends MigrationJavaPlugin {
         return uuid;
     }
 
+    /**
+     * What is needed from a completed migration to migrate a single user or group again.
+     */
+    private static final class SyncState {
+        final PermissionManager manager;
+        final List<String> worlds;
+        final int maxWeight;
+        final int userWeight;
+
+        SyncState(PermissionManager manager, List<String> worlds, int maxWeight, int userWeight) {
+            this.manager = manager;
+            this.worlds = worlds;
+            this.maxWeight = maxWeight;
+            this.userWeight = userWeight;
+        }
+    }
+
+    /**
+     * Records changes to PEX users and groups, which are fired as events once the migration
+     * has re-enabled them.
+     */
+    private final class SyncListener implements Listener {
+        private final LiveSync sync;
+        private final SyncState state;
+
+        SyncListener(LiveSync sync, SyncState state) {
+            this.sync = sync;
+            this.state = state;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onEntityChange(PermissionEntityEvent e) {
+            String id = e.getEntityIdentifier();
+            if (e.getType() == PermissionEntity.Type.GROUP) {
+                String groupName = MigrationUtils.standardizeName(id);
+                this.sync.changed("group:" + groupName, () -> syncGroup(this.state, groupName));
+            } else {
+                this.sync.changed("user:" + id, () -> syncUser(this.state, id));
+            }
+        }
+    }
+
+    /**
+     * Index of the expiry times of an entity's timed permissions, keyed by world and then node.
+     *
+     * <p>PEX stores the times in a single map keyed by {@code world + ":" + node}. The keys are
+     * split once when the index is built, and entries which have expired at that point are
+     * marked as {@link #EXPIRED}.</p>
+     */
+    private static final class TimedPermissionIndex {
+        static final long EXPIRED = -1L;
+
+        private final Map<String, Map<String, Long>> expiries = new HashMap<>();
+
+        TimedPermissionIndex(Map<String, Long> timedPermissionsTime, long now) {
+            for (Map.Entry<String, Long> entry : timedPermissionsTime.entrySet()) {
+                String key = entry.getKey();
+                int separator = key.indexOf(':');
+                if (separator == -1) {
+                    continue;
+                }
+
+                long expiry = entry.getValue() == null ? 0L : entry.getValue();
+                if (expiry != 0L && expiry <= now) {
+                    expiry = EXPIRED;
+                }
+
+                this.expiries.computeIfAbsent(key.substring(0, separator), w -> new HashMap<>())
+                        .put(key.substring(separator + 1), expiry);
+            }
+        }
+
+        /**
+         * Gets the expiry time of a timed permission, in seconds.
+         *
+         * @param world the world, as stored by PEX
+         * @param node the permission
+         * @return the expiry time, 0 if there is no recorded expiry, or {@link #EXPIRED}
+         */
+        long getExpiry(String world, String node) {
+            Map<String, Long> worldExpiries = this.expiries.get(Strings.nullToEmpty(world));
+            if (worldExpiries == null) {
+                return 0L;
+            }
+            return worldExpiries.getOrDefault(node, 0L);
+        }
+    }
+
     /*
      * Hack to workaround issue with accessing PEX async.
      * See: https://github.com/lucko/LuckPerms/issues/2102
      */
 
-    private static void disablePexEvents(PermissionManager manager) throws ReflectiveOperationException {
-        NativeInterface nativeInterface = (NativeInterface) NATIVE_INTERFACE_FIELD.get(manager);
-        NATIVE_INTERFACE_FIELD.set(manager, new DisabledEventsNativeInterface(nativeInterface));
+    private static void disablePexEvents(PermissionManager manager) throws Throwable {
+        NativeInterface nativeInterface = (NativeInterface) NATIVE_INTERFACE_GETTER.invokeExact(manager);
+        NATIVE_INTERFACE_SETTER.invokeExact(manager, (NativeInterface) new DisabledEventsNativeInterface(nativeInterface));
     }
 
-    private static void enablePexEvents(PermissionManager manager) throws ReflectiveOperationException {
-        NativeInterface nativeInterface = (NativeInterface) NATIVE_INTERFACE_FIELD.get(manager);
+    private static void enablePexEvents(PermissionManager manager) throws Throwable {
+        NativeInterface nativeInterface = (NativeInterface) NATIVE_INTERFACE_GETTER.invokeExact(manager);
         while (nativeInterface instanceof DisabledEventsNativeInterface) {
             nativeInterface = ((DisabledEventsNativeInterface) nativeInterface).delegate;
-            NATIVE_INTERFACE_FIELD.set(manager, nativeInterface);
+            NATIVE_INTERFACE_SETTER.invokeExact(manager, nativeInterface);
         }
     }
 
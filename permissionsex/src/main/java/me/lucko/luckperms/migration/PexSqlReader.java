@@ -0,0 +1,232 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads user data directly from the tables used by the PermissionsEx SQL backend.
+ *
+ * <p>The {@code permissions}, {@code permissions_inheritance} and {@code permissions_entity}
+ * tables are read together by one forward-only query ordered by entity name, and each
+ * user's data is rebuilt as the cursor passes over their rows. This replaces the handful of
+ * queries made per user by {@code getUserData(id)}.</p>
+ *
+ * <p>The rows are only streamed if the driver honours the fetch size. MySQL needs cursor fetch
+ * enabled for that, as done by {@link MigrationUtils#openStreamingConnection}; otherwise the
+ * whole result is buffered by the driver.</p>
+ *
+ * <p>The reader only depends on JDBC, so it can be pointed at any copy of the schema.</p>
+ */
+public final class PexSqlReader implements AutoCloseable {
+    private static final int FETCH_SIZE = 1000;
+
+    // ordinal of SQLData.Type.USER
+    private static final int USER_TYPE = 1;
+
+    private static final int KIND_PERMISSION = 0;
+    private static final int KIND_PARENT = 1;
+    private static final int KIND_ENTITY = 2;
+
+    private final Connection connection;
+    private final Map<String, String> aliases;
+    private PreparedStatement statement;
+
+    public PexSqlReader(Connection connection, Map<String, String> aliases) {
+        this.connection = connection;
+        this.aliases = aliases;
+    }
+
+    public PexSqlReader(Connection connection) {
+        this(connection, Collections.emptyMap());
+    }
+
+    private String table(String name) {
+        return this.aliases.getOrDefault(name, name);
+    }
+
+    /**
+     * Returns an iterable which streams through the stored users.
+     *
+     * <p>The query is executed once, when iteration begins.</p>
+     *
+     * @return the users
+     */
+    public Iterable<UserData> users() {
+        return () -> {
+            try {
+                return new UserIterator(query());
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private ResultSet query() throws SQLException {
+        String sql = "SELECT `name`, " + KIND_PERMISSION + ", `permission`, `world`, `value`, `id` FROM `" + table("permissions") + "` WHERE `type` = " + USER_TYPE +
+                " UNION ALL SELECT `child`, " + KIND_PARENT + ", `parent`, `world`, '', `id` FROM `" + table("permissions_inheritance") + "` WHERE `type` = " + USER_TYPE +
+                " UNION ALL SELECT `name`, " + KIND_ENTITY + ", '', '', '', `id` FROM `" + table("permissions_entity") + "` WHERE `type` = " + USER_TYPE +
+                " ORDER BY 1, 2, 6 DESC";
+
+        this.statement = this.connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        this.statement.setFetchSize(FETCH_SIZE);
+        return this.statement.executeQuery();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (this.statement != null) {
+            this.statement.close();
+        }
+    }
+
+    private static String world(String world) {
+        return world == null || world.isEmpty() ? null : world;
+    }
+
+    private static final class UserIterator implements Iterator<UserData> {
+        private final ResultSet rs;
+        private boolean hasRow;
+
+        UserIterator(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.hasRow = rs.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.hasRow;
+        }
+
+        @Override
+        public UserData next() {
+            if (!this.hasRow) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                UserData data = new UserData(this.rs.getString(1));
+                do {
+                    String key = this.rs.getString(3);
+                    String world = world(this.rs.getString(4));
+
+                    switch (this.rs.getInt(2)) {
+                        case KIND_PERMISSION:
+                            String value = this.rs.getString(5);
+                            if (value == null || value.isEmpty()) {
+                                data.permissions.computeIfAbsent(world, w -> new ArrayList<>()).add(key);
+                            } else {
+                                data.options.computeIfAbsent(world, w -> new HashMap<>()).put(key, value);
+                            }
+                            break;
+                        case KIND_PARENT:
+                            data.parents.computeIfAbsent(world, w -> new ArrayList<>()).add(key);
+                            break;
+                        default:
+                            break;
+                    }
+
+                    this.hasRow = this.rs.next();
+                } while (this.hasRow && data.identifier.equals(this.rs.getString(1)));
+                return data;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The raw data stored for a single user, keyed by world.
+     *
+     * <p>The global world is represented by a {@code null} key, in the same way as PEX.</p>
+     */
+    public static final class UserData {
+        private final String identifier;
+        private final Map<String, List<String>> permissions = new HashMap<>();
+        private final Map<String, Map<String, String>> options = new HashMap<>();
+        private final Map<String, List<String>> parents = new HashMap<>();
+
+        UserData(String identifier) {
+            this.identifier = identifier;
+        }
+
+        public String getIdentifier() {
+            return this.identifier;
+        }
+
+        public Map<String, List<String>> getPermissions() {
+            return this.permissions;
+        }
+
+        public Map<String, Map<String, String>> getOptions() {
+            return this.options;
+        }
+
+        public Map<String, List<String>> getParents() {
+            return this.parents;
+        }
+
+        public boolean isEmpty() {
+            for (List<String> permissions : this.permissions.values()) {
+                if (!permissions.isEmpty()) {
+                    return false;
+                }
+            }
+            for (List<String> parents : this.parents.values()) {
+                if (!parents.isEmpty()) {
+                    return false;
+                }
+            }
+            for (Map<String, String> options : this.options.values()) {
+                if (!options.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getOption(String option, String world) {
+            Map<String, String> worldOptions = this.options.get(world(world));
+            String value = worldOptions == null ? null : worldOptions.get(option);
+            if (value == null && world != null) {
+                Map<String, String> globalOptions = this.options.get(null);
+                value = globalOptions == null ? null : globalOptions.get(option);
+            }
+            return value;
+        }
+    }
+
+}
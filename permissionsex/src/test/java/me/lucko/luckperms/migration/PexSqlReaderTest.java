@@ -0,0 +1,179 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PexSqlReaderTest {
+    private static final int GROUP = 0;
+    private static final int USER = 1;
+
+    private Connection connection;
+
+    @Before
+    public void setup() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:pex;MODE=MySQL");
+        createTables("");
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.connection.close();
+    }
+
+    private void createTables(String prefix) throws SQLException {
+        try (Statement s = this.connection.createStatement()) {
+            s.execute("CREATE TABLE `" + prefix + "permissions` (`id` INT AUTO_INCREMENT PRIMARY KEY, `name` VARCHAR(50), `type` INT, `permission` VARCHAR(200), `world` VARCHAR(50), `value` VARCHAR(200))");
+            s.execute("CREATE TABLE `" + prefix + "permissions_entity` (`id` INT AUTO_INCREMENT PRIMARY KEY, `name` VARCHAR(50), `type` INT, `default` INT)");
+            s.execute("CREATE TABLE `" + prefix + "permissions_inheritance` (`id` INT AUTO_INCREMENT PRIMARY KEY, `child` VARCHAR(50), `parent` VARCHAR(50), `type` INT, `world` VARCHAR(50))");
+        }
+    }
+
+    private void permission(String name, int type, String permission, String world, String value) throws SQLException {
+        insert("INSERT INTO `permissions` (`name`, `type`, `permission`, `world`, `value`) VALUES ('" + name + "', " + type + ", '" + permission + "', '" + world + "', '" + value + "')");
+    }
+
+    private void parent(String child, String parent, int type, String world) throws SQLException {
+        insert("INSERT INTO `permissions_inheritance` (`child`, `parent`, `type`, `world`) VALUES ('" + child + "', '" + parent + "', " + type + ", '" + world + "')");
+    }
+
+    private void entity(String name, int type) throws SQLException {
+        insert("INSERT INTO `permissions_entity` (`name`, `type`, `default`) VALUES ('" + name + "', " + type + ", 0)");
+    }
+
+    private void insert(String sql) throws SQLException {
+        try (Statement s = this.connection.createStatement()) {
+            s.execute(sql);
+        }
+    }
+
+    private List<PexSqlReader.UserData> readUsers(Map<String, String> aliases) throws SQLException {
+        List<PexSqlReader.UserData> users = new ArrayList<>();
+        try (PexSqlReader reader = new PexSqlReader(this.connection, aliases)) {
+            reader.users().forEach(users::add);
+        }
+        return users;
+    }
+
+    @Test
+    public void readsEachUserFromAllTables() throws SQLException {
+        permission("bob", USER, "a.b", "", "");
+        permission("bob", USER, "-c.d", "world", "");
+        permission("bob", USER, "prefix", "", "[B]");
+        permission("bob", USER, "prefix", "nether", "[N]");
+        parent("bob", "admin", USER, "");
+        parent("bob", "vip", USER, "world");
+        entity("bob", USER);
+
+        // only some of the tables have rows for these users
+        permission("alice", USER, "x", "world", "");
+        parent("carl", "default", USER, "");
+        entity("dave", USER);
+
+        // groups are never read
+        permission("staff", GROUP, "g", "", "");
+        parent("staff", "default", GROUP, "");
+        entity("staff", GROUP);
+
+        List<PexSqlReader.UserData> users = readUsers(Collections.emptyMap());
+        assertEquals(4, users.size());
+
+        PexSqlReader.UserData alice = users.get(0);
+        assertEquals("alice", alice.getIdentifier());
+        assertEquals(Collections.singletonMap("world", Collections.singletonList("x")), alice.getPermissions());
+        assertTrue(alice.getParents().isEmpty());
+
+        PexSqlReader.UserData bob = users.get(1);
+        assertEquals("bob", bob.getIdentifier());
+        assertEquals(Collections.singletonList("a.b"), bob.getPermissions().get(null));
+        assertEquals(Collections.singletonList("-c.d"), bob.getPermissions().get("world"));
+        assertEquals(Collections.singletonList("admin"), bob.getParents().get(null));
+        assertEquals(Collections.singletonList("vip"), bob.getParents().get("world"));
+        assertEquals("[B]", bob.getOption("prefix", null));
+        assertEquals("[N]", bob.getOption("prefix", "nether"));
+        // falls back to the global value
+        assertEquals("[B]", bob.getOption("prefix", "world"));
+        assertNull(bob.getOption("suffix", null));
+        assertFalse(bob.isEmpty());
+
+        PexSqlReader.UserData carl = users.get(2);
+        assertEquals("carl", carl.getIdentifier());
+        assertEquals(Collections.singletonList("default"), carl.getParents().get(null));
+
+        PexSqlReader.UserData dave = users.get(3);
+        assertEquals("dave", dave.getIdentifier());
+        assertTrue(dave.isEmpty());
+    }
+
+    @Test
+    public void keepsTheOrderPermissionsWereStoredIn() throws SQLException {
+        // PEX loads permissions newest first
+        permission("bob", USER, "first", "", "");
+        permission("bob", USER, "second", "", "");
+        permission("bob", USER, "third", "", "");
+
+        List<PexSqlReader.UserData> users = readUsers(Collections.emptyMap());
+        assertEquals(Arrays.asList("third", "second", "first"), users.get(0).getPermissions().get(null));
+    }
+
+    @Test
+    public void readsAliasedTables() throws SQLException {
+        createTables("pex_");
+        insert("INSERT INTO `pex_permissions` (`name`, `type`, `permission`, `world`, `value`) VALUES ('bob', 1, 'a.b', '', '')");
+
+        Map<String, String> aliases = new HashMap<>();
+        aliases.put("permissions", "pex_permissions");
+        aliases.put("permissions_entity", "pex_permissions_entity");
+        aliases.put("permissions_inheritance", "pex_permissions_inheritance");
+
+        List<PexSqlReader.UserData> users = readUsers(aliases);
+        assertEquals(1, users.size());
+        assertEquals(Collections.singletonList("a.b"), users.get(0).getPermissions().get(null));
+    }
+
+    @Test
+    public void readsNothingFromEmptyTables() throws SQLException {
+        assertTrue(readUsers(Collections.emptyMap()).isEmpty());
+    }
+}
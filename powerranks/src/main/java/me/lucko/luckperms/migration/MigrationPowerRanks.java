@@ -29,10 +29,10 @@ import net.luckperms.api.LuckPerms;
 import net.luckperms.api.context.DefaultContextKeys;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
 import net.luckperms.api.node.types.InheritanceNode;
 
 import nl.svenar.PowerRanks.Cache.CachedPlayers;
-import nl.svenar.PowerRanks.Data.Users;
 import nl.svenar.PowerRanks.PowerRanks;
 import nl.svenar.PowerRanks.api.PowerRanksAPI;
 
@@ -40,6 +40,11 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -59,7 +64,6 @@ public final class MigrationPowerRanks extends MigrationJavaPlugin {
         log(sender, "Starting.");
 
         PowerRanksAPI prApi = pr.loadAPI();
-        Users prUsers = new Users(pr);
 
         // Migrate all groups
         log(sender, "Starting groups migration.");
@@ -68,15 +72,17 @@ public final class MigrationPowerRanks extends MigrationJavaPlugin {
         for (String rank : ranks) {
             Group group = this.luckPerms.getGroupManager().createAndLoadGroup(rank).join();
 
+            Set<Node> nodes = new LinkedHashSet<>();
             for (String node : prApi.getPermissions(rank)) {
                 if (node.isEmpty()) continue;
-                group.data().add(MigrationUtils.parseNode(node, true).build());
+                nodes.add(MigrationUtils.parseNode(node, true).build());
             }
 
             for (String parent : prApi.getInheritances(rank)) {
                 if (parent.isEmpty()) continue;
-                group.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(parent)).build());
+                nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(parent)).build());
             }
+            MigrationUtils.addNodes(group, nodes);
 
             this.luckPerms.getGroupManager().saveGroup(group);
             log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
@@ -85,43 +91,62 @@ public final class MigrationPowerRanks extends MigrationJavaPlugin {
 
         // Migrate all users
         log(sender, "Starting user migration.");
-        Set<String> playerUuids = prUsers.getCachedPlayers();
         AtomicInteger userCount = new AtomicInteger(0);
-        for (String uuidString : playerUuids) {
-            UUID uuid = lookupUuid(uuidString);
+        Throwing.Consumer<PowerRanksPlayerReader.PlayerData> migrateUser = data -> {
+            UUID uuid = lookupUuid(data.getUuid());
             if (uuid == null) {
-                continue;
+                return;
             }
 
             User user = this.luckPerms.getUserManager().loadUser(uuid, null).join();
+            Set<Node> nodes = new LinkedHashSet<>();
 
-            user.data().add(InheritanceNode.builder(CachedPlayers.getString("players." + uuidString + ".rank")).build());
+            if (data.getRank() != null) {
+                nodes.add(InheritanceNode.builder(data.getRank()).build());
+            }
 
-            final ConfigurationSection subGroups = CachedPlayers.getConfigurationSection("players." + uuidString + ".subranks");
-            if (subGroups != null) {
-                for (String subGroup : subGroups.getKeys(false)) {
-                    InheritanceNode.Builder builder = InheritanceNode.builder(subGroup);
-                    for (String worldName : CachedPlayers.getStringList("players." + uuidString + ".subranks." + subGroup + ".worlds")) {
-                        if (!worldName.equalsIgnoreCase("all")) {
-                            builder.withContext(DefaultContextKeys.WORLD_KEY, worldName);
-                        }
+            for (Map.Entry<String, List<String>> subGroup : data.getSubranks().entrySet()) {
+                InheritanceNode.Builder builder = InheritanceNode.builder(subGroup.getKey());
+                for (String worldName : subGroup.getValue()) {
+                    if (!worldName.equalsIgnoreCase("all")) {
+                        builder.withContext(DefaultContextKeys.WORLD_KEY, worldName);
                     }
-                    user.data().add(builder.build());
                 }
+                nodes.add(builder.build());
             }
 
-            for (String node : CachedPlayers.getStringList("players." + uuidString + ".permissions")) {
+            for (String node : data.getPermissions()) {
                 if (node.isEmpty()) continue;
-                user.data().add(MigrationUtils.parseNode(node, true).build());
+                nodes.add(MigrationUtils.parseNode(node, true).build());
             }
+            MigrationUtils.addNodes(user, nodes);
 
-            user.setPrimaryGroup(CachedPlayers.getString("players." + uuidString + ".rank"));
+            if (data.getRank() != null) {
+                user.setPrimaryGroup(data.getRank());
+            }
 
             this.luckPerms.getUserManager().cleanupUser(user);
             this.luckPerms.getUserManager().saveUser(user);
             if (userCount.incrementAndGet() % 500 == 0) {
                 log(sender, "Migrated " + userCount.get() + " users so far.");
             }
+        };
+
+        if (args.length >= 1 && args[0].equalsIgnoreCase("files")) {
+            // stream the players file, rather than the copy PowerRanks has loaded
+            log(sender, "Reading the PowerRanks players file directly.");
+            try {
+                PowerRanksPlayerReader.read(new File(new File(this.pr.getDataFolder(), "Ranks"), "players.yml"), migrateUser);
+            } catch (IOException e) {
+                e.printStackTrace();
+                log(sender, "Unable to read the PowerRanks players file, so the migration was not completed. Migrated " + userCount.get() + " users before the error.");
+                return;
+            }
+        } else {
+            ConfigurationSection players = CachedPlayers.getConfigurationSection("players");
+            if (players != null) {
+                PowerRanksPlayerReader.read(players, migrateUser);
+            }
         }
 
         log(sender, "Migrated " + userCount.get() + " users.");
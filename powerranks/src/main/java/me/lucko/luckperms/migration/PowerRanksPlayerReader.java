@@ -0,0 +1,138 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the players stored by PowerRanks, one player node at a time.
+ *
+ * <p>Players can either be read from the loaded {@code players} section, or streamed from
+ * the {@code players.yml} file using {@link YamlSectionReader} for very large installs.</p>
+ */
+public final class PowerRanksPlayerReader {
+    private PowerRanksPlayerReader() {}
+
+    /**
+     * Reads every player in the loaded {@code players} section, in order.
+     *
+     * @param players the players section
+     * @param consumer the consumer
+     * @return true if all players were read successfully
+     */
+    public static boolean read(ConfigurationSection players, Throwing.Consumer<PlayerData> consumer) {
+        return Iterators.tryIterate(players.getKeys(false), uuid -> {
+            ConfigurationSection player = players.getConfigurationSection(uuid);
+            if (player == null) {
+                return;
+            }
+
+            Map<String, List<String>> subranks = new LinkedHashMap<>();
+            ConfigurationSection subranksSection = player.getConfigurationSection("subranks");
+            if (subranksSection != null) {
+                for (String subrank : subranksSection.getKeys(false)) {
+                    ConfigurationSection subrankSection = subranksSection.getConfigurationSection(subrank);
+                    subranks.put(subrank, subrankSection == null ? Collections.emptyList() : subrankSection.getStringList("worlds"));
+                }
+            }
+
+            consumer.accept(new PlayerData(uuid, player.getString("rank"), subranks, player.getStringList("permissions")));
+        });
+    }
+
+    /**
+     * Streams every player in the {@code players} section of the given file, in order.
+     *
+     * @param file the players file
+     * @param consumer the consumer
+     * @return true if all players were read successfully
+     * @throws IOException if the file can't be read
+     */
+    public static boolean read(File file, Throwing.Consumer<PlayerData> consumer) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return YamlSectionReader.read(reader, Collections.singleton("players"), (section, uuid, value) -> {
+                Map<String, Object> player = YamlSectionReader.asMap(value);
+
+                Map<String, List<String>> subranks = new LinkedHashMap<>();
+                for (Map.Entry<String, Object> subrank : YamlSectionReader.asMap(player.get("subranks")).entrySet()) {
+                    subranks.put(subrank.getKey(), YamlSectionReader.asStringList(YamlSectionReader.asMap(subrank.getValue()).get("worlds")));
+                }
+
+                consumer.accept(new PlayerData(uuid, YamlSectionReader.asString(player.get("rank")), subranks, YamlSectionReader.asStringList(player.get("permissions"))));
+            });
+        }
+    }
+
+    /**
+     * The raw data stored for a single player.
+     */
+    public static final class PlayerData {
+        private final String uuid;
+        private final String rank;
+        private final Map<String, List<String>> subranks;
+        private final List<String> permissions;
+
+        PlayerData(String uuid, String rank, Map<String, List<String>> subranks, List<String> permissions) {
+            this.uuid = uuid;
+            this.rank = rank;
+            this.subranks = subranks;
+            this.permissions = permissions;
+        }
+
+        public String getUuid() {
+            return this.uuid;
+        }
+
+        public String getRank() {
+            return this.rank;
+        }
+
+        /**
+         * Gets the player's subranks, mapped to the worlds they apply in.
+         *
+         * @return the subranks
+         */
+        public Map<String, List<String>> getSubranks() {
+            return this.subranks;
+        }
+
+        public List<String> getPermissions() {
+            return this.permissions;
+        }
+    }
+
+}
@@ -31,8 +31,7 @@ import me.TechsCode.UltraPermissions.storage.objects.Permission;
 import me.TechsCode.UltraPermissions.storage.objects.UserRankup;
 
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.context.DefaultContextKeys;
-import net.luckperms.api.model.PermissionHolder;
+import net.luckperms.api.context.ImmutableContextSet;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
@@ -44,6 +43,15 @@ import net.luckperms.api.node.types.SuffixNode;
 import org.bukkit.command.CommandSender;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public final class MigrationUltraPermissions extends MigrationJavaPlugin {
@@ -60,93 +68,157 @@ public final class MigrationUltraPermissions extends MigrationJavaPlugin {
 
         UltraPermissionsAPI ultraPermsApi = UltraPermissions.getAPI();
 
+        // Take a single snapshot of the groups, indexed by name, so rankups can be resolved
+        // without deriving each group's name and contexts again.
+        List<me.TechsCode.UltraPermissions.storage.objects.Group> groups = new ArrayList<>();
+        Map<String, GroupSnapshot> groupSnapshots = new HashMap<>();
+        for (me.TechsCode.UltraPermissions.storage.objects.Group group : ultraPermsApi.getGroups()) {
+            groups.add(group);
+            groupSnapshots.put(group.getName(), new GroupSnapshot(group));
+        }
+
+        MigrationReport report = new MigrationReport();
+
         // Migrate all groups
         log(sender, "Starting group migration.");
 
-        int maxWeight = ultraPermsApi.getGroups().stream()
+        int maxWeight = groups.stream()
                 .mapToInt(g -> g.getPriority())
                 .max()
                 .orElse(0) + 5;
 
         AtomicInteger groupCount = new AtomicInteger(0);
-        Iterators.tryIterate(ultraPermsApi.getGroups(), group -> {
-            String groupName = MigrationUtils.standardizeName(group.getName());
+        Iterators.tryIterate(groups, group -> {
+            String groupName = groupSnapshots.get(group.getName()).name;
             int weight = maxWeight - group.getPriority();
 
             Group lpGroup = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
             MigrationUtils.setGroupWeight(lpGroup, weight);
-            copy(group, lpGroup, weight);
 
+            Set<Node> nodes = new LinkedHashSet<>();
+            copy(group, nodes, weight);
             for (me.TechsCode.UltraPermissions.storage.objects.Group inherited : group.getActiveInheritedGroups()) {
-                String inheritedName = MigrationUtils.standardizeName(inherited.getName());
-                InheritanceNode.Builder builder = InheritanceNode.builder(inheritedName);
-                inherited.getServer().ifPresent(v -> builder.withContext(DefaultContextKeys.SERVER_KEY, v));
-                inherited.getWorld().ifPresent(v -> builder.withContext(DefaultContextKeys.WORLD_KEY, v));
-                lpGroup.data().add(builder.build());
+                nodes.add(snapshot(groupSnapshots, inherited).node);
             }
+            MigrationUtils.addNodes(lpGroup, nodes);
 
             this.luckPerms.getGroupManager().saveGroup(lpGroup);
             log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
         });
         log(sender, "Migrated " + groupCount.get() + " groups");
 
-        // Migrate all users.
+        // Migrate all users. UltraPermissions is only read on this thread, and rankups are resolved
+        // through the group snapshots. Users don't depend on each other, so they are written in parallel.
         log(sender, "Starting user migration.");
 
         int userWeight = maxWeight + 5;
 
-        AtomicInteger userCount = new AtomicInteger(0);
+        List<UserData> users = new ArrayList<>();
         Iterators.tryIterate(ultraPermsApi.getUsers(), user -> {
-            User lpUser = this.luckPerms.getUserManager().loadUser(user.getUuid(), user.getName()).join();
-            copy(user, lpUser, userWeight);
+            Set<Node> nodes = new LinkedHashSet<>();
+            copy(user, nodes, userWeight);
 
             for (UserRankup inheritance : user.getRankups()) {
                 me.TechsCode.UltraPermissions.storage.objects.Group inherited = inheritance.getGroup().get().orElse(null);
-                String inheritedName = MigrationUtils.standardizeName(inherited.getName());
-                InheritanceNode.Builder builder = InheritanceNode.builder(inheritedName);
+                if (inherited == null) {
+                    // the group was deleted, but the rankup was left behind
+                    report.increment("Dangling rankups skipped");
+                    continue;
+                }
+
+                GroupSnapshot snapshot = snapshot(groupSnapshots, inherited);
                 if (inheritance.getExpiry() != 0) {
-                    builder.expiry(Instant.ofEpochMilli(inheritance.getExpiry()));
+                    nodes.add(InheritanceNode.builder(snapshot.name).withContext(snapshot.context).expiry(Instant.ofEpochMilli(inheritance.getExpiry())).build());
+                } else {
+                    nodes.add(snapshot.node);
                 }
-                inherited.getServer().ifPresent(v -> builder.withContext(DefaultContextKeys.SERVER_KEY, v));
-                inherited.getWorld().ifPresent(v -> builder.withContext(DefaultContextKeys.WORLD_KEY, v));
-                lpUser.data().add(builder.build());
             }
 
             if (user.isSuperadmin()) {
-                lpUser.data().add(Node.builder("*").build());
-                lpUser.data().add(Node.builder("luckperms.*").build());
-            }
-
-            this.luckPerms.getUserManager().saveUser(lpUser);
-            this.luckPerms.getUserManager().cleanupUser(lpUser);
-            if (userCount.incrementAndGet() % 500 == 0) {
-                log(sender, "Migrated " + userCount.get() + " users so far.");
+                nodes.add(Node.builder("*").build());
+                nodes.add(Node.builder("luckperms.*").build());
             }
+            users.add(new UserData(user.getUuid(), user.getName(), nodes));
         });
 
+        AtomicInteger userCount = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Iterators.tryIterate(users, executor, user -> {
+                User lpUser = this.luckPerms.getUserManager().loadUser(user.uuid, user.name).join();
+                MigrationUtils.addNodes(lpUser, user.nodes);
+
+                this.luckPerms.getUserManager().saveUser(lpUser);
+                this.luckPerms.getUserManager().cleanupUser(lpUser);
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+
         log(sender, "Migrated " + userCount.get() + " users.");
+        log(sender, report);
         log(sender, "Success! Migration complete.");
         log(sender, "Don't forget to remove the UltraPermissions jar from your plugins folder & restart the server. " +
                 "LuckPerms may not take over as the server permission handler until this is done.");
     }
 
+    private static GroupSnapshot snapshot(Map<String, GroupSnapshot> groupSnapshots, me.TechsCode.UltraPermissions.storage.objects.Group group) {
+        GroupSnapshot snapshot = groupSnapshots.get(group.getName());
+        // the group was created after the snapshot was taken
+        return snapshot != null ? snapshot : new GroupSnapshot(group);
+    }
+
     private static Node toNode(Permission perm) {
         NodeBuilder<?, ?> builder = Node.builder(perm.getName()).value(perm.isPositive());
         if (perm.getExpiration() != 0) {
             builder.expiry(Instant.ofEpochMilli(perm.getExpiration()));
         }
-        perm.getServer().ifPresent(v -> builder.withContext(DefaultContextKeys.SERVER_KEY, v));
-        perm.getWorld().ifPresent(v -> builder.withContext(DefaultContextKeys.WORLD_KEY, v));
+        builder.withContext(ContextCache.of(perm.getServer().orElse(null), perm.getWorld().orElse(null)));
         return builder.build();
     }
 
-    private static void copy(me.TechsCode.UltraPermissions.storage.objects.PermissionHolder holder, PermissionHolder lpHolder, int weight) {
+    private static void copy(me.TechsCode.UltraPermissions.storage.objects.PermissionHolder holder, Set<Node> nodes, int weight) {
         for (Permission permission : holder.getPermissions()) {
-            lpHolder.data().add(toNode(permission));
+            nodes.add(toNode(permission));
         }
 
-        holder.getPrefix().ifPresent(prefix -> lpHolder.data().add(PrefixNode.builder(prefix, weight).build()));
-        holder.getSuffix().ifPresent(prefix -> lpHolder.data().add(SuffixNode.builder(prefix, weight).build()));
+        holder.getPrefix().ifPresent(prefix -> nodes.add(PrefixNode.builder(prefix, weight).build()));
+        holder.getSuffix().ifPresent(prefix -> nodes.add(SuffixNode.builder(prefix, weight).build()));
+    }
+
+    /**
+     * A user's converted data, waiting to be written.
+     */
+    private static final class UserData {
+        private final UUID uuid;
+        private final String name;
+        private final Set<Node> nodes;
+
+        UserData(UUID uuid, String name, Set<Node> nodes) {
+            this.uuid = uuid;
+            this.name = name;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * The parts of a group needed to inherit it, derived once.
+     */
+    private static final class GroupSnapshot {
+        private final String name;
+        private final ImmutableContextSet context;
+        private final InheritanceNode node;
+
+        GroupSnapshot(me.TechsCode.UltraPermissions.storage.objects.Group group) {
+            this.name = MigrationUtils.standardizeName(group.getName());
+
+            this.context = ContextCache.of(group.getServer().orElse(null), group.getWorld().orElse(null));
+
+            this.node = InheritanceNode.builder(this.name).withContext(this.context).build();
+        }
     }
 
 }
@@ -0,0 +1,103 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.types.InheritanceNode;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * An index of zPermissions group memberships, keyed by member.
+ *
+ * <p>The index is filled once while the groups are read, and then holds everything the
+ * user migration needs about each member's parents, including which group zPermissions
+ * would choose as their primary group.</p>
+ */
+public final class MembershipIndex {
+    private final Map<UUID, Member> members = new HashMap<>();
+    private final long now = System.currentTimeMillis() / 1000L;
+
+    /**
+     * Records a membership.
+     *
+     * @param member the member
+     * @param group the name of the group
+     * @param priority the priority of the group
+     * @param expiry the time the membership expires, in epoch seconds, or 0 if it is permanent
+     */
+    public void add(UUID member, String group, int priority, long expiry) {
+        String groupName = MigrationUtils.standardizeName(group);
+        Member data = this.members.computeIfAbsent(member, m -> new Member());
+
+        if (expiry == 0L) {
+            data.parents.add(InheritanceNode.builder(groupName).build());
+        } else {
+            data.parents.add(InheritanceNode.builder(groupName).expiry(expiry).build());
+        }
+
+        // zPermissions uses the highest priority group which hasn't expired
+        boolean expired = expiry != 0L && expiry <= this.now;
+        if (!expired && (data.primaryGroup == null || priority > data.primaryPriority)) {
+            data.primaryGroup = groupName;
+            data.primaryPriority = priority;
+        }
+    }
+
+    public Set<UUID> getMembers() {
+        return Collections.unmodifiableSet(this.members.keySet());
+    }
+
+    public Set<Node> getParents(UUID member) {
+        Member data = this.members.get(member);
+        return data == null ? Collections.emptySet() : data.parents;
+    }
+
+    /**
+     * Gets the primary group of the member.
+     *
+     * @param member the member
+     * @param defaultGroup the group used when the member has no current memberships
+     * @return the primary group
+     */
+    public String getPrimaryGroup(UUID member, String defaultGroup) {
+        Member data = this.members.get(member);
+        return data == null || data.primaryGroup == null ? defaultGroup : data.primaryGroup;
+    }
+
+    private static final class Member {
+        private final Set<Node> parents = new HashSet<>();
+        private String primaryGroup;
+        private int primaryPriority;
+    }
+
+}
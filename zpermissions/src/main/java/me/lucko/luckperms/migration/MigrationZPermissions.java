@@ -26,8 +26,6 @@
 package me.lucko.luckperms.migration;
 
 import net.luckperms.api.LuckPerms;
-import net.luckperms.api.context.DefaultContextKeys;
-import net.luckperms.api.model.PermissionHolder;
 import net.luckperms.api.model.group.Group;
 import net.luckperms.api.model.user.User;
 import net.luckperms.api.node.Node;
@@ -38,6 +36,9 @@ import net.luckperms.api.node.types.SuffixNode;
 import net.luckperms.api.track.Track;
 
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
 import org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsService;
 import org.tyrannyofheaven.bukkit.zPermissions.dao.PermissionService;
 import org.tyrannyofheaven.bukkit.zPermissions.model.EntityMetadata;
@@ -45,13 +46,18 @@ import org.tyrannyofheaven.bukkit.zPermissions.model.Entry;
 import org.tyrannyofheaven.bukkit.zPermissions.model.Membership;
 import org.tyrannyofheaven.bukkit.zPermissions.model.PermissionEntity;
 
-import java.lang.reflect.Field;
-import java.util.HashMap;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public final class MigrationZPermissions extends MigrationJavaPlugin {
     private LuckPerms luckPerms;
@@ -66,52 +72,104 @@ public final class MigrationZPermissions extends MigrationJavaPlugin {
         log(sender, "Starting.");
 
         ZPermissionsService service = getServer().getServicesManager().load(ZPermissionsService.class);
-        PermissionService internalService;
+
+        // read the database in bulk where possible, instead of making several queries per entity
+        Connection connection = null;
+        ZPermissionsSqlReader reader = null;
+        PermissionService internalService = null;
         try {
-            Field psField = service.getClass().getDeclaredField("permissionService");
-            psField.setAccessible(true);
-            internalService = (PermissionService) psField.get(service);
+            connection = openDatabaseConnection();
+            if (connection != null) {
+                log(sender, "Reading directly from the zPermissions database.");
+                reader = new ZPermissionsSqlReader(connection);
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            return;
         }
 
+        if (reader == null) {
+            try {
+                internalService = (PermissionService) PERMISSION_SERVICE_FIELD.invokeExact(service);
+            } catch (Throwable t) {
+                t.printStackTrace();
+                return;
+            }
+        }
+
+        try {
+            migrate(sender, service, internalService, reader);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                    connection.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void migrate(CommandSender sender, ZPermissionsService service, PermissionService internalService, ZPermissionsSqlReader reader) {
         // Migrate all groups
         log(sender, "Starting group migration.");
 
-        Map<UUID, Set<Node>> userParents = new HashMap<>();
+        // index the memberships by member while reading the groups, so the user migration needs no further lookups
+        MembershipIndex memberships = new MembershipIndex();
 
         AtomicInteger groupCount = new AtomicInteger(0);
         AtomicInteger maxWeight = new AtomicInteger(0);
-        Iterators.tryIterate(internalService.getEntities(true), entity -> {
-            String groupName = MigrationUtils.standardizeName(entity.getDisplayName());
-            Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
-
-            int weight = entity.getPriority();
-            maxWeight.set(Math.max(maxWeight.get(), weight));
-            migrateEntity(group, entity, weight);
-            MigrationUtils.setGroupWeight(group, weight);
+        if (reader != null) {
+            Iterators.tryIterate(reader.groups(), entity -> {
+                String groupName = MigrationUtils.standardizeName(entity.getDisplayName());
+                Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+
+                int weight = entity.getPriority();
+                maxWeight.set(Math.max(maxWeight.get(), weight));
+                Set<Node> nodes = new LinkedHashSet<>();
+                migrateEntity(nodes, entity, weight);
+                MigrationUtils.addNodes(group, nodes);
+                MigrationUtils.setGroupWeight(group, weight);
+
+                this.luckPerms.getGroupManager().saveGroup(group);
+                log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+            });
 
             // store user data for later
-            Set<Membership> members = entity.getMemberships();
-            for (Membership membership : members) {
+            Iterators.tryIterate(reader.memberships(), membership -> {
                 UUID uuid = lookupUuid(membership.getMember());
-                if (uuid == null) {
-                    continue;
+                if (uuid != null) {
+                    memberships.add(uuid, membership.getGroup(), membership.getGroupPriority(), membership.getExpiry());
                 }
-
-                Set<Node> nodes = userParents.computeIfAbsent(uuid, u -> new HashSet<>());
-                if (membership.getExpiration() == null) {
-                    nodes.add(InheritanceNode.builder(groupName).build());
-                } else {
-                    long expiry = membership.getExpiration().toInstant().getEpochSecond();
-                    nodes.add(InheritanceNode.builder(groupName).expiry(expiry).build());
+            });
+        } else {
+            Iterators.tryIterate(internalService.getEntities(true), entity -> {
+                String groupName = MigrationUtils.standardizeName(entity.getDisplayName());
+                Group group = this.luckPerms.getGroupManager().createAndLoadGroup(groupName).join();
+
+                int weight = entity.getPriority();
+                maxWeight.set(Math.max(maxWeight.get(), weight));
+                Set<Node> nodes = new LinkedHashSet<>();
+                migrateEntity(nodes, groupName, entity, weight);
+                MigrationUtils.addNodes(group, nodes);
+                MigrationUtils.setGroupWeight(group, weight);
+
+                // store user data for later
+                Set<Membership> members = entity.getMemberships();
+                for (Membership membership : members) {
+                    UUID uuid = lookupUuid(membership.getMember());
+                    if (uuid == null) {
+                        continue;
+                    }
+
+                    long expiry = membership.getExpiration() == null ? 0L : membership.getExpiration().toInstant().getEpochSecond();
+                    memberships.add(uuid, entity.getDisplayName(), weight, expiry);
                 }
-            }
 
-            this.luckPerms.getGroupManager().saveGroup(group);
-            log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
-        });
+                this.luckPerms.getGroupManager().saveGroup(group);
+                log(sender, "Migrated " + groupCount.incrementAndGet() + " groups so far.");
+            });
+        }
         log(sender, "Migrated " + groupCount.get() + " groups");
 
         // Migrate all tracks
@@ -137,39 +195,54 @@ public final class MigrationZPermissions extends MigrationJavaPlugin {
         log(sender, "Starting user migration.");
         maxWeight.addAndGet(10);
         AtomicInteger userCount = new AtomicInteger(0);
+        String defaultGroup = getDefaultGroup();
 
-        Set<UUID> usersToMigrate = new HashSet<>(userParents.keySet());
-        usersToMigrate.addAll(service.getAllPlayersUUID());
+        if (reader != null) {
+            Set<UUID> membersOnly = new HashSet<>(memberships.getMembers());
 
-        Iterators.tryIterate(usersToMigrate, u -> {
-            PermissionEntity entity = internalService.getEntity(null, u, false);
+            Iterators.tryIterate(reader.players(), entity -> {
+                UUID u = lookupUuid(entity.getName());
+                if (u == null) {
+                    return;
+                }
 
-            String username = null;
-            if (entity != null) {
-                username = entity.getDisplayName();
-            }
+                membersOnly.remove(u);
+                migrateUser(u, entity.getDisplayName(), nodes -> migrateEntity(nodes, entity, maxWeight.get()), memberships, defaultGroup);
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
+                }
+            });
 
-            User user = this.luckPerms.getUserManager().loadUser(u, username).join();
+            // users which are only group members
+            Iterators.tryIterate(membersOnly, u -> {
+                migrateUser(u, null, nodes -> {}, memberships, defaultGroup);
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
+                }
+            });
+        } else {
+            Set<UUID> usersToMigrate = new HashSet<>(memberships.getMembers());
+            usersToMigrate.addAll(service.getAllPlayersUUID());
 
-            // migrate permissions & meta
-            if (entity != null) {
-                migrateEntity(user, entity, maxWeight.get());
-            }
+            Iterators.tryIterate(usersToMigrate, u -> {
+                PermissionEntity entity = internalService.getEntity(null, u, false);
 
-            // migrate groups
-            Set<Node> parents = userParents.get(u);
-            if (parents != null) {
-                parents.forEach(node -> user.data().add(node));
-            }
+                String username = null;
+                if (entity != null) {
+                    username = entity.getDisplayName();
+                }
 
-            user.setPrimaryGroup(MigrationUtils.standardizeName(service.getPlayerPrimaryGroup(u)));
+                migrateUser(u, username, nodes -> {
+                    if (entity != null) {
+                        migrateEntity(nodes, null, entity, maxWeight.get());
+                    }
+                }, memberships, defaultGroup);
 
-            this.luckPerms.getUserManager().saveUser(user);
-            this.luckPerms.getUserManager().cleanupUser(user);
-            if (userCount.incrementAndGet() % 500 == 0) {
-                log(sender, "Migrated " + userCount.get() + " users so far.");
-            }
-        });
+                if (userCount.incrementAndGet() % 500 == 0) {
+                    log(sender, "Migrated " + userCount.get() + " users so far.");
+                }
+            });
+        }
 
         log(sender, "Migrated " + userCount.get() + " users.");
         log(sender, "Success! Migration complete.");
@@ -177,29 +250,79 @@ public final class MigrationZPermissions extends MigrationJavaPlugin {
                 "LuckPerms may not take over as the server permission handler until this is done.");
     }
 
-    private void migrateEntity(PermissionHolder holder, PermissionEntity entity, int weight) {
+    private static final MethodHandle PERMISSION_SERVICE_FIELD = Accessors.getter(
+            Accessors.findClass("org.tyrannyofheaven.bukkit.zPermissions.ZPermissionsServiceImpl", ZPermissionsService.class),
+            "permissionService", ZPermissionsService.class, PermissionService.class
+    );
+
+    private void migrateUser(UUID u, String username, Consumer<Set<Node>> entity, MembershipIndex memberships, String defaultGroup) {
+        User user = this.luckPerms.getUserManager().loadUser(u, username).join();
+        Set<Node> nodes = new LinkedHashSet<>();
+
+        // migrate permissions & meta
+        entity.accept(nodes);
+
+        // migrate groups
+        nodes.addAll(memberships.getParents(u));
+        MigrationUtils.addNodes(user, nodes);
+        user.setPrimaryGroup(memberships.getPrimaryGroup(u, defaultGroup));
+
+        this.luckPerms.getUserManager().saveUser(user);
+        this.luckPerms.getUserManager().cleanupUser(user);
+    }
+
+    private void migrateEntity(Set<Node> nodes, String groupName, PermissionEntity entity, int weight) {
         for (Entry e : entity.getPermissions()) {
             if (e.getPermission().isEmpty()) continue;
 
             if (e.getWorld() != null && !e.getWorld().getName().isEmpty()) {
-                holder.data().add(Node.builder(e.getPermission()).value(e.isValue()).withContext(DefaultContextKeys.WORLD_KEY, e.getWorld().getName()).build());
+                nodes.add(Node.builder(e.getPermission()).value(e.isValue()).withContext(ContextCache.world(e.getWorld().getName())).build());
             } else {
-                holder.data().add(Node.builder(e.getPermission()).value(e.isValue()).build());
+                nodes.add(Node.builder(e.getPermission()).value(e.isValue()).build());
             }
         }
 
         // only migrate inheritances for groups
         if (entity.isGroup()) {
             for (PermissionEntity inheritance : entity.getParents()) {
-                if (!inheritance.getDisplayName().equals(((Group) holder).getName())) {
-                    holder.data().add(InheritanceNode.builder(MigrationUtils.standardizeName(inheritance.getDisplayName())).build());
+                if (!inheritance.getDisplayName().equals(groupName)) {
+                    nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(inheritance.getDisplayName())).build());
                 }
             }
         }
 
-        for (EntityMetadata metadata : entity.getMetadata()) {
-            String key = metadata.getName().toLowerCase();
-            Object value = metadata.getValue();
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        for (EntityMetadata m : entity.getMetadata()) {
+            metadata.put(m.getName(), m.getValue());
+        }
+        migrateMetadata(nodes, metadata, weight);
+    }
+
+    private void migrateEntity(Set<Node> nodes, ZPermissionsSqlReader.EntityData entity, int weight) {
+        for (ZPermissionsSqlReader.EntryData e : entity.getPermissions()) {
+            if (e.getPermission().isEmpty()) continue;
+
+            if (e.getWorld() != null && !e.getWorld().isEmpty()) {
+                nodes.add(Node.builder(e.getPermission()).value(e.getValue()).withContext(ContextCache.world(e.getWorld())).build());
+            } else {
+                nodes.add(Node.builder(e.getPermission()).value(e.getValue()).build());
+            }
+        }
+
+        // only groups have inheritances
+        for (String inheritance : entity.getParents()) {
+            if (!inheritance.equals(entity.getDisplayName())) {
+                nodes.add(InheritanceNode.builder(MigrationUtils.standardizeName(inheritance)).build());
+            }
+        }
+
+        migrateMetadata(nodes, entity.getMetadata(), weight);
+    }
+
+    private static void migrateMetadata(Set<Node> nodes, Map<String, Object> metadata, int weight) {
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            String key = entry.getKey().toLowerCase();
+            Object value = entry.getValue();
 
             if (key.isEmpty() || value == null) continue;
 
@@ -207,15 +330,55 @@ public final class MigrationZPermissions extends MigrationJavaPlugin {
             if (valueString.isEmpty()) continue;
 
             if (key.equals("prefix")) {
-                holder.data().add(PrefixNode.builder(valueString, weight).build());
+                nodes.add(PrefixNode.builder(valueString, weight).build());
             } else if (key.equals("suffix")) {
-                holder.data().add(SuffixNode.builder(valueString, weight).build());
+                nodes.add(SuffixNode.builder(valueString, weight).build());
             } else {
-                holder.data().add(MetaNode.builder(key, valueString).build());
+                nodes.add(MetaNode.builder(key, valueString).build());
             }
         }
     }
 
+    private String getDefaultGroup() {
+        Plugin plugin = getServer().getPluginManager().getPlugin("zPermissions");
+        String defaultGroup = plugin == null ? null : plugin.getConfig().getString("default-group");
+        return MigrationUtils.standardizeName(defaultGroup == null ? "default" : defaultGroup);
+    }
+
+    /**
+     * Opens a connection to the zPermissions database, using the server's database settings
+     * from bukkit.yml in the same way as zPermissions does.
+     *
+     * @return the connection, or null if zPermissions isn't using database storage
+     * @throws Exception if the connection couldn't be opened
+     */
+    private Connection openDatabaseConnection() throws Exception {
+        Plugin plugin = getServer().getPluginManager().getPlugin("zPermissions");
+        if (plugin == null || !plugin.getConfig().getBoolean("database-support", true)) {
+            return null;
+        }
+
+        File bukkitConfigFile = new File("bukkit.yml");
+        if (!bukkitConfigFile.exists()) {
+            return null;
+        }
+
+        ConfigurationSection config = YamlConfiguration.loadConfiguration(bukkitConfigFile).getConfigurationSection("database");
+        if (config == null || config.getString("url") == null) {
+            return null;
+        }
+
+        String url = config.getString("url")
+                .replace("{DIR}", plugin.getDataFolder().getPath().replace('\\', '/') + "/")
+                .replace("{NAME}", plugin.getDescription().getName().replaceAll("[^\\w_-]", ""));
+
+        String driver = config.getString("driver");
+        if (driver != null) {
+            Class.forName(driver);
+        }
+        return MigrationUtils.openStreamingConnection(url, config.getString("username"), config.getString("password"));
+    }
+
     public UUID lookupUuid(String s) {
         UUID uuid = Uuids.parse(s);
         if (uuid == null) {
@@ -0,0 +1,428 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+
+package me.lucko.luckperms.migration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads entities directly from the tables used by the zPermissions database storage.
+ *
+ * <p>The {@code entities}, {@code entries}, {@code inheritances} and {@code metadata}
+ * tables are each read by one forward-only query ordered by entity id, and the cursors
+ * are advanced together so each entity is rebuilt as they pass over its rows. This replaces
+ * the queries made per entity by zPermissions' own {@code PermissionService}. The statements
+ * of a pass are closed as soon as its iterator is exhausted.</p>
+ *
+ * <p>Rows only stream if the driver keeps several result sets open at once and honours the
+ * fetch size; MySQL needs cursor fetch for that, see
+ * {@link MigrationUtils#openStreamingConnection}.</p>
+ *
+ * <p>The reader only depends on JDBC, so it can be pointed at any copy of the schema.</p>
+ */
+public final class ZPermissionsSqlReader implements AutoCloseable {
+    private static final int FETCH_SIZE = 1000;
+
+    private final Connection connection;
+    private final Map<String, String> aliases;
+    private final List<PreparedStatement> statements = new ArrayList<>();
+
+    public ZPermissionsSqlReader(Connection connection, Map<String, String> aliases) {
+        this.connection = connection;
+        this.aliases = aliases;
+    }
+
+    public ZPermissionsSqlReader(Connection connection) {
+        this(connection, Collections.emptyMap());
+    }
+
+    private String table(String name) {
+        return this.aliases.getOrDefault(name, name);
+    }
+
+    /**
+     * Returns an iterable which streams through the stored groups, in id order.
+     *
+     * @return the groups
+     */
+    public Iterable<EntityData> groups() {
+        return entities(true);
+    }
+
+    /**
+     * Returns an iterable which streams through the stored players, in id order.
+     *
+     * <p>Players which only appear as a group member have no entity, and are only
+     * returned by {@link #memberships()}.</p>
+     *
+     * @return the players
+     */
+    public Iterable<EntityData> players() {
+        return entities(false);
+    }
+
+    /**
+     * Returns an iterable which streams through every group membership, ordered by member.
+     *
+     * @return the memberships
+     */
+    public Iterable<MembershipData> memberships() {
+        return () -> {
+            try {
+                List<PreparedStatement> pass = new ArrayList<>();
+                ResultSet rs = query(pass, "SELECT m.member, m.display_name, e.display_name, e.priority, m.expiration FROM " + table("memberships") + " m" +
+                        " JOIN " + table("entities") + " e ON e.id = m.group_id ORDER BY m.member, e.priority DESC");
+                return new ResultSetIterator<MembershipData>(rs, () -> closePass(pass)) {
+                    @Override
+                    protected MembershipData read(ResultSet rs) throws SQLException {
+                        Timestamp expiration = rs.getTimestamp(5);
+                        return new MembershipData(rs.getString(1), rs.getString(2), rs.getString(3), rs.getInt(4), expiration == null ? 0L : expiration.getTime() / 1000L);
+                    }
+                };
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private Iterable<EntityData> entities(boolean group) {
+        return () -> {
+            try {
+                List<PreparedStatement> pass = new ArrayList<>();
+                String entityFilter = " JOIN " + table("entities") + " e ON e.id = %s WHERE e.is_group = ?";
+
+                ResultSet entities = query(pass, "SELECT e.id, e.name, e.display_name, e.priority FROM " + table("entities") + " e WHERE e.is_group = ? ORDER BY e.id", group);
+                ResultSet entries = query(pass, "SELECT x.entity_id, x.permission, x.value, w.name FROM " + table("entries") + " x" +
+                        " LEFT JOIN " + table("worlds") + " w ON w.id = x.world_id" + String.format(entityFilter, "x.entity_id") + " ORDER BY x.entity_id, x.id", group);
+                ResultSet metadata = query(pass, "SELECT x.entity_id, x.name, x.string_value, x.integer_value, x.real_value, x.boolean_value FROM " + table("metadata") + " x" +
+                        String.format(entityFilter, "x.entity_id") + " ORDER BY x.entity_id, x.id", group);
+
+                // only groups can have parents
+                ResultSet parents = !group ? null : query(pass, "SELECT x.child_id, p.display_name FROM " + table("inheritances") + " x" +
+                        " JOIN " + table("entities") + " p ON p.id = x.parent_id" + String.format(entityFilter, "x.child_id") + " ORDER BY x.child_id, x.ordering", group);
+
+                return new EntityIterator(entities, () -> closePass(pass), new Cursor(entries), new Cursor(metadata), parents == null ? null : new Cursor(parents));
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private ResultSet query(List<PreparedStatement> pass, String sql, Object... params) throws SQLException {
+        PreparedStatement statement = this.connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        pass.add(statement);
+        this.statements.add(statement);
+        statement.setFetchSize(FETCH_SIZE);
+        for (int i = 0; i < params.length; i++) {
+            statement.setObject(i + 1, params[i]);
+        }
+        return statement.executeQuery();
+    }
+
+    // closes the statements of a pass once it has been read, so its cursors aren't held open
+    private void closePass(List<PreparedStatement> pass) throws SQLException {
+        for (PreparedStatement statement : pass) {
+            statement.close();
+        }
+        this.statements.removeAll(pass);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement statement : this.statements) {
+            statement.close();
+        }
+        this.statements.clear();
+    }
+
+    private static abstract class ResultSetIterator<T> implements Iterator<T> {
+        private final ResultSet rs;
+        private final Throwing.Runnable onExhausted;
+        private boolean hasRow;
+
+        ResultSetIterator(ResultSet rs, Throwing.Runnable onExhausted) throws SQLException {
+            this.rs = rs;
+            this.onExhausted = onExhausted;
+            this.hasRow = rs.next();
+            checkExhausted();
+        }
+
+        private void checkExhausted() throws SQLException {
+            if (this.hasRow) {
+                return;
+            }
+            try {
+                this.onExhausted.run();
+            } catch (SQLException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException(e);
+            }
+        }
+
+        protected abstract T read(ResultSet rs) throws SQLException;
+
+        @Override
+        public boolean hasNext() {
+            return this.hasRow;
+        }
+
+        @Override
+        public T next() {
+            if (!this.hasRow) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                T value = read(this.rs);
+                this.hasRow = this.rs.next();
+                checkExhausted();
+                return value;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A result set ordered by entity id in its first column.
+     */
+    private static final class Cursor {
+        private final ResultSet rs;
+        private boolean hasRow;
+
+        Cursor(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            this.hasRow = rs.next();
+        }
+
+        /**
+         * Moves the cursor to the first row for the given entity id.
+         *
+         * @param id the entity id
+         * @return true if the cursor is on a row for the entity
+         */
+        boolean seek(long id) throws SQLException {
+            while (this.hasRow && this.rs.getLong(1) < id) {
+                this.hasRow = this.rs.next();
+            }
+            return this.hasRow && this.rs.getLong(1) == id;
+        }
+
+        boolean next(long id) throws SQLException {
+            this.hasRow = this.rs.next();
+            return this.hasRow && this.rs.getLong(1) == id;
+        }
+    }
+
+    private static final class EntityIterator extends ResultSetIterator<EntityData> {
+        private final Cursor entries;
+        private final Cursor metadata;
+        private final Cursor parents;
+
+        EntityIterator(ResultSet entities, Throwing.Runnable onExhausted, Cursor entries, Cursor metadata, Cursor parents) throws SQLException {
+            super(entities, onExhausted);
+            this.entries = entries;
+            this.metadata = metadata;
+            this.parents = parents;
+        }
+
+        @Override
+        protected EntityData read(ResultSet rs) throws SQLException {
+            long id = rs.getLong(1);
+            EntityData data = new EntityData(rs.getString(2), rs.getString(3), rs.getInt(4));
+
+            for (boolean row = this.entries.seek(id); row; row = this.entries.next(id)) {
+                ResultSet entry = this.entries.rs;
+                data.permissions.add(new EntryData(entry.getString(2), entry.getBoolean(3), entry.getString(4)));
+            }
+
+            for (boolean row = this.metadata.seek(id); row; row = this.metadata.next(id)) {
+                ResultSet metadata = this.metadata.rs;
+                Object value = metadata.getString(3);
+                if (value == null) {
+                    value = metadata.getObject(4);
+                }
+                if (value == null) {
+                    value = metadata.getObject(5);
+                }
+                if (value == null) {
+                    value = metadata.getObject(6);
+                }
+                if (value != null) {
+                    data.metadata.put(metadata.getString(2), value);
+                }
+            }
+
+            if (this.parents != null) {
+                for (boolean row = this.parents.seek(id); row; row = this.parents.next(id)) {
+                    data.parents.add(this.parents.rs.getString(2));
+                }
+            }
+
+            return data;
+        }
+    }
+
+    /**
+     * The raw data stored for a single group or player.
+     */
+    public static final class EntityData {
+        private final String name;
+        private final String displayName;
+        private final int priority;
+        private final List<EntryData> permissions = new ArrayList<>();
+        private final List<String> parents = new ArrayList<>();
+        private final Map<String, Object> metadata = new LinkedHashMap<>();
+
+        EntityData(String name, String displayName, int priority) {
+            this.name = name;
+            this.displayName = displayName;
+            this.priority = priority;
+        }
+
+        /**
+         * Gets the name of the entity. For players, this is their uuid.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        public String getDisplayName() {
+            return this.displayName;
+        }
+
+        public int getPriority() {
+            return this.priority;
+        }
+
+        public List<EntryData> getPermissions() {
+            return this.permissions;
+        }
+
+        /**
+         * Gets the display names of the entity's parents, in order.
+         *
+         * @return the parents
+         */
+        public List<String> getParents() {
+            return this.parents;
+        }
+
+        public Map<String, Object> getMetadata() {
+            return this.metadata;
+        }
+    }
+
+    public static final class EntryData {
+        private final String permission;
+        private final boolean value;
+        private final String world;
+
+        EntryData(String permission, boolean value, String world) {
+            this.permission = permission;
+            this.value = value;
+            this.world = world;
+        }
+
+        public String getPermission() {
+            return this.permission;
+        }
+
+        public boolean getValue() {
+            return this.value;
+        }
+
+        /**
+         * Gets the world the entry applies in, or null if it is global.
+         *
+         * @return the world
+         */
+        public String getWorld() {
+            return this.world;
+        }
+    }
+
+    public static final class MembershipData {
+        private final String member;
+        private final String displayName;
+        private final String group;
+        private final int groupPriority;
+        private final long expiry;
+
+        MembershipData(String member, String displayName, String group, int groupPriority, long expiry) {
+            this.member = member;
+            this.displayName = displayName;
+            this.group = group;
+            this.groupPriority = groupPriority;
+            this.expiry = expiry;
+        }
+
+        /**
+         * Gets the member. For players, this is their uuid.
+         *
+         * @return the member
+         */
+        public String getMember() {
+            return this.member;
+        }
+
+        public String getDisplayName() {
+            return this.displayName;
+        }
+
+        public String getGroup() {
+            return this.group;
+        }
+
+        public int getGroupPriority() {
+            return this.groupPriority;
+        }
+
+        /**
+         * Gets the time the membership expires, in epoch seconds, or 0 if it is permanent.
+         *
+         * @return the expiry
+         */
+        public long getExpiry() {
+            return this.expiry;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.migration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZPermissionsSqlReaderTest {
+    private static final String NOTCH = "069a79f4-44e9-4726-a5be-fca90e38aaf5";
+    private static final String JEB = "853c80ef-3c37-49fd-aa49-938b674adae6";
+
+    private Connection connection;
+
+    @Before
+    public void setup() throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:h2:mem:zpermissions");
+        execute("CREATE TABLE entities (id BIGINT PRIMARY KEY, name VARCHAR(255), display_name VARCHAR(255), is_group BOOLEAN, priority INT)");
+        execute("CREATE TABLE worlds (id BIGINT PRIMARY KEY, name VARCHAR(255))");
+        execute("CREATE TABLE entries (id BIGINT PRIMARY KEY, entity_id BIGINT, region_id BIGINT, world_id BIGINT, permission VARCHAR(255), value BOOLEAN)");
+        execute("CREATE TABLE inheritances (id BIGINT PRIMARY KEY, child_id BIGINT, parent_id BIGINT, ordering INT)");
+        execute("CREATE TABLE metadata (id BIGINT PRIMARY KEY, entity_id BIGINT, name VARCHAR(255), string_value VARCHAR(255), integer_value BIGINT, real_value DOUBLE, boolean_value BOOLEAN)");
+        execute("CREATE TABLE memberships (id BIGINT PRIMARY KEY, member VARCHAR(255), display_name VARCHAR(255), group_id BIGINT, expiration TIMESTAMP)");
+    }
+
+    @After
+    public void teardown() throws SQLException {
+        this.connection.close();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement s = this.connection.createStatement()) {
+            s.execute(sql);
+        }
+    }
+
+    private void insertData() throws SQLException {
+        // groups and players are interleaved, and some have no rows in the other tables
+        execute("INSERT INTO entities VALUES (1, 'default', 'Default', TRUE, 0), (2, 'admin', 'Admin', TRUE, 10), (3, '" + NOTCH + "', 'Notch', FALSE, 0)," +
+                " (4, 'mod', 'Mod', TRUE, 5), (5, '" + JEB + "', 'jeb_', FALSE, 0), (6, 'empty', 'Empty', TRUE, 1)");
+        execute("INSERT INTO worlds VALUES (1, 'nether')");
+        execute("INSERT INTO entries VALUES (1, 2, NULL, NULL, 'a.b', TRUE), (2, 1, NULL, 1, 'c.d', FALSE), (3, 3, NULL, NULL, 'u.p', TRUE)," +
+                " (4, 2, NULL, 1, 'e.f', TRUE), (5, 99, NULL, NULL, 'orphan', TRUE)");
+        execute("INSERT INTO inheritances VALUES (1, 2, 4, 1), (2, 2, 1, 0), (3, 4, 1, 0)");
+        execute("INSERT INTO metadata VALUES (1, 4, 'prefix', '[M]', NULL, NULL, NULL), (2, 5, 'level', NULL, 5, NULL, NULL)," +
+                " (3, 4, 'flag', NULL, NULL, NULL, TRUE), (4, 4, 'rate', NULL, NULL, 1.5, NULL)");
+        execute("INSERT INTO memberships VALUES (1, '" + NOTCH + "', 'Notch', 1, '2030-01-01 00:00:00'), (2, '" + NOTCH + "', 'Notch', 2, NULL)," +
+                " (3, 'steve', 'Steve', 4, NULL)");
+    }
+
+    private static <T> List<T> list(Iterable<T> iterable) {
+        List<T> list = new ArrayList<>();
+        iterable.forEach(list::add);
+        return list;
+    }
+
+    private static List<String> permissions(ZPermissionsSqlReader.EntityData entity) {
+        List<String> permissions = new ArrayList<>();
+        for (ZPermissionsSqlReader.EntryData entry : entity.getPermissions()) {
+            permissions.add(entry.getPermission() + "=" + entry.getValue() + "@" + entry.getWorld());
+        }
+        return permissions;
+    }
+
+    @Test
+    public void readsGroups() throws SQLException {
+        insertData();
+
+        List<ZPermissionsSqlReader.EntityData> groups;
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(this.connection)) {
+            groups = list(reader.groups());
+        }
+        assertEquals(4, groups.size());
+
+        // entries, but no metadata or parents
+        ZPermissionsSqlReader.EntityData defaultGroup = groups.get(0);
+        assertEquals("default", defaultGroup.getName());
+        assertEquals(Collections.singletonList("c.d=false@nether"), permissions(defaultGroup));
+        assertTrue(defaultGroup.getParents().isEmpty());
+        assertTrue(defaultGroup.getMetadata().isEmpty());
+
+        // entries and parents, in order, but no metadata
+        ZPermissionsSqlReader.EntityData admin = groups.get(1);
+        assertEquals("Admin", admin.getDisplayName());
+        assertEquals(10, admin.getPriority());
+        assertEquals(Arrays.asList("a.b=true@null", "e.f=true@nether"), permissions(admin));
+        assertEquals(Arrays.asList("Default", "Mod"), admin.getParents());
+        assertTrue(admin.getMetadata().isEmpty());
+
+        // metadata and parents, but no entries
+        ZPermissionsSqlReader.EntityData mod = groups.get(2);
+        assertTrue(mod.getPermissions().isEmpty());
+        assertEquals(Collections.singletonList("Default"), mod.getParents());
+        assertEquals(Arrays.asList("prefix", "flag", "rate"), new ArrayList<>(mod.getMetadata().keySet()));
+        assertEquals("[M]", mod.getMetadata().get("prefix"));
+        assertEquals(true, mod.getMetadata().get("flag"));
+        assertEquals(1.5, mod.getMetadata().get("rate"));
+
+        // no rows anywhere else
+        ZPermissionsSqlReader.EntityData empty = groups.get(3);
+        assertEquals("empty", empty.getName());
+        assertTrue(empty.getPermissions().isEmpty());
+        assertTrue(empty.getParents().isEmpty());
+        assertTrue(empty.getMetadata().isEmpty());
+    }
+
+    @Test
+    public void readsPlayers() throws SQLException {
+        insertData();
+
+        List<ZPermissionsSqlReader.EntityData> players;
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(this.connection)) {
+            players = list(reader.players());
+        }
+        assertEquals(2, players.size());
+
+        ZPermissionsSqlReader.EntityData notch = players.get(0);
+        assertEquals(NOTCH, notch.getName());
+        assertEquals("Notch", notch.getDisplayName());
+        assertEquals(Collections.singletonList("u.p=true@null"), permissions(notch));
+        assertTrue(notch.getMetadata().isEmpty());
+        assertTrue(notch.getParents().isEmpty());
+
+        ZPermissionsSqlReader.EntityData jeb = players.get(1);
+        assertEquals(JEB, jeb.getName());
+        assertTrue(jeb.getPermissions().isEmpty());
+        assertEquals(5L, ((Number) jeb.getMetadata().get("level")).longValue());
+    }
+
+    @Test
+    public void readsMemberships() throws SQLException {
+        insertData();
+
+        List<ZPermissionsSqlReader.MembershipData> memberships;
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(this.connection)) {
+            memberships = list(reader.memberships());
+        }
+        assertEquals(3, memberships.size());
+
+        // a member's groups are ordered by priority, highest first
+        ZPermissionsSqlReader.MembershipData admin = memberships.get(0);
+        assertEquals(NOTCH, admin.getMember());
+        assertEquals("Notch", admin.getDisplayName());
+        assertEquals("Admin", admin.getGroup());
+        assertEquals(10, admin.getGroupPriority());
+        assertEquals(0L, admin.getExpiry());
+
+        ZPermissionsSqlReader.MembershipData defaultGroup = memberships.get(1);
+        assertEquals("Default", defaultGroup.getGroup());
+        assertEquals(Timestamp.valueOf("2030-01-01 00:00:00").getTime() / 1000L, defaultGroup.getExpiry());
+
+        // members without an entity are still returned
+        ZPermissionsSqlReader.MembershipData steve = memberships.get(2);
+        assertEquals("steve", steve.getMember());
+        assertEquals("Mod", steve.getGroup());
+    }
+
+    @Test
+    public void readsNothingFromEmptyTables() throws SQLException {
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(this.connection)) {
+            assertTrue(list(reader.groups()).isEmpty());
+            assertTrue(list(reader.players()).isEmpty());
+            assertTrue(list(reader.memberships()).isEmpty());
+        }
+    }
+
+    @Test
+    public void streamsWithSeveralLazyCursorsOpen() throws SQLException {
+        // lazy results are produced as the cursor moves, so this reads like a server-side cursor would
+        execute("SET LAZY_QUERY_EXECUTION TRUE");
+        int count = 2500;
+        for (int id = 1; id <= count; id++) {
+            boolean group = id % 2 == 0;
+            execute("INSERT INTO entities VALUES (" + id + ", 'e" + id + "', 'E" + id + "', " + group + ", 0)");
+            execute("INSERT INTO entries VALUES (" + id + ", " + id + ", NULL, NULL, 'p" + id + "', TRUE)");
+            execute("INSERT INTO metadata VALUES (" + id + ", " + id + ", 'm', 'v" + id + "', NULL, NULL, NULL)");
+            if (group && id > 2) {
+                execute("INSERT INTO inheritances VALUES (" + id + ", " + id + ", " + (id - 2) + ", 0)");
+            }
+        }
+
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(this.connection)) {
+            int groups = 0;
+            for (ZPermissionsSqlReader.EntityData entity : reader.groups()) {
+                int id = Integer.parseInt(entity.getName().substring(1));
+                assertEquals(Collections.singletonList("p" + id + "=true@null"), permissions(entity));
+                assertEquals("v" + id, entity.getMetadata().get("m"));
+                assertEquals(id > 2 ? Collections.singletonList("E" + (id - 2)) : Collections.emptyList(), entity.getParents());
+                groups++;
+            }
+            assertEquals(count / 2, groups);
+            assertEquals(count / 2, list(reader.players()).size());
+        }
+    }
+
+    @Test
+    public void closesStatementsOnceAPassIsRead() throws SQLException {
+        insertData();
+
+        List<PreparedStatement> statements = new ArrayList<>();
+        Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            try {
+                Object result = method.invoke(this.connection, args);
+                if (result instanceof PreparedStatement) {
+                    statements.add((PreparedStatement) result);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+
+        try (ZPermissionsSqlReader reader = new ZPermissionsSqlReader(connection)) {
+            list(reader.groups());
+            assertEquals(4, statements.size());
+            for (PreparedStatement statement : statements) {
+                assertTrue(statement.isClosed());
+            }
+
+            // a pass which is still being read keeps its statements open
+            reader.players().iterator().next();
+            assertEquals(7, statements.size());
+            assertFalse(statements.get(4).isClosed());
+        }
+        for (PreparedStatement statement : statements) {
+            assertTrue(statement.isClosed());
+        }
+    }
+}